@@ -0,0 +1,283 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.core.xml.schema.XSAny;
+import org.opensaml.core.xml.schema.XSBase64Binary;
+import org.opensaml.core.xml.schema.XSBoolean;
+import org.opensaml.core.xml.schema.XSBooleanValue;
+import org.opensaml.core.xml.schema.XSInteger;
+import org.opensaml.core.xml.schema.XSString;
+import org.opensaml.core.xml.schema.XSURI;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Attribute;
+import org.opensaml.saml.saml2.core.AttributeStatement;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.w3c.dom.Element;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Extracts the username and the session index of a SAML2 Assertion in a single pass over its
+ * AttributeStatements. An extractor is built once from the configuration and is safe to be shared between threads.
+ * <p>
+ * Roles are extracted separately through {@link #extractRoles(Assertion, Set, int)} since IdPs may assert thousands
+ * of group values, of which only the ones known to the tenant are of interest.
+ */
+public class AssertionAttributeExtractor {
+
+    private final String loginAttributeName;
+    private final String roleAttributeName;
+    private final String attributeValueSeparator;
+
+    /**
+     * @param loginAttributeName      name of the attribute carrying the username, or null to use the subject NameID
+     * @param roleAttributeName       name of the attribute carrying the roles, or null if roles are not required
+     * @param attributeValueSeparator literal separator of roles sent as a single attribute value
+     */
+    public AssertionAttributeExtractor(String loginAttributeName, String roleAttributeName,
+                                       String attributeValueSeparator) {
+        this.loginAttributeName = loginAttributeName;
+        this.roleAttributeName = roleAttributeName;
+        this.attributeValueSeparator = attributeValueSeparator;
+    }
+
+    /**
+     * Extract the attributes of the given assertion.
+     *
+     * @param assertion SAML2 Assertion
+     * @return extracted attributes
+     */
+    public AssertionAttributes extract(Assertion assertion) {
+
+        String username = null;
+
+        List<AttributeStatement> attributeStatements = assertion.getAttributeStatements();
+        if (attributeStatements != null && loginAttributeName != null) {
+            for (AttributeStatement attributeStatement : attributeStatements) {
+                List<Attribute> attributes = attributeStatement.getAttributes();
+                if (attributes == null) {
+                    continue;
+                }
+                for (Attribute attribute : attributes) {
+                    String attributeName = attribute.getName();
+                    if (attributeName == null) {
+                        continue;
+                    }
+                    if (attributeName.equals(loginAttributeName)) {
+                        // There can be multiple attribute values in a attribute, but get the first one
+                        List<XMLObject> attributeValues = attribute.getAttributeValues();
+                        if (attributeValues != null && !attributeValues.isEmpty()) {
+                            username = getAttributeValue(attributeValues.get(0));
+                            break;
+                        }
+                    }
+                }
+                if (username != null) {
+                    break;
+                }
+            }
+        }
+
+        if (username == null && assertion.getSubject() != null && assertion.getSubject().getNameID() != null) {
+            username = assertion.getSubject().getNameID().getValue();
+        }
+
+        String sessionIndex = null;
+        List<AuthnStatement> authnStatements = assertion.getAuthnStatements();
+        if (authnStatements != null && !authnStatements.isEmpty()) {
+            // There can be only one authentication stmt inside the SAML assertion of a SAML Response
+            sessionIndex = authnStatements.get(0).getSessionIndex();
+        }
+
+        return new AssertionAttributes(username, sessionIndex);
+    }
+
+    /**
+     * Extract the roles of the given assertion. The role values are streamed through the filter as they are read, so
+     * no intermediate collection of all the asserted values is built.
+     *
+     * @param assertion     SAML2 Assertion
+     * @param knownRoles    roles to be accepted, or null to accept all the asserted roles
+     * @param maxRoleValues maximum number of role values to be read, or a non positive value for no limit
+     * @return extracted roles
+     */
+    public RoleClaim extractRoles(Assertion assertion, Set<String> knownRoles, int maxRoleValues) {
+
+        RoleClaim roleClaim = new RoleClaim(knownRoles, maxRoleValues);
+        List<AttributeStatement> attributeStatements = assertion.getAttributeStatements();
+        if (attributeStatements == null || roleAttributeName == null) {
+            return roleClaim;
+        }
+        for (AttributeStatement attributeStatement : attributeStatements) {
+            List<Attribute> attributes = attributeStatement.getAttributes();
+            if (attributes == null) {
+                continue;
+            }
+            for (Attribute attribute : attributes) {
+                if (!roleAttributeName.equals(attribute.getName())) {
+                    continue;
+                }
+                List<XMLObject> attributeValues = attribute.getAttributeValues();
+                if (attributeValues == null || attributeValues.isEmpty()) {
+                    continue;
+                }
+                if (attributeValues.size() == 1) {
+                    // A single value may carry several roles joined with the separator.
+                    splitRoles(getAttributeValue(attributeValues.get(0)), roleClaim);
+                } else {
+                    for (XMLObject attributeValue : attributeValues) {
+                        if (!roleClaim.offer(getAttributeValue(attributeValue))) {
+                            return roleClaim;
+                        }
+                    }
+                }
+                if (roleClaim.isTruncated()) {
+                    return roleClaim;
+                }
+            }
+        }
+        return roleClaim;
+    }
+
+    private void splitRoles(String value, RoleClaim roleClaim) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        if (attributeValueSeparator == null || attributeValueSeparator.isEmpty()) {
+            roleClaim.offer(value);
+            return;
+        }
+        int start = 0;
+        int end;
+        while ((end = value.indexOf(attributeValueSeparator, start)) != -1) {
+            if (end > start && !roleClaim.offer(value.substring(start, end))) {
+                return;
+            }
+            start = end + attributeValueSeparator.length();
+        }
+        if (start < value.length()) {
+            roleClaim.offer(value.substring(start));
+        }
+    }
+
+    /**
+     * Read the text value of an attribute value without touching the DOM for the common value types. The DOM of a
+     * verified Assertion may already be released, see {@link DOMRetentionPolicy}.
+     *
+     * @param attributeValue attribute value
+     * @return text value
+     */
+    public static String getAttributeValue(XMLObject attributeValue) {
+        if (attributeValue == null) {
+            return null;
+        } else if (attributeValue instanceof XSString) {
+            return ((XSString) attributeValue).getValue();
+        } else if (attributeValue instanceof XSAny) {
+            return ((XSAny) attributeValue).getTextContent();
+        } else if (attributeValue instanceof XSURI) {
+            return ((XSURI) attributeValue).getValue();
+        } else if (attributeValue instanceof XSBase64Binary) {
+            return ((XSBase64Binary) attributeValue).getValue();
+        } else if (attributeValue instanceof XSInteger) {
+            Integer value = ((XSInteger) attributeValue).getValue();
+            return value != null ? value.toString() : null;
+        } else if (attributeValue instanceof XSBoolean) {
+            XSBooleanValue value = ((XSBoolean) attributeValue).getValue();
+            return value != null ? value.toString() : null;
+        }
+        Element dom = attributeValue.getDOM();
+        return dom != null ? dom.getTextContent() : attributeValue.toString();
+    }
+
+    /**
+     * Attributes extracted from a SAML2 Assertion.
+     */
+    public static class AssertionAttributes {
+
+        private final String username;
+        private final String sessionIndex;
+
+        public AssertionAttributes(String username, String sessionIndex) {
+            this.username = username;
+            this.sessionIndex = sessionIndex;
+        }
+
+        public String getUsername() {
+            return username;
+        }
+
+        public String getSessionIndex() {
+            return sessionIndex;
+        }
+    }
+
+    /**
+     * Roles extracted from the role claim of a SAML2 Assertion.
+     */
+    public static class RoleClaim {
+
+        private final Set<String> knownRoles;
+        private final int maxRoleValues;
+        private final Set<String> roles = new LinkedHashSet<String>();
+        private int valueCount;
+        private boolean truncated;
+
+        private RoleClaim(Set<String> knownRoles, int maxRoleValues) {
+            this.knownRoles = knownRoles;
+            this.maxRoleValues = maxRoleValues;
+        }
+
+        private boolean offer(String role) {
+            if (role == null || role.isEmpty()) {
+                return true;
+            }
+            if (maxRoleValues > 0 && valueCount >= maxRoleValues) {
+                truncated = true;
+                return false;
+            }
+            valueCount++;
+            if (knownRoles == null || knownRoles.contains(role)) {
+                roles.add(role);
+            }
+            return true;
+        }
+
+        /**
+         * @return accepted roles, in the asserted order and without duplicates
+         */
+        public Set<String> getRoles() {
+            return roles;
+        }
+
+        /**
+         * @return number of role values read from the assertion, including the ones which were not accepted
+         */
+        public int getValueCount() {
+            return valueCount;
+        }
+
+        /**
+         * @return true if the role claim had more values than the configured maximum
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.joda.time.DateTime;
+import org.opensaml.saml.saml2.core.Assertion;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the IDs of the consumed SAML2 Responses and Assertions until they expire, so that a captured message
+ * can not be replayed within its validity window.
+ * <p>
+ * An entry is a 64-bit FNV-1a hash of the issuer and the ID together with its expiry time. The entries are held in
+ * two primitive arrays with open addressing, so the memory used by the cache is fixed when it is created. Expiry
+ * times are rounded up to a time bucket and the expired entries are swept out at most once per bucket. If the cache
+ * is full after a sweep, new IDs are not remembered and are counted. By default the message is still accepted, which
+ * keeps the logins available but lets such a message be replayed. A fail closed cache rejects the message instead.
+ */
+public class AssertionReplayCache {
+
+    private static final Log log = LogFactory.getLog(AssertionReplayCache.class);
+
+    private static final int DEFAULT_MAX_ENTRIES = 65536;
+    private static final long DEFAULT_RETENTION_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long BUCKET_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    private static final long EMPTY = 0L;
+
+    private final int maxEntries;
+    private final int mask;
+    private final long skewMillis;
+    private final boolean failClosed;
+    private long[] keys;
+    private long[] expiries;
+    private long[] spareKeys;
+    private long[] spareExpiries;
+    private int size;
+    private long nextSweep;
+    private final AtomicLong replayCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param maxEntries maximum number of IDs remembered at a time
+     * @param skewMillis clock skew added to the expiry of the IDs
+     */
+    public AssertionReplayCache(int maxEntries, long skewMillis) {
+        this(maxEntries, skewMillis, false);
+    }
+
+    /**
+     * @param maxEntries maximum number of IDs remembered at a time
+     * @param skewMillis clock skew added to the expiry of the IDs
+     * @param failClosed whether a message is rejected if its ID can not be remembered since the cache is full
+     */
+    public AssertionReplayCache(int maxEntries, long skewMillis, boolean failClosed) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("Maximum number of entries of the replay cache has to be positive : " +
+                    maxEntries);
+        }
+        // Keep the load factor at or below 0.5 so that the probe sequences stay short.
+        int capacity = Integer.highestOneBit(Math.max(2, maxEntries) * 2 - 1) << 1;
+        this.maxEntries = maxEntries;
+        this.mask = capacity - 1;
+        this.skewMillis = skewMillis;
+        this.failClosed = failClosed;
+        this.keys = new long[capacity];
+        this.expiries = new long[capacity];
+        this.spareKeys = new long[capacity];
+        this.spareExpiries = new long[capacity];
+    }
+
+    /**
+     * Build a replay cache from the authenticator configuration.
+     *
+     * @param parameters authenticator configuration parameters
+     * @param skewMillis clock skew added to the expiry of the IDs
+     * @return replay cache, or null if the replay detection is disabled
+     */
+    public static AssertionReplayCache create(Map<String, String> parameters, long skewMillis) {
+        if (parameters != null && "false".equalsIgnoreCase(
+                parameters.get(SAML2SSOAuthenticatorConstants.REPLAY_CACHE_ENABLED))) {
+            return null;
+        }
+        int maxEntries = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.REPLAY_CACHE_MAX_ENTRIES,
+                DEFAULT_MAX_ENTRIES, 1);
+        boolean failClosed = parameters != null && Boolean.parseBoolean(
+                parameters.get(SAML2SSOAuthenticatorConstants.REPLAY_CACHE_FAIL_CLOSED));
+        return new AssertionReplayCache(maxEntries, skewMillis, failClosed);
+    }
+
+    /**
+     * @param issuer issuer of the message, may be null
+     * @param id     ID of the Response or Assertion
+     * @param now    current time in epoch milliseconds
+     * @return true if the ID is already consumed and has not expired
+     */
+    public synchronized boolean isReplayed(String issuer, String id, long now) {
+        if (id == null) {
+            return false;
+        }
+        int index = indexOf(hash(issuer, id));
+        if (index >= 0 && expiries[index] > now) {
+            replayCount.incrementAndGet();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the ID of the assertion is already consumed and has not expired
+     */
+    public boolean isReplayed(Assertion assertion, long now) {
+        return isReplayed(getIssuer(assertion), assertion.getID(), now);
+    }
+
+    /**
+     * Remember an ID as consumed.
+     *
+     * @param issuer      issuer of the message, may be null
+     * @param id          ID of the Response or Assertion
+     * @param notOnOrAfter end of the validity period of the message, or null if it is unknown
+     * @param now         current time in epoch milliseconds
+     * @return false if the ID was already consumed, in which case the message is a replay, or if the ID can not be
+     * remembered by a fail closed cache
+     */
+    public synchronized boolean markConsumed(String issuer, String id, DateTime notOnOrAfter, long now) {
+        if (id == null) {
+            return true;
+        }
+        long key = hash(issuer, id);
+        int index = indexOf(key);
+        if (index >= 0 && expiries[index] > now) {
+            replayCount.incrementAndGet();
+            return false;
+        }
+        // The expiries are bucket ends and the next sweep is at the next bucket end, so sweeping earlier, even when
+        // the cache is full, could not free any entry.
+        if (now >= nextSweep) {
+            sweep(now);
+            index = indexOf(key);
+        }
+        long expiry = (notOnOrAfter != null ? notOnOrAfter.getMillis() : now + DEFAULT_RETENTION_MILLIS) + skewMillis;
+        if (index >= 0) {
+            // The ID was consumed before but its entry has expired and was not swept out yet.
+            expiries[index] = toBucketEnd(expiry);
+            return true;
+        }
+        if (size >= maxEntries) {
+            if (overflowCount.incrementAndGet() % 1000 == 1) {
+                log.warn("Replay cache is full with " + size + " entries. Consumed IDs are not remembered until " +
+                        "the existing entries expire" + (failClosed ? ", and their messages are rejected." : "."));
+            }
+            if (failClosed) {
+                rejectedCount.incrementAndGet();
+                return false;
+            }
+            return true;
+        }
+        insert(keys, expiries, key, toBucketEnd(expiry));
+        size++;
+        return true;
+    }
+
+    /**
+     * Remember the ID of an assertion as consumed, with the expiry of its Conditions.
+     *
+     * @return false if the assertion was already consumed, or if it can not be remembered by a fail closed cache
+     */
+    public boolean markConsumed(Assertion assertion, long now) {
+        return markConsumed(getIssuer(assertion), assertion.getID(), getNotOnOrAfter(assertion), now);
+    }
+
+    /**
+     * @return NotOnOrAfter of the Conditions of the assertion, or null if the assertion is null or has no Conditions
+     */
+    public static DateTime getNotOnOrAfter(Assertion assertion) {
+        return assertion != null && assertion.getConditions() != null ?
+                assertion.getConditions().getNotOnOrAfter() : null;
+    }
+
+    /**
+     * @return true if new IDs can not be remembered until the existing entries expire
+     */
+    public synchronized boolean isFull() {
+        return size >= maxEntries;
+    }
+
+    public synchronized int getSize() {
+        return size;
+    }
+
+    public long getReplayCount() {
+        return replayCount.get();
+    }
+
+    /**
+     * @return number of IDs which were not remembered since the cache was full
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * @return number of messages rejected by a fail closed cache since their IDs could not be remembered
+     */
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public boolean isFailClosed() {
+        return failClosed;
+    }
+
+    private static String getIssuer(Assertion assertion) {
+        return assertion.getIssuer() != null ? assertion.getIssuer().getValue() : null;
+    }
+
+    private int indexOf(long key) {
+        int index = (int) key & mask;
+        while (keys[index] != EMPTY) {
+            if (keys[index] == key) {
+                return index;
+            }
+            index = (index + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Move the entries which have not expired to the spare arrays and swap them in. Removing entries in place would
+     * break the probe sequences of the remaining ones.
+     */
+    private void sweep(long now) {
+        Arrays.fill(spareKeys, EMPTY);
+        int live = 0;
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] != EMPTY && expiries[i] > now) {
+                insert(spareKeys, spareExpiries, keys[i], expiries[i]);
+                live++;
+            }
+        }
+        long[] swapKeys = keys;
+        long[] swapExpiries = expiries;
+        keys = spareKeys;
+        expiries = spareExpiries;
+        spareKeys = swapKeys;
+        spareExpiries = swapExpiries;
+        size = live;
+        nextSweep = toBucketEnd(now + 1);
+    }
+
+    private void insert(long[] targetKeys, long[] targetExpiries, long key, long expiry) {
+        int index = (int) key & mask;
+        while (targetKeys[index] != EMPTY && targetKeys[index] != key) {
+            index = (index + 1) & mask;
+        }
+        targetKeys[index] = key;
+        targetExpiries[index] = expiry;
+    }
+
+    private static long toBucketEnd(long time) {
+        return ((time + BUCKET_MILLIS - 1) / BUCKET_MILLIS) * BUCKET_MILLIS;
+    }
+
+    private static long hash(String issuer, String id) {
+        long hash = FNV_OFFSET_BASIS;
+        if (issuer != null) {
+            for (int i = 0; i < issuer.length(); i++) {
+                hash = (hash ^ issuer.charAt(i)) * FNV_PRIME;
+            }
+        }
+        // Separate the issuer from the ID so that different splits of the same characters do not collide.
+        hash = (hash ^ 0xffff) * FNV_PRIME;
+        for (int i = 0; i < id.length(); i++) {
+            hash = (hash ^ id.charAt(i)) * FNV_PRIME;
+        }
+        // Mix the high bits into the low bits used for the table index.
+        hash ^= hash >>> 32;
+        return hash == EMPTY ? 1L : hash;
+    }
+}
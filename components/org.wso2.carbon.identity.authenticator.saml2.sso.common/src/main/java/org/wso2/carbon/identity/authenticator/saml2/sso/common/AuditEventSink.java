@@ -0,0 +1,320 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.slf4j.MDC;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes the login and logout audit lines of the SAML2 SSO authenticators outside the request threads.
+ * <p>
+ * Request threads only publish the raw audit fields to a bounded lock-free ring buffer. A single writer thread
+ * formats the lines with {@link SAML2SSOAuthenticatorConstants#AUDIT_MESSAGE} and writes them to the audit log in
+ * batches. When the buffer is full the event is either dropped or written by the publishing thread, as configured by
+ * the overflow policy.
+ * <p>
+ * The tenant and the MDC of the publishing thread are captured with each event and restored while its line is written,
+ * so the lines carry the same context as lines written on the request thread. The writer parks while the buffer is
+ * empty and is unparked by the next publishing thread.
+ */
+public class AuditEventSink {
+
+    private static final Log log = LogFactory.getLog(AuditEventSink.class);
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    /**
+     * Action taken when an event is published while the buffer is full.
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the event and count it.
+         */
+        DROP,
+        /**
+         * Write the event synchronously on the publishing thread. The line is written ahead of the older events which
+         * are still buffered, so the audit log is not in publishing order while the buffer is full.
+         */
+        CALLER_RUNS
+    }
+
+    private final Log auditLog;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicReferenceArray<AuditEvent> buffer;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private volatile long head;
+    private final Object drainLock = new Object();
+    private final AtomicLong writtenCount = new AtomicLong();
+    private final AtomicLong droppedCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+    private volatile boolean running;
+    private volatile boolean writerParked;
+    private volatile Thread writer;
+
+    /**
+     * @param auditLog       log the audit lines are written to
+     * @param bufferSize     capacity of the buffer, rounded up to the next power of two
+     * @param overflowPolicy action taken when the buffer is full
+     */
+    public AuditEventSink(Log auditLog, int bufferSize, OverflowPolicy overflowPolicy) {
+        int capacity = Integer.highestOneBit(Math.max(2, bufferSize) - 1) << 1;
+        this.auditLog = auditLog;
+        this.overflowPolicy = overflowPolicy;
+        this.buffer = new AtomicReferenceArray<AuditEvent>(capacity);
+        this.mask = capacity - 1;
+    }
+
+    /**
+     * Build an audit event sink from the authenticator configuration.
+     *
+     * @param parameters authenticator configuration parameters
+     * @param auditLog   log the audit lines are written to
+     * @return a started sink, or null if asynchronous audit logging is not enabled
+     */
+    public static AuditEventSink create(Map<String, String> parameters, Log auditLog) {
+        if (parameters == null ||
+                !Boolean.parseBoolean(parameters.get(SAML2SSOAuthenticatorConstants.AUDIT_LOG_ASYNC_ENABLED))) {
+            return null;
+        }
+        int bufferSize = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.AUDIT_LOG_BUFFER_SIZE,
+                DEFAULT_BUFFER_SIZE, 1);
+        OverflowPolicy overflowPolicy = OverflowPolicy.CALLER_RUNS;
+        String overflowPolicyParam = parameters.get(SAML2SSOAuthenticatorConstants.AUDIT_LOG_OVERFLOW_POLICY);
+        if (overflowPolicyParam != null) {
+            try {
+                overflowPolicy = OverflowPolicy.valueOf(overflowPolicyParam.trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                log.warn("Invalid value : " + overflowPolicyParam + " for " +
+                        SAML2SSOAuthenticatorConstants.AUDIT_LOG_OVERFLOW_POLICY + ". Using the default value : " +
+                        overflowPolicy);
+            }
+        }
+        AuditEventSink auditEventSink = new AuditEventSink(auditLog, bufferSize, overflowPolicy);
+        auditEventSink.start();
+        return auditEventSink;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeEvents();
+            }
+        }, "SAML2SSO-Audit-Writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer after the events which are already published are written.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Write whatever the writer could not complete within the timeout.
+        drain(Integer.MAX_VALUE);
+    }
+
+    /**
+     * Publish an audit event. The arguments are the fields of {@link SAML2SSOAuthenticatorConstants#AUDIT_MESSAGE}.
+     */
+    public void publish(String initiator, String action, String target, String data, String result) {
+        PrivilegedCarbonContext carbonContext = PrivilegedCarbonContext.getThreadLocalCarbonContext();
+        AuditEvent event = new AuditEvent(initiator, action, target, data, result, carbonContext.getTenantId(),
+                carbonContext.getTenantDomain(), MDC.getCopyOfContextMap());
+        if (running) {
+            long claimed;
+            do {
+                claimed = tail.get();
+                if (claimed - head > mask) {
+                    overflow(event);
+                    return;
+                }
+            } while (!tail.compareAndSet(claimed, claimed + 1));
+            buffer.set((int) claimed & mask, event);
+            if (writerParked) {
+                LockSupport.unpark(writer);
+            }
+        } else {
+            writeOnPublisher(event);
+        }
+    }
+
+    public long getWrittenCount() {
+        return writtenCount.get();
+    }
+
+    /**
+     * @return number of events discarded due to a full buffer
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * @return number of times the buffer was full when an event was published
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    public int getPendingCount() {
+        return (int) (tail.get() - head);
+    }
+
+    private void overflow(AuditEvent event) {
+        if (overflowCount.incrementAndGet() == 1) {
+            log.warn("Audit log buffer is full. Overflow policy : " + overflowPolicy);
+        }
+        if (overflowPolicy == OverflowPolicy.CALLER_RUNS) {
+            writeOnPublisher(event);
+        } else {
+            droppedCount.incrementAndGet();
+        }
+    }
+
+    private void writeEvents() {
+        while (running || head != tail.get()) {
+            try {
+                if (drain(BATCH_SIZE) == 0) {
+                    // Announce the park before checking the buffer again, so that an event published in between
+                    // either is seen here or unparks the writer.
+                    writerParked = true;
+                    if (running && buffer.get((int) head & mask) == null) {
+                        LockSupport.park(this);
+                    }
+                    writerParked = false;
+                }
+            } catch (RuntimeException e) {
+                log.error("Error while writing the audit log", e);
+            }
+        }
+    }
+
+    /**
+     * Write up to the given number of events. The buffer has a single consumer, which is the writer thread or the
+     * thread shutting down the sink.
+     */
+    private int drain(int maxEvents) {
+        synchronized (drainLock) {
+            int written = 0;
+            boolean infoEnabled = auditLog.isInfoEnabled();
+            while (written < maxEvents && head != tail.get()) {
+                int index = (int) head & mask;
+                AuditEvent event = buffer.get(index);
+                if (event == null) {
+                    // The slot is claimed but the event is not published yet.
+                    break;
+                }
+                buffer.set(index, null);
+                head++;
+                if (infoEnabled) {
+                    write(event);
+                }
+                written++;
+            }
+            writtenCount.addAndGet(written);
+            return written;
+        }
+    }
+
+    /**
+     * Write the line of an event on the thread publishing it, which already has the context of the event.
+     */
+    private void writeOnPublisher(AuditEvent event) {
+        if (auditLog.isInfoEnabled()) {
+            auditLog.info(event.format());
+        }
+        writtenCount.incrementAndGet();
+    }
+
+    /**
+     * Write the line of an event in the tenant and the MDC of the thread which published it.
+     */
+    private void write(AuditEvent event) {
+        Map<String, String> previousContext = MDC.getCopyOfContextMap();
+        PrivilegedCarbonContext.startTenantFlow();
+        try {
+            PrivilegedCarbonContext carbonContext = PrivilegedCarbonContext.getThreadLocalCarbonContext();
+            carbonContext.setTenantId(event.tenantId);
+            carbonContext.setTenantDomain(event.tenantDomain);
+            setMDC(event.context);
+            auditLog.info(event.format());
+        } finally {
+            setMDC(previousContext);
+            PrivilegedCarbonContext.endTenantFlow();
+        }
+    }
+
+    private static void setMDC(Map<String, String> context) {
+        if (context == null) {
+            MDC.clear();
+        } else {
+            MDC.setContextMap(context);
+        }
+    }
+
+    private static class AuditEvent {
+
+        private final String initiator;
+        private final String action;
+        private final String target;
+        private final String data;
+        private final String result;
+        private final int tenantId;
+        private final String tenantDomain;
+        private final Map<String, String> context;
+
+        AuditEvent(String initiator, String action, String target, String data, String result, int tenantId,
+                   String tenantDomain, Map<String, String> context) {
+            this.initiator = initiator;
+            this.action = action;
+            this.target = target;
+            this.data = data;
+            this.result = result;
+            this.tenantId = tenantId;
+            this.tenantDomain = tenantDomain;
+            this.context = context;
+        }
+
+        String format() {
+            return String.format(SAML2SSOAuthenticatorConstants.AUDIT_MESSAGE, initiator, action, target, data,
+                    result);
+        }
+    }
+}
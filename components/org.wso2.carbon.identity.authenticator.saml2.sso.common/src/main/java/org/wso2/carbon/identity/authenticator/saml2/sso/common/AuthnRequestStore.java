@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Remembers the authentication and logout requests sent to the IdP until their Response comes back, so that a Response
+ * can be correlated with its request through the relay state or its InResponseTo.
+ * <p>
+ * The requests are kept in concurrent maps keyed by the relay state and by the request ID, and each request is
+ * consumed at most once. A request can be looked up without consuming it, so that it is only consumed once its
+ * Response is accepted. The requests expire after a timeout and the oldest requests are dropped once the store is
+ * full, so requests whose Response never comes back do not pile up. Since all the requests live for the same time,
+ * the insertion order is also the expiry order. The expiry order is only maintained when a request is added, and
+ * the requests consumed out of order are compacted out of it once they outnumber the store.
+ */
+public class AuthnRequestStore {
+
+    private static final Log log = LogFactory.getLog(AuthnRequestStore.class);
+
+    private static final int DEFAULT_MAX_ENTRIES = 10000;
+    private static final int DEFAULT_TIMEOUT_SECONDS = 300;
+
+    private final int maxEntries;
+    private final long timeoutMillis;
+    private final ConcurrentMap<String, PendingRequest> byRelayState = new ConcurrentHashMap<String, PendingRequest>();
+    private final ConcurrentMap<String, PendingRequest> byRequestId = new ConcurrentHashMap<String, PendingRequest>();
+    // Guarded by itself.
+    private final Queue<PendingRequest> expiryOrder = new ArrayDeque<PendingRequest>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param maxEntries    maximum number of requests remembered at a time
+     * @param timeoutMillis time a request is remembered for
+     */
+    public AuthnRequestStore(int maxEntries, long timeoutMillis) {
+        this.maxEntries = maxEntries;
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Build a request store from the authenticator configuration. AuthnRequestTimeout is given in seconds.
+     *
+     * @param parameters authenticator configuration parameters, may be null
+     * @return request store
+     */
+    public static AuthnRequestStore create(Map<String, String> parameters) {
+        int maxEntries = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.AUTHN_REQUEST_MAX_ENTRIES,
+                DEFAULT_MAX_ENTRIES, 1);
+        int timeout = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.AUTHN_REQUEST_TIMEOUT,
+                DEFAULT_TIMEOUT_SECONDS, 1);
+        return new AuthnRequestStore(maxEntries, TimeUnit.SECONDS.toMillis(timeout));
+    }
+
+    /**
+     * Remember a request sent to the IdP.
+     *
+     * @param relayState relay state sent with the request
+     * @param requestId  ID of the request, may be null
+     * @param now        current time in epoch milliseconds
+     */
+    public void add(String relayState, String requestId, long now) {
+        if (relayState == null) {
+            return;
+        }
+        PendingRequest request = new PendingRequest(relayState, requestId, now + timeoutMillis);
+        PendingRequest previous = byRelayState.put(relayState, request);
+        if (previous != null) {
+            remove(previous);
+        } else {
+            size.incrementAndGet();
+        }
+        if (requestId != null) {
+            byRequestId.put(requestId, request);
+        }
+        synchronized (expiryOrder) {
+            expiryOrder.offer(request);
+            evict(now);
+        }
+    }
+
+    /**
+     * Look up the request a Response is sent for, by its relay state, without consuming it.
+     *
+     * @param relayState relay state of the Response
+     * @param now        current time in epoch milliseconds
+     * @return the request, or null if it is unknown, expired or already consumed
+     */
+    public PendingRequest get(String relayState, long now) {
+        if (relayState == null) {
+            return null;
+        }
+        return pending(byRelayState.get(relayState), now);
+    }
+
+    /**
+     * Look up the request a Response is sent for, by the InResponseTo of the Response, without consuming it.
+     *
+     * @param requestId ID of the request
+     * @param now       current time in epoch milliseconds
+     * @return the request, or null if it is unknown, expired or already consumed
+     */
+    public PendingRequest getByRequestId(String requestId, long now) {
+        if (requestId == null) {
+            return null;
+        }
+        PendingRequest request = byRequestId.get(requestId);
+        if (request == null || byRelayState.get(request.relayState) != request) {
+            return null;
+        }
+        return pending(request, now);
+    }
+
+    /**
+     * Consume the request a Response is sent for, by its relay state.
+     *
+     * @param relayState relay state of the Response
+     * @param now        current time in epoch milliseconds
+     * @return the request, or null if it is unknown, expired or already consumed
+     */
+    public PendingRequest consume(String relayState, long now) {
+        if (relayState == null) {
+            return null;
+        }
+        PendingRequest request = byRelayState.remove(relayState);
+        return consumed(request, now);
+    }
+
+    /**
+     * Consume the request a Response is sent for, by the InResponseTo of the Response.
+     *
+     * @param requestId ID of the request
+     * @param now       current time in epoch milliseconds
+     * @return the request, or null if it is unknown, expired or already consumed
+     */
+    public PendingRequest consumeByRequestId(String requestId, long now) {
+        if (requestId == null) {
+            return null;
+        }
+        PendingRequest request = byRequestId.get(requestId);
+        if (request == null || !byRelayState.remove(request.relayState, request)) {
+            return null;
+        }
+        return consumed(request, now);
+    }
+
+    /**
+     * @return number of requests remembered
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Complete the consumption of a request which was removed from the relay state index by this thread.
+     */
+    private PendingRequest consumed(PendingRequest request, long now) {
+        if (request == null) {
+            return null;
+        }
+        size.decrementAndGet();
+        if (request.requestId != null) {
+            byRequestId.remove(request.requestId, request);
+        }
+        return request.expiry > now ? request : null;
+    }
+
+    private PendingRequest pending(PendingRequest request, long now) {
+        return request != null && request.expiry > now ? request : null;
+    }
+
+    /**
+     * Drop a request which is replaced by a request with the same relay state.
+     */
+    private void remove(PendingRequest request) {
+        if (request.requestId != null) {
+            byRequestId.remove(request.requestId, request);
+        }
+    }
+
+    /**
+     * Drop the expired requests and, if the store is full, the oldest requests. The requests which are already consumed
+     * are only skipped, they were removed from the indexes when they were consumed. Must be called while holding the
+     * lock of the expiry order.
+     */
+    private void evict(long now) {
+        PendingRequest oldest;
+        while ((oldest = expiryOrder.peek()) != null) {
+            boolean live = byRelayState.get(oldest.relayState) == oldest;
+            if (live && oldest.expiry > now && size.get() <= maxEntries) {
+                break;
+            }
+            expiryOrder.poll();
+            if (live && byRelayState.remove(oldest.relayState, oldest)) {
+                consumed(oldest, now);
+                if (oldest.expiry > now && log.isDebugEnabled()) {
+                    log.debug("The request store is full. Dropped the request with the relay state : " +
+                            oldest.relayState);
+                }
+            }
+        }
+        // The requests consumed behind a live request stay in the expiry order until they reach its head. Drop them
+        // once they outnumber the store, so that the expiry order is bounded by the store and not by the login rate.
+        if (expiryOrder.size() > 2 * maxEntries) {
+            Iterator<PendingRequest> iterator = expiryOrder.iterator();
+            while (iterator.hasNext()) {
+                PendingRequest request = iterator.next();
+                if (byRelayState.get(request.relayState) != request) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * A request sent to the IdP whose Response has not come back yet.
+     */
+    public static class PendingRequest {
+
+        private final String relayState;
+        private final String requestId;
+        private final long expiry;
+
+        PendingRequest(String relayState, String requestId, long expiry) {
+            this.relayState = relayState;
+            this.requestId = requestId;
+            this.expiry = expiry;
+        }
+
+        public String getRelayState() {
+            return relayState;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the number of logins doing signature verification or decryption at the same time.
+ * <p>
+ * When all the permits are taken a login waits for a short time and is then rejected, so that under a burst of logins
+ * the admitted ones keep a normal latency and the others are told to retry instead of queueing up on the request
+ * threads.
+ */
+public class CryptoAdmissionController {
+
+    private static final Log log = LogFactory.getLog(CryptoAdmissionController.class);
+
+    private static final long DEFAULT_QUEUE_TIMEOUT_MILLIS = 100;
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 5;
+    private static final long REJECTION_LOG_INTERVAL = 1000;
+
+    private final Semaphore permits;
+    private final int maxConcurrency;
+    private final long queueTimeoutMillis;
+    private final int retryAfterSeconds;
+    private final AtomicInteger waitingCount = new AtomicInteger();
+    private final AtomicLong admittedCount = new AtomicLong();
+    private final AtomicLong queuedCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+
+    /**
+     * @param maxConcurrency     number of logins allowed to do cryptographic work at the same time
+     * @param queueTimeoutMillis time a login waits for a permit before it is rejected
+     * @param retryAfterSeconds  time after which a rejected client is asked to retry
+     */
+    public CryptoAdmissionController(int maxConcurrency, long queueTimeoutMillis, int retryAfterSeconds) {
+        this.permits = new Semaphore(maxConcurrency);
+        this.maxConcurrency = maxConcurrency;
+        this.queueTimeoutMillis = queueTimeoutMillis;
+        this.retryAfterSeconds = retryAfterSeconds;
+    }
+
+    /**
+     * Build an admission controller from the authenticator configuration. The admission control is enabled by the
+     * CryptoMaxConcurrency parameter, CryptoQueueTimeout is given in milliseconds and CryptoRetryAfter in seconds.
+     *
+     * @param parameters authenticator configuration parameters
+     * @return admission controller, or null if the admission control is not configured
+     */
+    public static CryptoAdmissionController create(Map<String, String> parameters) {
+        if (parameters == null) {
+            return null;
+        }
+        int maxConcurrency = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.CRYPTO_MAX_CONCURRENCY,
+                0, 0);
+        if (maxConcurrency <= 0) {
+            return null;
+        }
+        long queueTimeoutMillis = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.CRYPTO_QUEUE_TIMEOUT,
+                (int) DEFAULT_QUEUE_TIMEOUT_MILLIS, 0);
+        int retryAfterSeconds = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.CRYPTO_RETRY_AFTER,
+                DEFAULT_RETRY_AFTER_SECONDS, 0);
+        if (log.isDebugEnabled()) {
+            log.debug("Cryptographic work of the SAML2 logins is limited to " + maxConcurrency + " concurrent " +
+                    "logins with a queue timeout of " + queueTimeoutMillis + " ms");
+        }
+        return new CryptoAdmissionController(maxConcurrency, queueTimeoutMillis, retryAfterSeconds);
+    }
+
+    /**
+     * Take a permit, waiting at most the queue timeout for one. A login which is admitted has to call
+     * {@link #release()} once its cryptographic work is done.
+     *
+     * @return true if the login is admitted, false if it has to be rejected
+     */
+    public boolean acquire() {
+        if (permits.tryAcquire()) {
+            admittedCount.incrementAndGet();
+            return true;
+        }
+        queuedCount.incrementAndGet();
+        waitingCount.incrementAndGet();
+        boolean admitted = false;
+        try {
+            admitted = permits.tryAcquire(queueTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            waitingCount.decrementAndGet();
+        }
+        if (admitted) {
+            admittedCount.incrementAndGet();
+        } else if (rejectedCount.incrementAndGet() % REJECTION_LOG_INTERVAL == 1) {
+            log.warn("SAML2 logins are rejected since " + maxConcurrency + " logins are already doing " +
+                    "cryptographic work. Rejected logins so far : " + rejectedCount.get());
+        }
+        return admitted;
+    }
+
+    public void release() {
+        permits.release();
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
+    public int getAvailablePermits() {
+        return permits.availablePermits();
+    }
+
+    /**
+     * @return number of logins currently waiting for a permit
+     */
+    public int getWaitingCount() {
+        return waitingCount.get();
+    }
+
+    public long getAdmittedCount() {
+        return admittedCount.get();
+    }
+
+    /**
+     * @return number of logins which had to wait for a permit, whether they were admitted or not
+     */
+    public long getQueuedCount() {
+        return queuedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.core.xml.XMLObject;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Releases the DOM backing a parsed SAML2 message once it is no longer required.
+ * <p>
+ * OpenSAML keeps the DOM a message was unmarshalled from, next to the XMLObject tree, so that the signatures can be
+ * verified against the original document. Once the signatures are verified, or once it is known that they are
+ * verified elsewhere, only the XMLObject tree is used, and keeping the DOM only doubles the heap a login holds on to
+ * for as long as the message is referenced.
+ * <p>
+ * The number of released documents is always counted. When debug logging is enabled, the size of each released
+ * document is measured as well. The counted nodes and characters are the part of the heap which is retained by a login
+ * when the DOM is kept and which is freed once it is released. Measuring walks the whole document, so it is not done
+ * on the login path otherwise.
+ */
+public class DOMRetentionPolicy {
+
+    private static final Log log = LogFactory.getLog(DOMRetentionPolicy.class);
+
+    private final AtomicLong releasedCount = new AtomicLong();
+    private final AtomicLong measuredCount = new AtomicLong();
+    private final AtomicLong releasedNodes = new AtomicLong();
+    private final AtomicLong releasedCharacters = new AtomicLong();
+
+    /**
+     * Build a DOM retention policy from the authenticator configuration. The DOM is released unless the ReleaseDOM
+     * parameter is set to false.
+     *
+     * @param parameters authenticator configuration parameters
+     * @return DOM retention policy, or null if the DOM is to be kept
+     */
+    public static DOMRetentionPolicy create(Map<String, String> parameters) {
+        if (parameters != null && "false".equalsIgnoreCase(parameters.get(
+                SAML2SSOAuthenticatorConstants.RELEASE_DOM))) {
+            return null;
+        }
+        return new DOMRetentionPolicy();
+    }
+
+    /**
+     * Release the DOM of the given messages and of all their children. Messages which no longer have a DOM are
+     * skipped, so a message may be released more than once.
+     *
+     * @param xmlObjects messages, such as a Response and its decrypted Assertion, null values are ignored
+     */
+    public void release(XMLObject... xmlObjects) {
+        Document released = null;
+        for (XMLObject xmlObject : xmlObjects) {
+            if (xmlObject == null || xmlObject.getDOM() == null) {
+                continue;
+            }
+            Document document = xmlObject.getDOM().getOwnerDocument();
+            // A decrypted Assertion has a document of its own, an unencrypted one shares the document of its Response.
+            if (document != null && document != released) {
+                releasedCount.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    record(document);
+                }
+                released = document;
+            }
+            xmlObject.releaseChildrenDOM(true);
+            xmlObject.releaseDOM();
+        }
+    }
+
+    /**
+     * @return number of documents released
+     */
+    public long getReleasedCount() {
+        return releasedCount.get();
+    }
+
+    /**
+     * @return average number of nodes of a released document, or 0 if no document is measured
+     */
+    public long getAverageReleasedNodes() {
+        long count = measuredCount.get();
+        return count == 0 ? 0 : releasedNodes.get() / count;
+    }
+
+    /**
+     * @return average size of the text and the attribute values of a released document, in bytes, or 0 if no
+     * document is measured
+     */
+    public long getAverageReleasedCharacterBytes() {
+        long count = measuredCount.get();
+        return count == 0 ? 0 : releasedCharacters.get() * 2 / count;
+    }
+
+    private void record(Document document) {
+        Element root = document.getDocumentElement();
+        if (root == null) {
+            return;
+        }
+        long nodes = 0;
+        long characters = 0;
+        // Walk the document in document order without recursion, so a deeply nested message can not exhaust the stack.
+        Node node = root;
+        while (node != null) {
+            nodes++;
+            String value = node.getNodeValue();
+            if (value != null) {
+                characters += value.length();
+            }
+            NamedNodeMap attributes = node.getAttributes();
+            if (attributes != null) {
+                for (int i = 0; i < attributes.getLength(); i++) {
+                    // The value of an attribute is counted here, its text children are not walked.
+                    nodes++;
+                    characters += attributes.item(i).getNodeValue().length();
+                }
+            }
+            node = next(node, root);
+        }
+        measuredCount.incrementAndGet();
+        releasedNodes.addAndGet(nodes);
+        releasedCharacters.addAndGet(characters);
+    }
+
+    /**
+     * @return node following the given node in document order, or null once the subtree of the root is walked
+     */
+    private static Node next(Node node, Node root) {
+        if (node.getFirstChild() != null) {
+            return node.getFirstChild();
+        }
+        while (node != root) {
+            if (node.getNextSibling() != null) {
+                return node.getNextSibling();
+            }
+            node = node.getParentNode();
+        }
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "DOMRetentionPolicy{released=" + getReleasedCount() + ", measured=" + measuredCount.get() +
+                ", avgNodes=" + getAverageReleasedNodes() +
+                ", avgCharacterBytes=" + getAverageReleasedCharacterBytes() + "}";
+    }
+}
@@ -65,6 +65,31 @@ public final class SAML2SSOAuthenticatorConstants {
     public static final String AUDIT_ACTION_LOGOUT = "Logout";
     public static final String AUDIT_RESULT_SUCCESS = "Success";
     public static final String AUDIT_RESULT_FAILED = "Failed";
+    public static final String AUDIT_LOG_ASYNC_ENABLED = "AuditLogAsyncEnabled";
+    public static final String AUDIT_LOG_BUFFER_SIZE = "AuditLogBufferSize";
+    public static final String AUDIT_LOG_OVERFLOW_POLICY = "AuditLogOverflowPolicy";
+    public static final String REPLAY_CACHE_ENABLED = "ReplayCacheEnabled";
+    public static final String REPLAY_CACHE_MAX_ENTRIES = "ReplayCacheMaxEntries";
+    public static final String REPLAY_CACHE_FAIL_CLOSED = "ReplayCacheFailClosed";
+    public static final String TIME_STAMP_SKEW = "TimestampSkew";
+    public static final int DEFAULT_TIME_STAMP_SKEW = 300;
+    public static final String TRUSTED_ISSUERS = "TrustedIssuers";
+    public static final String CRYPTO_MAX_CONCURRENCY = "CryptoMaxConcurrency";
+    public static final String CRYPTO_QUEUE_TIMEOUT = "CryptoQueueTimeout";
+    public static final String CRYPTO_RETRY_AFTER = "CryptoRetryAfter";
+    public static final String STUB_POOL_ENABLED = "StubPoolEnabled";
+    public static final String STUB_POOL_MAX_IDLE = "StubPoolMaxIdle";
+    public static final String COMPRESSED_LOGIN_ENABLED = "CompressedLoginEnabled";
+    public static final String BACKEND_CONNECT_TIMEOUT = "BackendConnectTimeout";
+    public static final String BACKEND_READ_TIMEOUT = "BackendReadTimeout";
+    public static final String BACKEND_FAILURE_THRESHOLD = "BackendFailureThreshold";
+    public static final String BACKEND_CIRCUIT_OPEN_TIME = "BackendCircuitOpenTime";
+    public static final String LOGIN_MAX_CONCURRENCY = "LoginMaxConcurrency";
+    public static final String FEDERATION_MAX_CONCURRENCY = "FederationMaxConcurrency";
+    public static final String RELEASE_DOM = "ReleaseDOM";
+    public static final String AUTHN_REQUEST_TIMEOUT = "AuthnRequestTimeout";
+    public static final String AUTHN_REQUEST_MAX_ENTRIES = "AuthnRequestMaxEntries";
+    public static final String VALIDATE_IN_RESPONSE_TO = "ValidateInResponseTo";
 
     public static final class ErrorMessageConstants {
         private ErrorMessageConstants(){
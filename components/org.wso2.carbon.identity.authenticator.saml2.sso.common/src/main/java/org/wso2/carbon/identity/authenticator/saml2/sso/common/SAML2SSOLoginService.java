@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.opensaml.saml.saml2.core.Response;
+
+import javax.servlet.http.HttpSession;
+
+/**
+ * Login of the SAML2 SSO Authenticator BE, registered as an OSGi service so that a co-located FE can log a user in
+ * without a SOAP call to the SAML2SSOAuthenticationService.
+ * <p>
+ * The Response is passed as already parsed by the FE. The BE still validates it in full, including the signatures and
+ * the decryption, hence the FE is not trusted with any of the checks.
+ */
+public interface SAML2SSOLoginService {
+
+    /**
+     * @param response        SAML2 Response parsed by the FE
+     * @param encodedResponse SAML2 Response as submitted by the client, may be null
+     * @param httpSession     session to log the user in to
+     * @return true if the user is logged in
+     */
+    boolean login(Response response, String encodedResponse, HttpSession httpSession);
+}
@@ -15,10 +15,8 @@
  */
 package org.wso2.carbon.identity.authenticator.saml2.sso.common;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * This class is used to hold the list of authentication requests sent for authentication.
@@ -27,8 +25,9 @@ public class SSOSessionManager {
     private  SSOSessionManager(){
 
     }
-    private static List<String> relayStateList = new ArrayList<String>();
-    private static Map<String, FederatedSSOToken> federatedTokenHolder = new HashMap<String, FederatedSSOToken>();
+    private static volatile AuthnRequestStore authnRequestStore = AuthnRequestStore.create(null);
+    private static ConcurrentMap<String, FederatedSSOToken> federatedTokenHolder =
+            new ConcurrentHashMap<String, FederatedSSOToken>();
 
 
     /**
@@ -38,14 +37,49 @@ public class SSOSessionManager {
      * @return true, if it is a valid response
      */
     public static boolean isValidResponse(String relayStateId) {
-        if (relayStateId == null) {
-            return false;
-        } else if (relayStateList.contains((String) relayStateId)) {
-            // remove the relay state id from the list, and return TRUE
-            relayStateList.remove(relayStateId);
-            return true;
+        // the request is removed from the store, and a relay state is valid only once
+        return authnRequestStore.consume(relayStateId, System.currentTimeMillis()) != null;
+    }
+
+    /**
+     * Verify whether the response is sent for a pending request of this server, by its RELAY - STATE Id and its
+     * InResponseTo. The request is not consumed, so that a forged response can not use up the request of another
+     * user. Consume it with {@link #isValidResponse(String, String)} once the response is accepted.
+     *
+     * @param relayStateId RELAY STATE sent with the response
+     * @param inResponseTo InResponseTo of the response, may be null
+     * @return true, if both identify the same pending request
+     */
+    public static boolean isPendingResponse(String relayStateId, String inResponseTo) {
+        long now = System.currentTimeMillis();
+        AuthnRequestStore.PendingRequest request = authnRequestStore.get(relayStateId, now);
+        if (request == null) {
+            // The IdP may not return the relay state, the InResponseTo still identifies the request.
+            request = authnRequestStore.getByRequestId(inResponseTo, now);
         }
-        return false;
+        return isSentFor(request, inResponseTo);
+    }
+
+    /**
+     * Verify whether the response is sent for a request of this server, by its RELAY - STATE Id and its InResponseTo.
+     * The request is consumed either way.
+     *
+     * @param relayStateId RELAY STATE sent with the response
+     * @param inResponseTo InResponseTo of the response, may be null
+     * @return true, if both identify the same request
+     */
+    public static boolean isValidResponse(String relayStateId, String inResponseTo) {
+        long now = System.currentTimeMillis();
+        AuthnRequestStore.PendingRequest request = authnRequestStore.consume(relayStateId, now);
+        if (request == null) {
+            // The IdP may not return the relay state, the InResponseTo still identifies the request.
+            request = authnRequestStore.consumeByRequestId(inResponseTo, now);
+        }
+        return isSentFor(request, inResponseTo);
+    }
+
+    private static boolean isSentFor(AuthnRequestStore.PendingRequest request, String inResponseTo) {
+        return request != null && (request.getRequestId() == null || request.getRequestId().equals(inResponseTo));
     }
 
     /**
@@ -54,7 +88,31 @@ public class SSOSessionManager {
      * @param relayStateId RELAY STATE sent with the request
      */
     public static void addAuthnRequest(String relayStateId) {
-        relayStateList.add(relayStateId);
+        addAuthnRequest(relayStateId, null);
+    }
+
+    /**
+     * Add a new authentication or logout request which is sent to the IdP.
+     *
+     * @param relayStateId RELAY STATE sent with the request
+     * @param requestId    ID of the request, may be null
+     */
+    public static void addAuthnRequest(String relayStateId, String requestId) {
+        authnRequestStore.add(relayStateId, requestId, System.currentTimeMillis());
+    }
+
+    public static AuthnRequestStore getAuthnRequestStore() {
+        return authnRequestStore;
+    }
+
+    /**
+     * Replace the store of the requests, e.g. with one built from the authenticator configuration. The requests in
+     * the previous store are dropped.
+     *
+     * @param store request store
+     */
+    public static void setAuthnRequestStore(AuthnRequestStore store) {
+        authnRequestStore = store;
     }
 
     public static void addFederatedToken(String tokenId, FederatedSSOToken token) {
@@ -64,4 +122,12 @@ public class SSOSessionManager {
     public static FederatedSSOToken getFederatedToken(String tokenId) {
         return federatedTokenHolder.remove(tokenId);
     }
+
+    /**
+     * @param tokenId id of the federated token
+     * @return true, if a federated login is waiting for the token
+     */
+    public static boolean containsFederatedToken(String tokenId) {
+        return tokenId != null && federatedTokenHolder.containsKey(tokenId);
+    }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.common;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.Issuer;
+import org.opensaml.saml.saml2.core.Response;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Set of the IdP entity IDs which are trusted to issue SAML2 Responses and Assertions.
+ * <p>
+ * The issuers are checked right after a message is unmarshalled, so messages from unknown issuers are rejected before
+ * they are decrypted or their signatures are verified. Encrypted assertions can not be checked at that point, hence a
+ * Response which carries only encrypted assertions must have an Issuer of its own.
+ */
+public class TrustedIssuerIndex {
+
+    private static final Log log = LogFactory.getLog(TrustedIssuerIndex.class);
+
+    /**
+     * Reason for rejecting a message.
+     */
+    public enum RejectionReason {
+        /**
+         * An assertion has no Issuer, or a Response which carries only encrypted assertions has no Issuer.
+         */
+        MISSING_ISSUER,
+        /**
+         * The Issuer of the Response is not trusted.
+         */
+        UNTRUSTED_RESPONSE_ISSUER,
+        /**
+         * The Issuer of an assertion is not trusted.
+         */
+        UNTRUSTED_ASSERTION_ISSUER
+    }
+
+    private final Set<String> trustedIssuers;
+    private final AtomicLong[] rejectionCounts;
+
+    /**
+     * @param trustedIssuers entity IDs of the trusted IdPs
+     */
+    public TrustedIssuerIndex(Set<String> trustedIssuers) {
+        this.trustedIssuers = Collections.unmodifiableSet(new HashSet<String>(trustedIssuers));
+        this.rejectionCounts = new AtomicLong[RejectionReason.values().length];
+        for (int i = 0; i < rejectionCounts.length; i++) {
+            rejectionCounts[i] = new AtomicLong();
+        }
+    }
+
+    /**
+     * Build a trusted issuer index from the <Parameter name="TrustedIssuers"> configuration, which is a comma
+     * separated list of IdP entity IDs.
+     *
+     * @param parameters authenticator configuration parameters
+     * @return trusted issuer index, or null if no trusted issuers are configured
+     */
+    public static TrustedIssuerIndex create(Map<String, String> parameters) {
+        String trustedIssuersParam = parameters == null ? null :
+                parameters.get(SAML2SSOAuthenticatorConstants.TRUSTED_ISSUERS);
+        if (StringUtils.isBlank(trustedIssuersParam)) {
+            return null;
+        }
+        Set<String> trustedIssuers = new HashSet<String>();
+        for (String issuer : StringUtils.split(trustedIssuersParam, ',')) {
+            if (StringUtils.isNotBlank(issuer)) {
+                trustedIssuers.add(issuer.trim());
+            }
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("Trusted SAML2 issuers : " + trustedIssuers);
+        }
+        return new TrustedIssuerIndex(trustedIssuers);
+    }
+
+    /**
+     * Check the issuers of an unmarshalled SAML2 Response or Assertion.
+     *
+     * @param xmlObject unmarshalled SAML2 Response or Assertion
+     * @return reason for rejecting the message, or null if the message is issued by a trusted issuer
+     */
+    public RejectionReason check(XMLObject xmlObject) {
+        RejectionReason reason = null;
+        if (xmlObject instanceof Response) {
+            reason = check((Response) xmlObject);
+        } else if (xmlObject instanceof Assertion) {
+            reason = check((Assertion) xmlObject);
+        }
+        if (reason != null) {
+            rejectionCounts[reason.ordinal()].incrementAndGet();
+        }
+        return reason;
+    }
+
+    public boolean isTrusted(String issuer) {
+        return issuer != null && trustedIssuers.contains(issuer);
+    }
+
+    public Set<String> getTrustedIssuers() {
+        return trustedIssuers;
+    }
+
+    /**
+     * @param reason rejection reason
+     * @return number of messages rejected for the given reason
+     */
+    public long getRejectionCount(RejectionReason reason) {
+        return rejectionCounts[reason.ordinal()].get();
+    }
+
+    private RejectionReason check(Response response) {
+        String responseIssuer = getValue(response.getIssuer());
+        if (responseIssuer != null && !isTrusted(responseIssuer)) {
+            return RejectionReason.UNTRUSTED_RESPONSE_ISSUER;
+        }
+        List<Assertion> assertions = response.getAssertions();
+        if (assertions != null) {
+            for (int i = 0; i < assertions.size(); i++) {
+                RejectionReason reason = check(assertions.get(i));
+                if (reason != null) {
+                    return reason;
+                }
+            }
+        }
+        // Responses without assertions (e.g. NoPassive status responses) do not authenticate anyone, they are let
+        // through to be handled by their status.
+        if (responseIssuer == null && (assertions == null || assertions.isEmpty()) &&
+                response.getEncryptedAssertions() != null && !response.getEncryptedAssertions().isEmpty()) {
+            return RejectionReason.MISSING_ISSUER;
+        }
+        return null;
+    }
+
+    private RejectionReason check(Assertion assertion) {
+        // Issuer is mandatory in an assertion.
+        String assertionIssuer = getValue(assertion.getIssuer());
+        if (!isTrusted(assertionIssuer)) {
+            return assertionIssuer == null ? RejectionReason.MISSING_ISSUER :
+                    RejectionReason.UNTRUSTED_ASSERTION_ISSUER;
+        }
+        return null;
+    }
+
+    private static String getValue(Issuer issuer) {
+        return issuer != null && issuer.getValue() != null ? issuer.getValue().trim() : null;
+    }
+}
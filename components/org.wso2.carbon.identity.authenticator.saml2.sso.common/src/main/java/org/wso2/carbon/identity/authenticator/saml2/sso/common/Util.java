@@ -23,8 +23,6 @@ import org.apache.xml.security.c14n.Canonicalizer;
 import org.opensaml.core.xml.config.XMLObjectProviderRegistrySupport;
 import net.shibboleth.utilities.java.support.security.RandomIdentifierGenerationStrategy;
 import org.opensaml.saml.saml2.core.Assertion;
-import org.opensaml.saml.saml2.core.Attribute;
-import org.opensaml.saml.saml2.core.AttributeStatement;
 import org.opensaml.saml.saml2.core.AuthnRequest;
 import org.opensaml.saml.saml2.core.EncryptedAssertion;
 import org.opensaml.saml.saml2.core.LogoutRequest;
@@ -117,6 +115,7 @@ public class Util {
     private static boolean initSuccess = false;
     private static Properties saml2IdpProperties = new Properties();
     private static Map<String, String> cachedIdps = new ConcurrentHashMap<String, String>();
+    private static volatile AssertionAttributeExtractor attributeExtractor = null;
 
     /**
      * Constructing the XMLObject Object from a String
@@ -417,12 +416,40 @@ public class Util {
             externalLogoutPage = parameters.get(SAML2SSOAuthenticatorConstants.EXTERNAL_LOGOUT_PAGE);
             logoutSupportedIDP = Boolean.parseBoolean(parameters.get(SAML2SSOAuthenticatorConstants.LOGOUT_SUPPORTED_IDP));
             assertionConsumerServiceUrl = parameters.get(SAML2SSOAuthenticatorConstants.ASSERTION_CONSUMER_SERVICE_URL);
+            attributeExtractor = null;
 
             initSuccess = true;
         }
         return initSuccess;
     }
 
+    /**
+     * Read an integer parameter of the authenticator configuration.
+     *
+     * @param parameters   authenticator configuration parameters, may be null
+     * @param name         name of the parameter
+     * @param defaultValue value used if the parameter is not set or is not valid
+     * @param minValue     smallest valid value of the parameter
+     * @return value of the parameter, or the default value
+     */
+    public static int getIntParameter(Map<String, String> parameters, String name, int defaultValue, int minValue) {
+        String value = parameters == null ? null : parameters.get(name);
+        if (StringUtils.isBlank(value)) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value.trim());
+            if (intValue >= minValue) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // Logged below.
+        }
+        log.warn("Invalid value : " + value + " for " + name + ". The value has to be an integer not less than " +
+                minValue + ". Using the default value : " + defaultValue);
+        return defaultValue;
+    }
+
     /**
      * checks whether authenticator enable ot disable
      *
@@ -638,36 +665,23 @@ public class Util {
      */
     public static String getUsernameFromAssertion(Assertion assertion) {
 
-        String loginAttributeName = getLoginAttributeName();
-
-        if (loginAttributeName != null) {
-            // There can be multiple AttributeStatements in Assertion
-            List<AttributeStatement> attributeStatements = assertion
-                    .getAttributeStatements();
-            if (attributeStatements != null) {
-                for (AttributeStatement attributeStatement : attributeStatements) {
-                    // There can be multiple Attributes in a
-                    // attributeStatement
-                    List<Attribute> attributes = attributeStatement
-                            .getAttributes();
-                    if (attributes != null) {
-                        for (Attribute attribute : attributes) {
-                            String attributeName = attribute.getDOM()
-                                    .getAttribute("Name");
-                            if (attributeName.equals(loginAttributeName)) {
-                                List<XMLObject> attributeValues = attribute
-                                        .getAttributeValues();
-                                // There can be multiple attribute values in
-                                // a attribute, but get the first one
-                                return attributeValues.get(0).getDOM()
-                                        .getTextContent();
-                            }
-                        }
-                    }
-                }
-            }
+        return getAttributeExtractor().extract(assertion).getUsername();
+    }
+
+    /**
+     * Returns the extractor used to read the username and the session index from SAML2 Assertions. The extractor is
+     * built once from the SSO configuration.
+     *
+     * @return assertion attribute extractor
+     */
+    public static AssertionAttributeExtractor getAttributeExtractor() {
+
+        AssertionAttributeExtractor extractor = attributeExtractor;
+        if (extractor == null) {
+            extractor = new AssertionAttributeExtractor(getLoginAttributeName(), null, null);
+            attributeExtractor = extractor;
         }
-        return assertion.getSubject().getNameID().getValue();
+        return extractor;
     }
 
     /**
@@ -0,0 +1,87 @@
+/*
+*  Copyright (c) 2005-2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.identity.authenticator.saml2.sso.ui;
+
+import org.opensaml.saml.saml2.core.Assertion;
+import org.opensaml.saml.saml2.core.AuthnStatement;
+import org.opensaml.saml.saml2.core.Response;
+import org.wso2.carbon.utils.multitenancy.MultitenantUtils;
+
+import java.util.List;
+
+/**
+ * What the SSOAssertionConsumerService resolved from a SAML2 Response, handed over to the SAML2SSOUIAuthenticator
+ * as a request attribute.
+ * <p>
+ * The assertion is decrypted and the username and the session index are read once by the SSOAssertionConsumerService,
+ * so the login does not walk the Response or decrypt the assertion again. The context lives only as long as the login
+ * request.
+ */
+public class SAMLResponseContext {
+
+    private final Response response;
+    private final Assertion assertion;
+    private final String username;
+    private final String sessionIndex;
+    private final String tenantDomain;
+
+    /**
+     * @param response  SAML2 Response
+     * @param assertion assertion of the Response, decrypted if the Response carries an encrypted assertion
+     * @param username  username read from the assertion
+     */
+    public SAMLResponseContext(Response response, Assertion assertion, String username) {
+        this.response = response;
+        this.assertion = assertion;
+        this.username = username;
+        this.sessionIndex = getSessionIndex(assertion);
+        this.tenantDomain = MultitenantUtils.getTenantDomain(username);
+    }
+
+    public Response getResponse() {
+        return response;
+    }
+
+    public Assertion getAssertion() {
+        return assertion;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    /**
+     * @return session index of the IdP, or null if the IdP did not send one
+     */
+    public String getSessionIndex() {
+        return sessionIndex;
+    }
+
+    public String getTenantDomain() {
+        return tenantDomain;
+    }
+
+    private static String getSessionIndex(Assertion assertion) {
+        List<AuthnStatement> authnStatements = assertion.getAuthnStatements();
+        if (authnStatements != null && authnStatements.size() > 0) {
+            // There can be only one authentication stmt inside the SAML assertion of a SAML Response
+            return authnStatements.get(0).getSessionIndex();
+        }
+        return null;
+    }
+}
@@ -22,7 +22,6 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.opensaml.saml.saml2.core.Assertion;
-import org.opensaml.saml.saml2.core.AuthnStatement;
 import org.opensaml.saml.saml2.core.EncryptedAssertion;
 import org.opensaml.saml.saml2.core.LogoutRequest;
 import org.opensaml.saml.saml2.core.LogoutResponse;
@@ -31,13 +30,17 @@ import org.opensaml.saml.saml2.core.SessionIndex;
 import org.opensaml.saml.saml2.core.Subject;
 import org.opensaml.core.xml.XMLObject;
 import org.wso2.carbon.CarbonConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionReplayCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.CryptoAdmissionController;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.FederatedSSOToken;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOAuthenticatorConstants;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOUIAuthenticatorException;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAMLConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.TrustedIssuerIndex;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.Util;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.authenticator.SAML2SSOUIAuthenticator;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.SAMLSSOServiceClient;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.internal.SAML2SSOAuthFEDataHolder;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.session.SSOSessionManager;
 import org.wso2.carbon.identity.sso.saml.stub.types.SAMLSSOAuthnReqDTO;
 import org.wso2.carbon.identity.sso.saml.stub.types.SAMLSSOReqValidationResponseDTO;
@@ -73,6 +76,7 @@ public class SSOAssertionConsumerService extends HttpServlet {
      * session timeout happens in 10 hours
      */
     private static final int SSO_SESSION_EXPIRE = 36000;
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
@@ -118,17 +122,13 @@ public class SSOAssertionConsumerService extends HttpServlet {
             return;
         }
 
-//        // If RELAY-STATE is invalid, redirect the users to an error page.
-//        if (!SSOSessionManager.isValidResponse(relayState)) {
-//            handleMalformedResponses(req, resp,
-//                                     SAML2SSOAuthenticatorConstants.ErrorMessageConstants.RESPONSE_INVALID);
-//            return;
-//        }
-
         // Handle valid messages, either SAML Responses or LogoutRequests
         try {
             XMLObject samlObject = Util.unmarshall(Util.decode(samlRespString));
             if (samlObject instanceof LogoutResponse) {   // if it is a logout response, redirect it to login page.
+                // Forget the logout request, the logout completes either way.
+                org.wso2.carbon.identity.authenticator.saml2.sso.common.SSOSessionManager.isValidResponse(
+                        req.getParameter(SAMLConstants.RELAY_STATE));
                 String externalLogoutPage = Util.getExternalLogoutPage();
                 if(externalLogoutPage != null && !externalLogoutPage.isEmpty()){
                     handleExternalLogout(req, resp, externalLogoutPage);
@@ -158,6 +158,51 @@ public class SSOAssertionConsumerService extends HttpServlet {
             throws ServletException, IOException, SAML2SSOUIAuthenticatorException {
         Response samlResponse;
         samlResponse = (Response) samlObject;
+        // Reject the Responses of unknown issuers before any cryptographic work is done.
+        TrustedIssuerIndex trustedIssuerIndex = SAML2SSOAuthFEDataHolder.getInstance().getTrustedIssuerIndex();
+        if (trustedIssuerIndex != null) {
+            TrustedIssuerIndex.RejectionReason reason = trustedIssuerIndex.check(samlResponse);
+            if (reason != null) {
+                log.error("SAML2 Response : " + samlResponse.getID() + " is not issued by a trusted issuer : " +
+                        reason);
+                handleErrorResponses(req, resp,
+                        SAML2SSOAuthenticatorConstants.ErrorMessageConstants.RESPONSE_INVALID);
+                return;
+            }
+        }
+        // Correlate the Response with the request sent to the IdP. The request is only consumed once the login
+        // succeeds, so that a Response which is rejected later on does not use up the request of the user.
+        String relayState = req.getParameter(SAMLConstants.RELAY_STATE);
+        if (SAML2SSOAuthFEDataHolder.getInstance().isInResponseToValidationEnabled() &&
+                !org.wso2.carbon.identity.authenticator.saml2.sso.common.SSOSessionManager.isPendingResponse(
+                        relayState, samlResponse.getInResponseTo()) &&
+                !org.wso2.carbon.identity.authenticator.saml2.sso.common.SSOSessionManager
+                        .containsFederatedToken(relayState)) {
+            log.error("SAML2 Response : " + samlResponse.getID() + " is not sent for a request of this server");
+            handleErrorResponses(req, resp, SAML2SSOAuthenticatorConstants.ErrorMessageConstants.RESPONSE_INVALID);
+            return;
+        }
+        // Reject the replayed Responses before the assertion is decrypted.
+        if (isReplayed(samlResponse)) {
+            log.error("SAML2 Response : " + samlResponse.getID() + " is already consumed. Possible replay attack!");
+            handleErrorResponses(req, resp, SAML2SSOAuthenticatorConstants.ErrorMessageConstants.RESPONSE_INVALID);
+            return;
+        }
+
+        processSAMLResponse(req, resp, samlResponse);
+    }
+
+    /**
+     * Resolve the assertion of a SAML Response which passed the issuer and replay checks, and forward it to the login.
+     *
+     * @param req          HttpServletRequest
+     * @param resp         HttpServletResponse
+     * @param samlResponse SAML Response
+     * @throws ServletException  Error when redirecting
+     * @throws IOException       Error when redirecting
+     */
+    private void processSAMLResponse(HttpServletRequest req, HttpServletResponse resp, Response samlResponse)
+            throws ServletException, IOException, SAML2SSOUIAuthenticatorException {
         List<Assertion> assertions = samlResponse.getAssertions();
         Assertion assertion = null;
         if (assertions != null && assertions.size() > 0) {
@@ -167,11 +212,25 @@ public class SSOAssertionConsumerService extends HttpServlet {
             EncryptedAssertion encryptedAssertion;
             if (encryptedAssertions.size() > 0) {
                 encryptedAssertion = encryptedAssertions.get(0);
+                // Only the decryption runs while the permit is held. The calls to the back end are limited by the
+                // bulkhead of the login calls instead.
+                CryptoAdmissionController admissionController =
+                        SAML2SSOAuthFEDataHolder.getInstance().getCryptoAdmissionController();
+                if (admissionController != null && !admissionController.acquire()) {
+                    log.warn("SAML2 Response : " + samlResponse.getID() + " is rejected since the server is busy");
+                    resp.setHeader(RETRY_AFTER_HEADER, String.valueOf(admissionController.getRetryAfterSeconds()));
+                    resp.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
                 try {
                     String tenantDomain = org.wso2.carbon.base.MultitenantConstants.SUPER_TENANT_DOMAIN_NAME;
                     assertion = Util.getDecryptedAssertion(encryptedAssertion, tenantDomain);
                 } catch (SAML2SSOUIAuthenticatorException e) {
                     throw new SAML2SSOUIAuthenticatorException("Unable to decrypt the SAML Assertion", e);
+                } finally {
+                    if (admissionController != null) {
+                        admissionController.release();
+                    }
                 }
             }
         }
@@ -207,7 +266,8 @@ public class SSOAssertionConsumerService extends HttpServlet {
         // Get the subject name from the Response Object and forward it to login_action.jsp
         String username = null;
         if (assertion.getSubject() != null && assertion.getSubject().getNameID() != null) {
-            username = Util.getUsernameFromResponse(samlResponse);
+            // The assertion is already decrypted, read the username from it instead of the Response.
+            username = Util.getUsernameFromAssertion(assertion);
         }
 
         if (log.isDebugEnabled()) {
@@ -258,24 +318,27 @@ public class SSOAssertionConsumerService extends HttpServlet {
                     ssoTokenID = tokenCookie.getValue();
                 }
 
-                handleFederatedSAMLRequest(req, resp, ssoTokenID, samlRequest, fedRelayState, authMode, assertion.getSubject(), rpSessionId);
+                // A single service client serves the validate and authenticate calls of the federated login.
+                HttpSession currentSession = req.getSession();
+                String serverURL = CarbonUIUtil.getServerURL(currentSession.getServletContext(), currentSession);
+                ConfigurationContext configContext = (ConfigurationContext) currentSession.getServletContext()
+                        .getAttribute(CarbonConstants.CONFIGURATION_CONTEXT);
+                SAMLSSOServiceClient ssoServiceClient = new SAMLSSOServiceClient(serverURL, configContext);
+                try {
+                    handleFederatedSAMLRequest(req, resp, ssoServiceClient, ssoTokenID, samlRequest, fedRelayState,
+                            authMode, assertion.getSubject(), rpSessionId);
+                } finally {
+                    ssoServiceClient.close();
+                }
             }
         }
 
         if (!isFederated) {
-            // Set the SAML2 Response as a HTTP Attribute, so it is not required to build the
-            // assertion again.
-            req.setAttribute(SAML2SSOAuthenticatorConstants.HTTP_ATTR_SAML2_RESP_TOKEN,
-                    samlResponse);
-
-
-            String sessionIndex = null;
-            List<AuthnStatement> authnStatements = assertion.getAuthnStatements();
-            if (authnStatements != null && authnStatements.size() > 0) {
-                // There can be only one authentication stmt inside the SAML assertion of a SAML Response
-                AuthnStatement authStmt = authnStatements.get(0);
-                sessionIndex = authStmt.getSessionIndex();
-            }
+            // Set what is resolved from the SAML2 Response as a HTTP Attribute, so it is not required to build
+            // the assertion again.
+            SAMLResponseContext responseContext = new SAMLResponseContext(samlResponse, assertion, username);
+            req.setAttribute(SAML2SSOAuthenticatorConstants.HTTP_ATTR_SAML2_RESP_TOKEN, responseContext);
+            String sessionIndex = responseContext.getSessionIndex();
 
             String url = req.getRequestURI();
             url = url.replace("acs","carbon/admin/login_action.jsp?username=" + URLEncoder.encode(username, "UTF-8"));
@@ -294,6 +357,33 @@ public class SSOAssertionConsumerService extends HttpServlet {
         }
     }
 
+    /**
+     * Check whether the Response or any of its unencrypted assertions is already consumed by a successful login.
+     *
+     * @param samlResponse SAML Response
+     * @return true if the Response is a replay
+     */
+    private boolean isReplayed(Response samlResponse) {
+        AssertionReplayCache replayCache = SAML2SSOAuthFEDataHolder.getInstance().getReplayCache();
+        if (replayCache == null) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        String issuer = samlResponse.getIssuer() != null ? samlResponse.getIssuer().getValue() : null;
+        if (replayCache.isReplayed(issuer, samlResponse.getID(), now)) {
+            return true;
+        }
+        List<Assertion> assertions = samlResponse.getAssertions();
+        if (assertions != null) {
+            for (int i = 0; i < assertions.size(); i++) {
+                if (replayCache.isReplayed(assertions.get(i), now)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Handle malformed Responses.
      *
@@ -357,18 +447,11 @@ public class SSOAssertionConsumerService extends HttpServlet {
     }
 
     private void handleFederatedSAMLRequest(HttpServletRequest req, HttpServletResponse resp,
+                                            SAMLSSOServiceClient ssoServiceClient,
                                             String ssoTokenID, String samlRequest,
                                             String relayState, String authMode, Subject subject,
                                             String rpSessionId)
             throws IOException, ServletException, SAML2SSOUIAuthenticatorException {
-        // Instantiate the service client.
-        HttpSession session = req.getSession();
-        String serverURL = CarbonUIUtil.getServerURL(session.getServletContext(), session);
-        ConfigurationContext configContext =
-                (ConfigurationContext) session.getServletContext()
-                        .getAttribute(CarbonConstants.CONFIGURATION_CONTEXT);
-        SAMLSSOServiceClient ssoServiceClient = new SAMLSSOServiceClient(serverURL, configContext);
-
         String method = req.getMethod();
         boolean isPost = false;
 
@@ -382,7 +465,7 @@ public class SSOAssertionConsumerService extends HttpServlet {
                         rpSessionId,
                         authMode, isPost);
         if (signInRespDTO.getValid()) {
-            handleRequestFromLoginPage(req, resp, ssoTokenID,
+            handleRequestFromLoginPage(req, resp, ssoServiceClient, ssoTokenID,
                     signInRespDTO.getAssertionConsumerURL(),
                     signInRespDTO.getId(), signInRespDTO.getIssuer(),
                     subject.getNameID().getValue(), subject.getNameID()
@@ -393,17 +476,10 @@ public class SSOAssertionConsumerService extends HttpServlet {
     }
 
     private void handleRequestFromLoginPage(HttpServletRequest req, HttpServletResponse resp,
+                                            SAMLSSOServiceClient ssoServiceClient,
                                             String ssoTokenID, String assertionConsumerUrl, String id, String issuer, String userName, String subject,
                                             String rpSession, String requestMsgString, String relayState)
             throws IOException, ServletException, SAML2SSOUIAuthenticatorException {
-        HttpSession session = req.getSession();
-
-        // instantiate the service client
-        String serverURL = CarbonUIUtil.getServerURL(session.getServletContext(), session);
-        ConfigurationContext configContext = (ConfigurationContext) session.getServletContext()
-                .getAttribute(CarbonConstants.CONFIGURATION_CONTEXT);
-        SAMLSSOServiceClient ssoServiceClient = new SAMLSSOServiceClient(serverURL, configContext);
-
         // Create SAMLSSOAuthnReqDTO using the request Parameters
         SAMLSSOAuthnReqDTO authnReqDTO = new SAMLSSOAuthnReqDTO();
 
@@ -23,15 +23,20 @@ import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.opensaml.saml.saml2.core.Assertion;
-import org.opensaml.saml.saml2.core.AuthnStatement;
 import org.opensaml.saml.saml2.core.Response;
 import org.wso2.carbon.CarbonConstants;
 import org.wso2.carbon.context.PrivilegedCarbonContext;
 import org.wso2.carbon.core.common.AuthenticationException;
 import org.wso2.carbon.core.security.AuthenticatorsConfiguration;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionReplayCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AuditEventSink;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.DOMRetentionPolicy;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOAuthenticatorConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOLoginService;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOUIAuthenticatorException;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.Util;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.SAMLResponseContext;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.BackendCallGuard;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.SAML2SSOAuthenticationClient;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.internal.SAML2SSOAuthFEDataHolder;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.session.SSOSessionManager;
@@ -40,16 +45,25 @@ import org.wso2.carbon.ui.AbstractCarbonUIAuthenticator;
 import org.wso2.carbon.ui.CarbonSSOSessionManager;
 import org.wso2.carbon.ui.CarbonUIUtil;
 import org.wso2.carbon.user.core.UserCoreConstants;
+import org.wso2.carbon.utils.CarbonUtils;
 import org.wso2.carbon.utils.ServerConstants;
 import org.wso2.carbon.utils.multitenancy.MultitenantUtils;
 
 import javax.servlet.ServletContext;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
 
@@ -58,16 +72,22 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
 
     private static final int DEFAULT_PRIORITY_LEVEL = 50;
     private static final String AUTHENTICATOR_NAME = "SAML2SSOUIAuthenticator";
+    private static final String CHANGE_SESSION_ID_METHOD = "changeSessionId";
+
+    private static final ConcurrentMap<Class<?>, Method> CHANGE_SESSION_ID_METHODS =
+            new ConcurrentHashMap<Class<?>, Method>();
+    private static final Set<Class<?>> NO_CHANGE_SESSION_ID_CLASSES =
+            Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
 
     public boolean canHandle(HttpServletRequest request) {
         String relayState = request.getParameter(SAML2SSOAuthenticatorConstants.HTTP_POST_PARAM_RELAY_STATE);
-        Object samlResponse = request.getAttribute(SAML2SSOAuthenticatorConstants.HTTP_ATTR_SAML2_RESP_TOKEN);
+        Object responseContext = request.getAttribute(SAML2SSOAuthenticatorConstants.HTTP_ATTR_SAML2_RESP_TOKEN);
         // if it is a logout request, do not check for Response and Relay State
         if (request.getRequestURI().indexOf("/carbon/admin/logout_action.jsp") > -1) {
             return true;
         }
         // in case of a login request, check for Response and Relay State
-        if (samlResponse != null && samlResponse instanceof Response && relayState != null) {
+        if (responseContext instanceof SAMLResponseContext && relayState != null) {
             return true;
         }
         return false;
@@ -79,9 +99,12 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
         regenerateSession(request);
 
         HttpSession session = request.getSession();
-        Response samlResponse = (Response) request.getAttribute(SAML2SSOAuthenticatorConstants.HTTP_ATTR_SAML2_RESP_TOKEN);
+        // The Response is already resolved by the SSOAssertionConsumerService.
+        SAMLResponseContext responseContext = (SAMLResponseContext) request.getAttribute(
+                SAML2SSOAuthenticatorConstants.HTTP_ATTR_SAML2_RESP_TOKEN);
+        Response samlResponse = responseContext.getResponse();
         String responseStr = request.getParameter(SAML2SSOAuthenticatorConstants.HTTP_POST_PARAM_SAML2_RESP);
-        String username = Util.getUsernameFromResponse(samlResponse);
+        String username = responseContext.getUsername();
         ServletContext servletContext = request.getSession().getServletContext();
         ConfigurationContext configContext = (ConfigurationContext) servletContext.getAttribute(
                 CarbonConstants.CONFIGURATION_CONTEXT);
@@ -95,19 +118,27 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
             if (log.isDebugEnabled()) {
                 log.debug("Invoking the SAML2 SSO Authenticator BE for the Response : " + responseStr);
             }
-            authenticationClient = new SAML2SSOAuthenticationClient(
-                    configContext, backEndServerURL, cookie, session);
-            isAuthenticated = authenticationClient.login(responseStr, username);
+            SAML2SSOLoginService loginService = getInProcessLoginService();
+            if (loginService != null) {
+                isAuthenticated = loginInProcess(loginService, samlResponse, responseStr, session);
+            } else {
+                // The BE parses the submitted Response again, the DOM of this request is not used any more.
+                releaseDOM(responseContext);
+                authenticationClient = new SAML2SSOAuthenticationClient(
+                        configContext, backEndServerURL, cookie, session);
+                isAuthenticated = authenticationClient.login(responseStr, username);
+            }
 
             // add an entry to CarbonSSOSessionManager : IdpSessionIndex --> localSessionId
             if (isAuthenticated) {
+                markConsumed(samlResponse);
+                consumeAuthnRequest(request, samlResponse);
                 CarbonSSOSessionManager ssoSessionManager =
                         SAML2SSOAuthFEDataHolder.getInstance().getCarbonSSOSessionManager();
-                String sessionId = getSessionIndexFromResponse(samlResponse);
+                String sessionId = responseContext.getSessionIndex();
                 if (sessionId != null) {
                     // Session id is provided only when Single Logout enabled at the IdP.
-                    ssoSessionManager.addSessionMapping(getSessionIndexFromResponse(samlResponse),
-                            session.getId());
+                    ssoSessionManager.addSessionMapping(sessionId, session.getId());
                     request.getSession().setAttribute(SAML2SSOAuthenticatorConstants.IDP_SESSION_INDEX, sessionId);
                     SSOSessionManager.getInstance().addSession(sessionId, request.getSession());
                 }
@@ -122,17 +153,21 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
         } catch (Exception e) {
             log.error("Error when creating SAML2SSOAuthenticationClient.", e);
             throw new AuthenticationException("Error when creating SAML2SSOAuthenticationClient.", e);
+        } finally {
+            if (authenticationClient != null) {
+                authenticationClient.close();
+            }
+            // The context stays on the request until the login page is rendered.
+            releaseDOM(responseContext);
         }
         if (StringUtils.isNotBlank(username) && AUDIT_LOG.isInfoEnabled() && !LoggerUtils.isEnableV2AuditLogs()) {
             String tenantAwareUsername = MultitenantUtils.getTenantAwareUsername(username);
-            String tenantDomain = MultitenantUtils.getTenantDomain(username);
+            String tenantDomain = responseContext.getTenantDomain();
 
             String auditInitiator = tenantAwareUsername + UserCoreConstants.TENANT_DOMAIN_COMBINER + tenantDomain;
             String auditData = "";
 
-            AUDIT_LOG.info(String.format(SAML2SSOAuthenticatorConstants.AUDIT_MESSAGE,
-                    auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGIN, AUTHENTICATOR_NAME,
-                    auditData, auditResult));
+            audit(auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGIN, auditData, auditResult);
         }
         if (!isAuthenticated) {
             throw new AuthenticationException("Authentication failure " + username);
@@ -157,9 +192,10 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
                 .getAttribute(CarbonConstants.CONFIGURATION_CONTEXT);
 
         String backendServerURL = CarbonUIUtil.getServerURL(servletContext, session);
+        SAML2SSOAuthenticationClient authClient = null;
         try {
             String cookie = (String) session.getAttribute(ServerConstants.ADMIN_SERVICE_AUTH_TOKEN);
-            SAML2SSOAuthenticationClient authClient = new SAML2SSOAuthenticationClient(configContext,
+            authClient = new SAML2SSOAuthenticationClient(configContext,
                     backendServerURL,
                     cookie,
                     session);
@@ -202,19 +238,93 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
             log.error(msg);
             throw new Exception(msg);
         } finally {
+            if (authClient != null) {
+                authClient.close();
+            }
             if (StringUtils.isNotBlank(username) && AUDIT_LOG.isInfoEnabled() && !LoggerUtils.isEnableV2AuditLogs()
                     && request != null && "true".equalsIgnoreCase(request.getParameter("logoutcomplete"))) {
                 // use the username built above (when printing info log)
                 String auditInitiator = username;
                 String auditData = "";
 
-                AUDIT_LOG.info(String.format(SAML2SSOAuthenticatorConstants.AUDIT_MESSAGE,
-                        auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGOUT, AUTHENTICATOR_NAME,
-                        auditData, auditResult));
+                audit(auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGOUT, auditData, auditResult);
             }
         }
     }
 
+    /**
+     * @return login service of the BE, if the BE runs in the same JVM and is reached over the local transport
+     */
+    private SAML2SSOLoginService getInProcessLoginService() {
+        SAML2SSOLoginService loginService = SAML2SSOAuthFEDataHolder.getInstance().getLoginService();
+        if (loginService != null && CarbonUtils.isRunningOnLocalTransportMode()) {
+            return loginService;
+        }
+        return null;
+    }
+
+    /**
+     * Log the user in with the BE running in the same JVM, handing over the Response which is already parsed.
+     *
+     * @param loginService login service of the BE
+     * @param samlResponse SAML2 Response
+     * @param responseStr  SAML2 Response as submitted by the client
+     * @param session      session of the user
+     * @return true if the user is logged in
+     */
+    private boolean loginInProcess(SAML2SSOLoginService loginService, Response samlResponse, String responseStr,
+                                   HttpSession session) throws AuthenticationException {
+        if (log.isDebugEnabled()) {
+            log.debug("Logging in with the co-located SAML2 SSO Authenticator BE");
+        }
+        // The co-located BE is limited by the same bulkhead as the remote login calls.
+        BackendCallGuard callGuard = SAML2SSOAuthFEDataHolder.getInstance().getLoginCallGuard();
+        BackendCallGuard.Ticket ticket = callGuard != null ? callGuard.acquire() : null;
+        if (callGuard != null && ticket == null) {
+            String msg = "Unable to sign-in. The call to the " + callGuard.getName() + " is rejected since too many " +
+                    "calls are in progress";
+            log.error(msg);
+            throw new AuthenticationException(msg);
+        }
+        boolean isAuthenticated;
+        try {
+            isAuthenticated = loginService.login(samlResponse, responseStr, session);
+        } finally {
+            if (ticket != null) {
+                // A co-located BE can not be unavailable, the call only holds a slot of the bulkhead.
+                callGuard.release(ticket, true);
+            }
+        }
+        if (isAuthenticated) {
+            // As for the local transport, the cookie is not used for any form authentication with the backend.
+            session.setAttribute(ServerConstants.ADMIN_SERVICE_AUTH_TOKEN, UUID.randomUUID().toString());
+        }
+        return isAuthenticated;
+    }
+
+    /**
+     * Release the DOM of the Response and of its decrypted assertion, unless the DOM retention policy keeps it.
+     */
+    private void releaseDOM(SAMLResponseContext responseContext) {
+        DOMRetentionPolicy domRetentionPolicy = SAML2SSOAuthFEDataHolder.getInstance().getDOMRetentionPolicy();
+        if (domRetentionPolicy != null) {
+            domRetentionPolicy.release(responseContext.getResponse(), responseContext.getAssertion());
+        }
+    }
+
+    /**
+     * Write an audit line, through the asynchronous audit event sink if it is enabled.
+     */
+    private void audit(String initiator, String action, String data, String result) {
+        AuditEventSink auditEventSink = SAML2SSOAuthFEDataHolder.getInstance().getAuditEventSink();
+        if (auditEventSink != null) {
+            auditEventSink.publish(initiator, action, AUTHENTICATOR_NAME, data, result);
+        } else {
+            AUDIT_LOG.info(String.format(SAML2SSOAuthenticatorConstants.AUDIT_MESSAGE, initiator, action,
+                    AUTHENTICATOR_NAME, data, result));
+        }
+    }
+
     public int getPriority() {
         AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
         AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig =
@@ -240,51 +350,56 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
     }
 
     /**
-     * Get the username from the SAML2 Response
+     * Remember the Response and its unencrypted assertions as consumed, so that the SSOAssertionConsumerService
+     * rejects them if they are posted again.
      *
-     * @param response SAML2 Response
-     * @return username username contained in the SAML Response
+     * @param response SAML Response of a successful login
      */
-    private String getUsernameFromResponse(Response response) {
+    private void markConsumed(Response response) {
+        AssertionReplayCache replayCache = SAML2SSOAuthFEDataHolder.getInstance().getReplayCache();
+        if (replayCache == null || response == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
         List<Assertion> assertions = response.getAssertions();
-        Assertion assertion = null;
-        if (assertions != null && assertions.size() > 0) {
-            // There can be only one assertion in a SAML Response, so get the first one
-            assertion = assertions.get(0);
-            return assertion.getSubject().getNameID().getValue();
+        Assertion assertion = assertions != null && !assertions.isEmpty() ? assertions.get(0) : null;
+        String issuer = response.getIssuer() != null ? response.getIssuer().getValue() : null;
+        replayCache.markConsumed(issuer, response.getID(), AssertionReplayCache.getNotOnOrAfter(assertion), now);
+        if (assertion != null) {
+            replayCache.markConsumed(assertion, now);
         }
-        return null;
     }
 
     /**
-     * Read the session index from a Response
+     * Consume the request the Response of a successful login is sent for, so that it can not be answered again. The
+     * SSOAssertionConsumerService only looks the request up, since the login may still be rejected at that point.
      *
-     * @param response SAML Response
-     * @return Session Index value contained in the Response
+     * @param request  login request
+     * @param response SAML Response of a successful login
      */
-    private String getSessionIndexFromResponse(Response response) {
-        List<Assertion> assertions = response.getAssertions();
-        String sessionIndex = null;
-        if (assertions != null && assertions.size() > 0) {
-            // There can be only one assertion in a SAML Response, so get the first one
-            List<AuthnStatement> authnStatements = assertions.get(0).getAuthnStatements();
-            if (authnStatements != null && authnStatements.size() > 0) {
-                // There can be only one authentication stmt inside the SAML assertion of a SAML Response
-                AuthnStatement authStmt = authnStatements.get(0);
-                sessionIndex = authStmt.getSessionIndex();
-            }
+    private void consumeAuthnRequest(HttpServletRequest request, Response response) {
+        String relayState = request.getParameter(SAML2SSOAuthenticatorConstants.HTTP_POST_PARAM_RELAY_STATE);
+        if (!org.wso2.carbon.identity.authenticator.saml2.sso.common.SSOSessionManager.isValidResponse(relayState,
+                response.getInResponseTo()) && log.isDebugEnabled()) {
+            log.debug("No pending request is found for the SAML2 Response : " + response.getID());
         }
-        return sessionIndex;
     }
 
     /**
      * Regenerates session id after each login attempt.
+     * <p>
+     * The id of the session is changed in place when the container supports
+     * HttpServletRequest#changeSessionId (Servlet 3.1). Otherwise the attributes are copied to a new session. The
+     * method is looked up once per request class, since this bundle is built against an older Servlet API.
      *
      * @param request
      */
     private void regenerateSession(HttpServletRequest request) {
 
         HttpSession oldSession = request.getSession();
+        if (changeSessionId(request)) {
+            return;
+        }
 
         Enumeration attrNames = oldSession.getAttributeNames();
         Properties props = new Properties();
@@ -304,6 +419,59 @@ public class SAML2SSOUIAuthenticator extends AbstractCarbonUIAuthenticator {
         }
     }
 
+    /**
+     * Change the id of the current session, keeping the session and its attributes.
+     *
+     * @param request request with a session
+     * @return true if the id is changed, false if the container does not support it
+     */
+    private static boolean changeSessionId(HttpServletRequest request) {
+        Class<?> requestClass = request.getClass();
+        if (NO_CHANGE_SESSION_ID_CLASSES.contains(requestClass)) {
+            return false;
+        }
+        Method method = CHANGE_SESSION_ID_METHODS.get(requestClass);
+        if (method == null) {
+            method = getChangeSessionIdMethod(requestClass);
+            if (method == null) {
+                NO_CHANGE_SESSION_ID_CLASSES.add(requestClass);
+                return false;
+            }
+            CHANGE_SESSION_ID_METHODS.putIfAbsent(requestClass, method);
+        }
+        try {
+            method.invoke(request);
+            return true;
+        } catch (IllegalAccessException e) {
+            NO_CHANGE_SESSION_ID_CLASSES.add(requestClass);
+            CHANGE_SESSION_ID_METHODS.remove(requestClass);
+            if (log.isDebugEnabled()) {
+                log.debug("Unable to change the session id with " + requestClass.getName() +
+                        ". The session attributes are copied to a new session.", e);
+            }
+        } catch (InvocationTargetException e) {
+            // Fall back to a new session for this login only, the container may support it for the next one.
+            log.warn("Unable to change the session id. The session attributes are copied to a new session.",
+                    e.getCause());
+        }
+        return false;
+    }
+
+    private static Method getChangeSessionIdMethod(Class<?> requestClass) {
+        try {
+            // Prefer the method of the interface, the request class itself may not be public.
+            return HttpServletRequest.class.getMethod(CHANGE_SESSION_ID_METHOD);
+        } catch (NoSuchMethodException e) {
+            // The Servlet API in the runtime is older than 3.1, the request class may still implement the method.
+        }
+        try {
+            Method method = requestClass.getMethod(CHANGE_SESSION_ID_METHOD);
+            return Modifier.isPublic(method.getDeclaringClass().getModifiers()) ? method : null;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
     public boolean reAuthenticateOnSessionExpire(Object object) throws AuthenticationException {
         return false;
     }
@@ -0,0 +1,257 @@
+/*
+*  Copyright (c) 2005-2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.identity.authenticator.saml2.sso.ui.client;
+
+import org.apache.axis2.client.Options;
+import org.apache.axis2.transport.http.HTTPConstants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOAuthenticatorConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.Util;
+
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards the calls from the FE to a back end service with timeouts, a bulkhead and a circuit breaker.
+ * <p>
+ * The bulkhead caps the number of calls in flight, so a stalled back end holds at most that many UI threads. The
+ * circuit breaker opens after a run of failed calls and rejects the calls without reaching the back end until the open
+ * time has passed. A single trial call is then let through, which closes the circuit if it succeeds and opens it again
+ * if it fails. Each admitted call gets a ticket, so that only the trial call, and not a call which was already in
+ * flight when the circuit opened, changes the state of the circuit.
+ */
+public class BackendCallGuard {
+
+    private static final Log log = LogFactory.getLog(BackendCallGuard.class);
+
+    private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    private static final int DEFAULT_CIRCUIT_OPEN_SECONDS = 30;
+
+    /**
+     * States of the circuit breaker.
+     */
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final int maxConcurrency;
+    private final Semaphore permits;
+    private final int failureThreshold;
+    private final long openMillis;
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+    private final AtomicBoolean trialInFlight = new AtomicBoolean();
+    private volatile long openUntil;
+    private final AtomicLong circuitRejectedCount = new AtomicLong();
+    private final AtomicLong bulkheadRejectedCount = new AtomicLong();
+    private final AtomicLong failureCount = new AtomicLong();
+    private final AtomicLong circuitOpenedCount = new AtomicLong();
+
+    /**
+     * @param name                 name of the guarded calls, used in the logs
+     * @param connectTimeoutMillis connect timeout of the calls, or 0 to keep the default of the transport
+     * @param readTimeoutMillis    read timeout of the calls, or 0 to keep the default of the transport
+     * @param maxConcurrency       maximum number of calls in flight, or 0 for no limit
+     * @param failureThreshold     number of consecutive failures opening the circuit, or 0 to disable the breaker
+     * @param openMillis           time the circuit stays open before a trial call is let through
+     */
+    public BackendCallGuard(String name, int connectTimeoutMillis, int readTimeoutMillis, int maxConcurrency,
+                            int failureThreshold, long openMillis) {
+        this.name = name;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.readTimeoutMillis = readTimeoutMillis;
+        this.maxConcurrency = maxConcurrency;
+        this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Build a call guard from the authenticator configuration. The timeouts and the circuit breaker settings are
+     * shared by all the guards, while each guard has its own concurrency limit.
+     *
+     * @param name                 name of the guarded calls
+     * @param parameters           authenticator configuration parameters, may be null
+     * @param maxConcurrencyParam  name of the parameter limiting the calls in flight of this guard
+     * @return call guard
+     */
+    public static BackendCallGuard create(String name, Map<String, String> parameters, String maxConcurrencyParam) {
+        int connectTimeout = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.BACKEND_CONNECT_TIMEOUT,
+                0, 0);
+        int readTimeout = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.BACKEND_READ_TIMEOUT,
+                0, 0);
+        int maxConcurrency = Util.getIntParameter(parameters, maxConcurrencyParam, 0, 0);
+        int failureThreshold = Util.getIntParameter(parameters,
+                SAML2SSOAuthenticatorConstants.BACKEND_FAILURE_THRESHOLD, DEFAULT_FAILURE_THRESHOLD, 0);
+        int openSeconds = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.BACKEND_CIRCUIT_OPEN_TIME,
+                DEFAULT_CIRCUIT_OPEN_SECONDS, 1);
+        return new BackendCallGuard(name, connectTimeout, readTimeout, maxConcurrency, failureThreshold,
+                TimeUnit.SECONDS.toMillis(openSeconds));
+    }
+
+    /**
+     * Apply the timeouts to the options of a stub.
+     *
+     * @param options options of the service client
+     */
+    public void configure(Options options) {
+        if (connectTimeoutMillis > 0) {
+            options.setProperty(HTTPConstants.CONNECTION_TIMEOUT, connectTimeoutMillis);
+        }
+        if (readTimeoutMillis > 0) {
+            options.setTimeOutInMilliSeconds(readTimeoutMillis);
+            options.setProperty(HTTPConstants.SO_TIMEOUT, readTimeoutMillis);
+        }
+    }
+
+    /**
+     * Admit a call. A call which is admitted has to be completed with {@link #release(Ticket, boolean)}.
+     *
+     * @return ticket of the admitted call, or null if the bulkhead is full or the circuit is open
+     */
+    public Ticket acquire() {
+        if (permits != null && !permits.tryAcquire()) {
+            bulkheadRejectedCount.incrementAndGet();
+            return null;
+        }
+        // Read the generation first, so that a call admitted while the circuit opens belongs to the earlier one.
+        long generation = circuitOpenedCount.get();
+        if (failureThreshold > 0 && openUntil != 0) {
+            // While the circuit is open, and after that until the trial call completes, the calls are rejected.
+            if (System.currentTimeMillis() < openUntil || !trialInFlight.compareAndSet(false, true)) {
+                if (permits != null) {
+                    permits.release();
+                }
+                circuitRejectedCount.incrementAndGet();
+                return null;
+            }
+            return new Ticket(true, generation);
+        }
+        return new Ticket(false, generation);
+    }
+
+    /**
+     * Complete an admitted call. Only the trial call decides whether a half open circuit is closed or opened again.
+     * The calls which were admitted before the circuit opened are counted, but do not change its state.
+     *
+     * @param ticket  ticket of the call returned by {@link #acquire()}
+     * @param success false if the call failed to reach the back end or the back end failed to process it
+     */
+    public void release(Ticket ticket, boolean success) {
+        try {
+            if (!success) {
+                failureCount.incrementAndGet();
+            }
+            if (failureThreshold <= 0) {
+                return;
+            }
+            if (ticket.trial) {
+                if (success) {
+                    consecutiveFailures.set(0);
+                    openUntil = 0;
+                    log.info("Calls to the " + name + " are resumed");
+                } else {
+                    open("a failed trial call");
+                }
+                trialInFlight.set(false);
+            } else if (openUntil == 0 && ticket.generation == circuitOpenedCount.get()) {
+                if (success) {
+                    consecutiveFailures.set(0);
+                } else if (consecutiveFailures.incrementAndGet() >= failureThreshold) {
+                    open(failureThreshold + " consecutive failures");
+                }
+            }
+        } finally {
+            if (permits != null) {
+                permits.release();
+            }
+        }
+    }
+
+    private void open(String reason) {
+        consecutiveFailures.set(0);
+        openUntil = System.currentTimeMillis() + openMillis;
+        circuitOpenedCount.incrementAndGet();
+        log.warn("Calls to the " + name + " are rejected for " + TimeUnit.MILLISECONDS.toSeconds(openMillis) +
+                " seconds after " + reason);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public State getState() {
+        long until = openUntil;
+        if (until == 0) {
+            return State.CLOSED;
+        }
+        return System.currentTimeMillis() < until ? State.OPEN : State.HALF_OPEN;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    /**
+     * @return number of calls in flight, or -1 if the concurrency is not limited
+     */
+    public int getActiveCount() {
+        return permits != null ? maxConcurrency - permits.availablePermits() : -1;
+    }
+
+    public long getCircuitRejectedCount() {
+        return circuitRejectedCount.get();
+    }
+
+    public long getBulkheadRejectedCount() {
+        return bulkheadRejectedCount.get();
+    }
+
+    public long getFailureCount() {
+        return failureCount.get();
+    }
+
+    public long getCircuitOpenedCount() {
+        return circuitOpenedCount.get();
+    }
+
+    /**
+     * An admitted call, marking whether it is the trial call of a half open circuit.
+     */
+    public static final class Ticket {
+
+        private final boolean trial;
+        private final long generation;
+
+        private Ticket(boolean trial, long generation) {
+            this.trial = trial;
+            this.generation = generation;
+        }
+
+        public boolean isTrial() {
+            return trial;
+        }
+    }
+}
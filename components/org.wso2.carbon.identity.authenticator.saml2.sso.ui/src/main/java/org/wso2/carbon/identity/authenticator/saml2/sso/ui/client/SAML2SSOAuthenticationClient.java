@@ -15,6 +15,8 @@
  */
 package org.wso2.carbon.identity.authenticator.saml2.sso.ui.client;
 
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.Constants;
 import org.apache.axis2.client.Options;
 import org.apache.axis2.client.ServiceClient;
 import org.apache.axis2.context.ConfigurationContext;
@@ -22,14 +24,27 @@ import org.apache.axis2.transport.http.HTTPConstants;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.core.common.AuthenticationException;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOUIAuthenticatorException;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.Util;
 import org.wso2.carbon.identity.authenticator.saml2.sso.stub.SAML2SSOAuthenticationServiceStub;
 import org.wso2.carbon.identity.authenticator.saml2.sso.stub.types.AuthnReqDTO;
+import org.wso2.carbon.identity.authenticator.saml2.sso.stub.types.CompressedAuthnReqDTO;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.internal.SAML2SSOAuthFEDataHolder;
 import org.wso2.carbon.utils.CarbonUtils;
 import org.wso2.carbon.utils.ServerConstants;
 
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
 import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
 import java.rmi.RemoteException;
 import java.util.UUID;
+import java.util.zip.Deflater;
 
 public class SAML2SSOAuthenticationClient {
     private  SAML2SSOAuthenticationClient(){
@@ -37,49 +52,170 @@ public class SAML2SSOAuthenticationClient {
     }
 
     private static final Log log = LogFactory.getLog(SAML2SSOAuthenticationClient.class);
+
+    /**
+     * Creates the stubs of the SAML2SSOAuthenticationService.
+     */
+    public static final StubPool.StubFactory<SAML2SSOAuthenticationServiceStub> STUB_FACTORY =
+            new StubPool.StubFactory<SAML2SSOAuthenticationServiceStub>() {
+                @Override
+                public SAML2SSOAuthenticationServiceStub create(ConfigurationContext configurationContext,
+                                                                String serviceEPR) throws AxisFault {
+                    return new SAML2SSOAuthenticationServiceStub(configurationContext, serviceEPR);
+                }
+            };
+
     private SAML2SSOAuthenticationServiceStub stub;
     private HttpSession session;
+    private StubPool<SAML2SSOAuthenticationServiceStub> stubPool;
+    private String serviceEPR;
+    private boolean failed;
+    private BackendCallGuard callGuard;
 
+    /**
+     * Create a client for a login or a logout. If the stub pool is enabled, the stub is borrowed from the pool and
+     * the client has to be closed once the call is done.
+     */
     public SAML2SSOAuthenticationClient(ConfigurationContext ctx, String serverURL, String cookie,
                                         HttpSession session) throws Exception {
         this.session = session;
-        String serviceEPR = serverURL + "SAML2SSOAuthenticationService";
-        stub = new SAML2SSOAuthenticationServiceStub(ctx, serviceEPR);
-        ServiceClient client = stub._getServiceClient();
-        Options options = client.getOptions();
-        options.setManageSession(true);
-        if (cookie != null) {
-            options.setProperty(HTTPConstants.COOKIE_STRING, cookie);
+        this.serviceEPR = serverURL + "SAML2SSOAuthenticationService";
+        this.stubPool = SAML2SSOAuthFEDataHolder.getInstance().getAuthenticationStubPool();
+        this.callGuard = SAML2SSOAuthFEDataHolder.getInstance().getLoginCallGuard();
+        if (stubPool != null) {
+            stub = stubPool.borrow(ctx, serviceEPR, cookie);
+        } else {
+            stub = new SAML2SSOAuthenticationServiceStub(ctx, serviceEPR);
+            ServiceClient client = stub._getServiceClient();
+            Options options = client.getOptions();
+            options.setManageSession(true);
+            if (cookie != null) {
+                options.setProperty(HTTPConstants.COOKIE_STRING, cookie);
+            }
+        }
+        if (callGuard != null) {
+            callGuard.configure(stub._getServiceClient().getOptions());
         }
     }
 
     public boolean login(String samlResp, String username) throws AuthenticationException {
+        BackendCallGuard.Ticket ticket = acquireCall("sign-in for the user : " + username);
+        boolean backendFailed = false;
         try {
-            AuthnReqDTO authDTO = new AuthnReqDTO();
-            authDTO.setResponse(samlResp);
-            boolean authStatus = stub.login(authDTO);
+            boolean authStatus;
+            if (SAML2SSOAuthFEDataHolder.getInstance().isCompressedLoginEnabled()) {
+                authStatus = loginWithCompressedResponse(samlResp);
+            } else {
+                AuthnReqDTO authDTO = new AuthnReqDTO();
+                authDTO.setResponse(samlResp);
+                authStatus = stub.login(authDTO);
+            }
             setAdminCookie(authStatus);
             //Add an entry to the CarbonSSOSessionManager
             return authStatus;
         } catch (RemoteException e) {
+            failed = true;
+            backendFailed = true;
             log.error("Error when sign-in for the user : " + username, e);
             throw new AuthenticationException("Error when sign-in for the user : " + username, e);
+        } catch (SAML2SSOUIAuthenticatorException e) {
+            // The Response could not be decoded, which says nothing about the health of the back end.
+            failed = true;
+            log.error("Error when sign-in for the user : " + username, e);
+            throw new AuthenticationException("Error when sign-in for the user : " + username, e);
+        } finally {
+            releaseCall(ticket, backendFailed);
         }
     }
 
     public void logout(HttpSession session) throws AuthenticationException {
+        boolean remoteCall = !CarbonUtils.isRunningOnLocalTransportMode();
+        BackendCallGuard.Ticket ticket = remoteCall ? acquireCall("log out") : null;
         try {
-            if (!CarbonUtils.isRunningOnLocalTransportMode()) {
+            if (remoteCall) {
                 stub.logout();
             }
             session.removeAttribute(ServerConstants.ADMIN_SERVICE_AUTH_TOKEN);
         } catch (java.lang.Exception e) {
+            failed = true;
             String msg = "Error occurred while logging out";
             log.error(msg, e);
             throw new AuthenticationException(msg, e);
+        } finally {
+            releaseCall(ticket, failed);
         }
     }
 
+    /**
+     * Admit a call to the back end, failing fast if the back end is known to be unavailable or is already serving
+     * the maximum number of calls from this FE.
+     */
+    private BackendCallGuard.Ticket acquireCall(String action) throws AuthenticationException {
+        if (callGuard == null) {
+            return null;
+        }
+        BackendCallGuard.Ticket ticket = callGuard.acquire();
+        if (ticket == null) {
+            String msg = "Unable to " + action + ". The call to the " + callGuard.getName() + " is rejected since " +
+                    (callGuard.getState() == BackendCallGuard.State.CLOSED ? "too many calls are in progress" :
+                            "the back end is unavailable");
+            log.error(msg);
+            throw new AuthenticationException(msg);
+        }
+        return ticket;
+    }
+
+    private void releaseCall(BackendCallGuard.Ticket ticket, boolean backendFailed) {
+        if (ticket != null) {
+            callGuard.release(ticket, !backendFailed);
+        }
+    }
+
+    /**
+     * Return the stub to the pool. A stub whose call failed is discarded instead.
+     */
+    public void close() {
+        if (stubPool == null || stub == null) {
+            return;
+        }
+        if (failed) {
+            stubPool.invalidate(stub);
+        } else {
+            stubPool.release(serviceEPR, stub);
+        }
+        stub = null;
+    }
+
+    /**
+     * Send the decoded Response compressed with raw DEFLATE as an MTOM attachment, instead of the Base64 text.
+     */
+    private boolean loginWithCompressedResponse(String samlResp)
+            throws RemoteException, SAML2SSOUIAuthenticatorException {
+        byte[] response = Util.decode(samlResp).getBytes(Charset.forName("UTF-8"));
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(response.length / 2);
+        byte[] buffer = new byte[4096];
+        try {
+            deflater.setInput(response);
+            deflater.finish();
+            while (!deflater.finished()) {
+                int count = deflater.deflate(buffer);
+                compressed.write(buffer, 0, count);
+            }
+        } finally {
+            deflater.end();
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("SAML2 Response of " + samlResp.length() + " encoded bytes is sent as " + compressed.size() +
+                    " compressed bytes");
+        }
+
+        CompressedAuthnReqDTO authDTO = new CompressedAuthnReqDTO();
+        authDTO.setResponse(new DataHandler(new CompressedResponseDataSource(compressed.toByteArray())));
+        stub._getServiceClient().getOptions().setProperty(Constants.Configuration.ENABLE_MTOM, Constants.VALUE_TRUE);
+        return stub.loginWithCompressedResponse(authDTO);
+    }
+
     private void setAdminCookie(boolean result) {
         if (result) {
             String cookie = (String) stub._getServiceClient().getServiceContext().getProperty(
@@ -94,4 +230,35 @@ public class SAML2SSOAuthenticationClient {
         }
     }
 
+    /**
+     * Data source of a compressed Response, sent as an attachment.
+     */
+    private static class CompressedResponseDataSource implements DataSource {
+
+        private final byte[] content;
+
+        CompressedResponseDataSource(byte[] content) {
+            this.content = content;
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Compressed SAML2 Response is read only");
+        }
+
+        @Override
+        public String getContentType() {
+            return "application/octet-stream";
+        }
+
+        @Override
+        public String getName() {
+            return "SAMLResponse";
+        }
+    }
 }
@@ -24,22 +24,70 @@ import org.apache.axis2.context.ConfigurationContext;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOUIAuthenticatorException;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.internal.SAML2SSOAuthFEDataHolder;
 import org.wso2.carbon.identity.sso.saml.stub.IdentitySAMLSSOServiceStub;
 import org.wso2.carbon.identity.sso.saml.stub.types.SAMLSSOAuthnReqDTO;
 import org.wso2.carbon.identity.sso.saml.stub.types.SAMLSSOReqValidationResponseDTO;
 import org.wso2.carbon.identity.sso.saml.stub.types.SAMLSSORespDTO;
 
+/**
+ * Client of the IdentitySAMLSSOService. A single client is used for all the calls of a federated login, and its stub
+ * is borrowed from the shared stub pool when the pool is enabled.
+ */
 public class SAMLSSOServiceClient {
 
     private static final Log log = LogFactory.getLog(SAMLSSOServiceClient.class);
+
+    public static final String OPERATION_VALIDATE = "validateSPInitSSORequest";
+    public static final String OPERATION_AUTHENTICATE = "authenticate";
+    public static final String OPERATION_SINGLE_LOGOUT = "doSingleLogout";
+
+    /**
+     * Creates the stubs of the IdentitySAMLSSOService.
+     */
+    public static final StubPool.StubFactory<IdentitySAMLSSOServiceStub> STUB_FACTORY =
+            new StubPool.StubFactory<IdentitySAMLSSOServiceStub>() {
+                @Override
+                public IdentitySAMLSSOServiceStub create(ConfigurationContext configurationContext,
+                                                         String serviceEPR) throws AxisFault {
+                    return new IdentitySAMLSSOServiceStub(configurationContext, serviceEPR);
+                }
+            };
+
+    private static final ServiceCallMetrics callMetrics = new ServiceCallMetrics();
+
     private IdentitySAMLSSOServiceStub stub;
+    private StubPool<IdentitySAMLSSOServiceStub> stubPool;
+    private String serviceURL;
+    private boolean failed;
+    private BackendCallGuard callGuard;
 
+    /**
+     * Create a client for a federated login. If the stub pool is enabled, the stub is borrowed from the pool and the
+     * client has to be closed once the login is done.
+     */
     public SAMLSSOServiceClient(String backendServerURL, ConfigurationContext configCtx) throws AxisFault {
-        String serviceURL = backendServerURL + "IdentitySAMLSSOService";
-        stub = new IdentitySAMLSSOServiceStub(configCtx, serviceURL);
-        ServiceClient client = stub._getServiceClient();
-        Options option = client.getOptions();
-        option.setManageSession(true);
+        serviceURL = backendServerURL + "IdentitySAMLSSOService";
+        stubPool = SAML2SSOAuthFEDataHolder.getInstance().getSAMLSSOServiceStubPool();
+        callGuard = SAML2SSOAuthFEDataHolder.getInstance().getFederationCallGuard();
+        if (stubPool != null) {
+            stub = stubPool.borrow(configCtx, serviceURL, null);
+        } else {
+            stub = new IdentitySAMLSSOServiceStub(configCtx, serviceURL);
+            ServiceClient client = stub._getServiceClient();
+            Options option = client.getOptions();
+            option.setManageSession(true);
+        }
+        if (callGuard != null) {
+            callGuard.configure(stub._getServiceClient().getOptions());
+        }
+    }
+
+    /**
+     * @return latency of the calls made to the IdentitySAMLSSOService, by operation
+     */
+    public static ServiceCallMetrics getCallMetrics() {
+        return callMetrics;
     }
 
     /**
@@ -53,30 +101,103 @@ public class SAMLSSOServiceClient {
                                                     String sessionId, String rpSessionId,
                                                     String authnMode, boolean isPost)
             throws SAML2SSOUIAuthenticatorException {
+        BackendCallGuard.Ticket ticket = acquireCall(OPERATION_VALIDATE);
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            return stub.validateSPInitSSORequest(samlReq, queryString, sessionId, rpSessionId, authnMode, isPost);
+            SAMLSSOReqValidationResponseDTO validationResponseDTO = stub.validateSPInitSSORequest(samlReq,
+                    queryString, sessionId, rpSessionId, authnMode, isPost);
+            callMetrics.record(OPERATION_VALIDATE, System.nanoTime() - start, true);
+            success = true;
+            return validationResponseDTO;
         } catch (Exception e) {
+            failed(OPERATION_VALIDATE, start);
             log.error("Error validating the Authentication Request", e);
             throw new SAML2SSOUIAuthenticatorException("Error in parsing authentication request", e);
+        } finally {
+            releaseCall(ticket, success);
         }
     }
 
     public SAMLSSORespDTO authenticate(SAMLSSOAuthnReqDTO authnReqDTO, String sessionId) throws SAML2SSOUIAuthenticatorException {
+        BackendCallGuard.Ticket ticket = acquireCall(OPERATION_AUTHENTICATE);
+        long start = System.nanoTime();
+        boolean success = false;
         try {
             // TODO FIX THIS - ADDED ONLY TO BUILD THE COMPONENT
-            return stub.authenticate(authnReqDTO, sessionId, false, null, null);
+            SAMLSSORespDTO respDTO = stub.authenticate(authnReqDTO, sessionId, false, null, null);
+            callMetrics.record(OPERATION_AUTHENTICATE, System.nanoTime() - start, true);
+            success = true;
+            return respDTO;
         } catch (Exception e) {
+            failed(OPERATION_AUTHENTICATE, start);
             log.error("Error authenticating the user.", e);
             throw new SAML2SSOUIAuthenticatorException("Authentication Failure", e);
+        } finally {
+            releaseCall(ticket, success);
         }
     }
 
     public SAMLSSOReqValidationResponseDTO doSingleLogout(String sessionId) throws SAML2SSOUIAuthenticatorException {
+        BackendCallGuard.Ticket ticket = acquireCall(OPERATION_SINGLE_LOGOUT);
+        long start = System.nanoTime();
+        boolean success = false;
         try {
-            return stub.doSingleLogout(sessionId);
+            SAMLSSOReqValidationResponseDTO validationResponseDTO = stub.doSingleLogout(sessionId);
+            callMetrics.record(OPERATION_SINGLE_LOGOUT, System.nanoTime() - start, true);
+            success = true;
+            return validationResponseDTO;
         } catch (Exception ex) {
+            failed(OPERATION_SINGLE_LOGOUT, start);
             log.error("Error performing single logout.", ex);
             throw new SAML2SSOUIAuthenticatorException("Error performing Single Logout", ex);
+        } finally {
+            releaseCall(ticket, success);
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Return the stub to the pool. A stub whose call failed is discarded instead.
+     */
+    public void close() {
+        if (stubPool == null || stub == null) {
+            return;
+        }
+        if (failed) {
+            stubPool.invalidate(stub);
+        } else {
+            stubPool.release(serviceURL, stub);
+        }
+        stub = null;
+    }
+
+    /**
+     * Admit a call to the back end, failing fast if the back end is known to be unavailable or is already serving
+     * the maximum number of federation calls.
+     */
+    private BackendCallGuard.Ticket acquireCall(String operation) throws SAML2SSOUIAuthenticatorException {
+        if (callGuard == null) {
+            return null;
+        }
+        BackendCallGuard.Ticket ticket = callGuard.acquire();
+        if (ticket == null) {
+            String msg = "Call to the " + operation + " operation of the " + callGuard.getName() + " is rejected " +
+                    "since " + (callGuard.getState() == BackendCallGuard.State.CLOSED ?
+                    "too many calls are in progress" : "the back end is unavailable");
+            log.error(msg);
+            throw new SAML2SSOUIAuthenticatorException(msg);
+        }
+        return ticket;
+    }
+
+    private void releaseCall(BackendCallGuard.Ticket ticket, boolean success) {
+        if (ticket != null) {
+            callGuard.release(ticket, success);
+        }
+    }
+
+    private void failed(String operation, long start) {
+        failed = true;
+        callMetrics.record(operation, System.nanoTime() - start, false);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+*  Copyright (c) 2005-2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.identity.authenticator.saml2.sso.ui.client;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Number of calls, failures and latency of the operations of a back end service.
+ */
+public class ServiceCallMetrics {
+
+    private final ConcurrentMap<String, OperationMetrics> operations =
+            new ConcurrentHashMap<String, OperationMetrics>();
+
+    /**
+     * @param operation   name of the operation
+     * @param elapsedNano time taken by the call in nanoseconds
+     * @param success     false if the call failed
+     */
+    public void record(String operation, long elapsedNano, boolean success) {
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            OperationMetrics newMetrics = new OperationMetrics();
+            metrics = operations.putIfAbsent(operation, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        metrics.callCount.incrementAndGet();
+        if (!success) {
+            metrics.failureCount.incrementAndGet();
+        }
+        metrics.totalNano.addAndGet(elapsedNano);
+        long max = metrics.maxNano.get();
+        while (elapsedNano > max && !metrics.maxNano.compareAndSet(max, elapsedNano)) {
+            max = metrics.maxNano.get();
+        }
+    }
+
+    public long getCallCount(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        return metrics == null ? 0 : metrics.callCount.get();
+    }
+
+    public long getFailureCount(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        return metrics == null ? 0 : metrics.failureCount.get();
+    }
+
+    /**
+     * @param operation name of the operation
+     * @return average time taken by a call in milliseconds, or 0 if the operation was not called
+     */
+    public double getAverageLatencyMillis(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        if (metrics == null) {
+            return 0;
+        }
+        long callCount = metrics.callCount.get();
+        return callCount == 0 ? 0 : (double) metrics.totalNano.get() / callCount / TimeUnit.MILLISECONDS.toNanos(1);
+    }
+
+    /**
+     * @param operation name of the operation
+     * @return longest time taken by a call in milliseconds
+     */
+    public long getMaxLatencyMillis(String operation) {
+        OperationMetrics metrics = operations.get(operation);
+        return metrics == null ? 0 : TimeUnit.NANOSECONDS.toMillis(metrics.maxNano.get());
+    }
+
+    private static class OperationMetrics {
+
+        private final AtomicLong callCount = new AtomicLong();
+        private final AtomicLong failureCount = new AtomicLong();
+        private final AtomicLong totalNano = new AtomicLong();
+        private final AtomicLong maxNano = new AtomicLong();
+    }
+}
@@ -0,0 +1,240 @@
+/*
+*  Copyright (c) 2005-2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+*
+*  WSO2 Inc. licenses this file to you under the Apache License,
+*  Version 2.0 (the "License"); you may not use this file except
+*  in compliance with the License.
+*  You may obtain a copy of the License at
+*
+*    http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an
+* "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+* KIND, either express or implied.  See the License for the
+* specific language governing permissions and limitations
+* under the License.
+*/
+package org.wso2.carbon.identity.authenticator.saml2.sso.ui.client;
+
+import org.apache.axis2.AxisFault;
+import org.apache.axis2.client.Options;
+import org.apache.axis2.client.ServiceClient;
+import org.apache.axis2.client.Stub;
+import org.apache.axis2.context.ConfigurationContext;
+import org.apache.axis2.transport.http.HTTPConstants;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of Axis2 stubs of a back end service, kept per service endpoint.
+ * <p>
+ * A stub is used by one call at a time. It is borrowed for a login or a logout and returned once the call is done, so
+ * the stub, its service client and its options are built once instead of on every request. The session cookie is
+ * set on the stub when it is borrowed, and both it and the cookie managed on the service context are cleared when the
+ * stub is returned.
+ * <p>
+ * The HTTP client cached on the configuration context is deliberately not reused. It keeps a single cookie state for
+ * all the calls, so a session cookie set by the back end for one user would be sent with the calls of the next user.
+ * Each call therefore gets an HTTP client of its own, as it does without the pool.
+ *
+ * @param <T> type of the stub
+ */
+public class StubPool<T extends Stub> {
+
+    private static final Log log = LogFactory.getLog(StubPool.class);
+
+    /**
+     * Creates the stubs of the pool.
+     *
+     * @param <T> type of the stub
+     */
+    public interface StubFactory<T extends Stub> {
+
+        /**
+         * @param configurationContext client configuration context
+         * @param serviceEPR           endpoint of the back end service
+         * @return new stub
+         * @throws AxisFault if the stub can not be created
+         */
+        T create(ConfigurationContext configurationContext, String serviceEPR) throws AxisFault;
+    }
+
+    private final StubFactory<T> stubFactory;
+    private final int maxIdlePerEndpoint;
+    private final ConcurrentMap<String, IdleStubs<T>> idleStubs = new ConcurrentHashMap<String, IdleStubs<T>>();
+    private final AtomicLong createdCount = new AtomicLong();
+    private final AtomicLong reusedCount = new AtomicLong();
+    private final AtomicLong discardedCount = new AtomicLong();
+
+    /**
+     * @param stubFactory        factory creating the stubs
+     * @param maxIdlePerEndpoint maximum number of idle stubs kept for an endpoint, the stubs returned while the pool
+     *                           is full are discarded
+     */
+    public StubPool(StubFactory<T> stubFactory, int maxIdlePerEndpoint) {
+        this.stubFactory = stubFactory;
+        this.maxIdlePerEndpoint = maxIdlePerEndpoint;
+    }
+
+    /**
+     * Borrow a stub for a call. The stub has to be returned with {@link #release(String, Stub)} once the call is
+     * done, or with {@link #invalidate(Stub)} if the call failed.
+     *
+     * @param configurationContext client configuration context
+     * @param serviceEPR           endpoint of the back end service
+     * @param cookie               session cookie sent with the call, may be null
+     * @return stub
+     * @throws AxisFault if a new stub can not be created
+     */
+    public T borrow(ConfigurationContext configurationContext, String serviceEPR, String cookie) throws AxisFault {
+        T stub = null;
+        IdleStubs<T> idle = idleStubs.get(serviceEPR);
+        while (idle != null && stub == null) {
+            T candidate = idle.poll();
+            if (candidate == null) {
+                break;
+            }
+            // A stub belongs to the configuration context it was created with.
+            if (candidate._getServiceClient().getServiceContext().getConfigurationContext() == configurationContext) {
+                stub = candidate;
+                reusedCount.incrementAndGet();
+            } else {
+                discard(candidate);
+            }
+        }
+        if (stub == null) {
+            stub = stubFactory.create(configurationContext, serviceEPR);
+            createdCount.incrementAndGet();
+            Options options = stub._getServiceClient().getOptions();
+            options.setManageSession(true);
+        }
+        stub._getServiceClient().getOptions().setProperty(HTTPConstants.COOKIE_STRING, cookie);
+        return stub;
+    }
+
+    /**
+     * Return a stub after a successful call.
+     *
+     * @param serviceEPR endpoint the stub was borrowed for
+     * @param stub       stub
+     */
+    public void release(String serviceEPR, T stub) {
+        ServiceClient serviceClient = stub._getServiceClient();
+        try {
+            // Release the connection for the next call and forget the session of this call.
+            serviceClient.cleanupTransport();
+            serviceClient.getOptions().setProperty(HTTPConstants.COOKIE_STRING, null);
+            serviceClient.getServiceContext().removeProperty(HTTPConstants.COOKIE_STRING);
+        } catch (AxisFault e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while cleaning up the stub of : " + serviceEPR, e);
+            }
+            discard(stub);
+            return;
+        }
+
+        IdleStubs<T> idle = idleStubs.get(serviceEPR);
+        if (idle == null) {
+            IdleStubs<T> newIdle = new IdleStubs<T>();
+            idle = idleStubs.putIfAbsent(serviceEPR, newIdle);
+            if (idle == null) {
+                idle = newIdle;
+            }
+        }
+        if (!idle.offer(stub, maxIdlePerEndpoint)) {
+            discard(stub);
+        }
+    }
+
+    /**
+     * Discard a stub after a failed call, since its connection may be in an unknown state.
+     *
+     * @param stub stub
+     */
+    public void invalidate(T stub) {
+        discard(stub);
+    }
+
+    /**
+     * Discard all the idle stubs.
+     */
+    public void clear() {
+        for (IdleStubs<T> idle : idleStubs.values()) {
+            T stub;
+            while ((stub = idle.poll()) != null) {
+                discard(stub);
+            }
+        }
+        idleStubs.clear();
+    }
+
+    public long getCreatedCount() {
+        return createdCount.get();
+    }
+
+    public long getReusedCount() {
+        return reusedCount.get();
+    }
+
+    public long getDiscardedCount() {
+        return discardedCount.get();
+    }
+
+    /**
+     * @return number of stubs currently idle in the pool, for all the endpoints
+     */
+    public int getIdleCount() {
+        int count = 0;
+        for (IdleStubs<T> idle : idleStubs.values()) {
+            count += idle.size.get();
+        }
+        return count;
+    }
+
+    private void discard(T stub) {
+        discardedCount.incrementAndGet();
+        try {
+            stub._getServiceClient().cleanupTransport();
+            stub.cleanup();
+        } catch (AxisFault e) {
+            if (log.isDebugEnabled()) {
+                log.debug("Error while discarding a stub", e);
+            }
+        }
+    }
+
+    /**
+     * Idle stubs of an endpoint. The size is tracked separately since the size of a concurrent queue is not constant
+     * time.
+     */
+    private static class IdleStubs<T> {
+
+        private final Queue<T> stubs = new ConcurrentLinkedQueue<T>();
+        private final AtomicInteger size = new AtomicInteger();
+
+        T poll() {
+            T stub = stubs.poll();
+            if (stub != null) {
+                size.decrementAndGet();
+            }
+            return stub;
+        }
+
+        boolean offer(T stub, int maxSize) {
+            if (size.incrementAndGet() > maxSize) {
+                size.decrementAndGet();
+                return false;
+            }
+            stubs.offer(stub);
+            return true;
+        }
+    }
+}
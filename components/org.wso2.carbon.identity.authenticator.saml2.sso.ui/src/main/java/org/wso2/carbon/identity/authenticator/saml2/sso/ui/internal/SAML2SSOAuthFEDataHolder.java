@@ -18,6 +18,16 @@
 
 package org.wso2.carbon.identity.authenticator.saml2.sso.ui.internal;
 
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionReplayCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AuditEventSink;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.CryptoAdmissionController;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.DOMRetentionPolicy;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOLoginService;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.TrustedIssuerIndex;
+import org.wso2.carbon.identity.authenticator.saml2.sso.stub.SAML2SSOAuthenticationServiceStub;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.BackendCallGuard;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.StubPool;
+import org.wso2.carbon.identity.sso.saml.stub.IdentitySAMLSSOServiceStub;
 import org.wso2.carbon.ui.CarbonSSOSessionManager;
 import org.wso2.carbon.user.core.service.RealmService;
 import org.wso2.carbon.utils.ConfigurationContextService;
@@ -31,6 +41,18 @@ public class SAML2SSOAuthFEDataHolder {
     private RealmService realmService;
     private ConfigurationContextService configurationContextService;
     private CarbonSSOSessionManager carbonSSOSessionManager;
+    private AuditEventSink auditEventSink;
+    private AssertionReplayCache replayCache;
+    private TrustedIssuerIndex trustedIssuerIndex;
+    private CryptoAdmissionController cryptoAdmissionController;
+    private DOMRetentionPolicy domRetentionPolicy;
+    private StubPool<SAML2SSOAuthenticationServiceStub> authenticationStubPool;
+    private StubPool<IdentitySAMLSSOServiceStub> samlSSOServiceStubPool;
+    private SAML2SSOLoginService loginService;
+    private boolean compressedLoginEnabled;
+    private boolean inResponseToValidationEnabled;
+    private BackendCallGuard loginCallGuard;
+    private BackendCallGuard federationCallGuard;
 
     private SAML2SSOAuthFEDataHolder() {
     }
@@ -63,4 +85,100 @@ public class SAML2SSOAuthFEDataHolder {
     public void setCarbonSSOSessionManager(CarbonSSOSessionManager carbonSSOSessionManager) {
         this.carbonSSOSessionManager = carbonSSOSessionManager;
     }
+
+    public AuditEventSink getAuditEventSink() {
+        return auditEventSink;
+    }
+
+    public void setAuditEventSink(AuditEventSink auditEventSink) {
+        this.auditEventSink = auditEventSink;
+    }
+
+    public AssertionReplayCache getReplayCache() {
+        return replayCache;
+    }
+
+    public void setReplayCache(AssertionReplayCache replayCache) {
+        this.replayCache = replayCache;
+    }
+
+    public TrustedIssuerIndex getTrustedIssuerIndex() {
+        return trustedIssuerIndex;
+    }
+
+    public void setTrustedIssuerIndex(TrustedIssuerIndex trustedIssuerIndex) {
+        this.trustedIssuerIndex = trustedIssuerIndex;
+    }
+
+    public CryptoAdmissionController getCryptoAdmissionController() {
+        return cryptoAdmissionController;
+    }
+
+    public void setCryptoAdmissionController(CryptoAdmissionController cryptoAdmissionController) {
+        this.cryptoAdmissionController = cryptoAdmissionController;
+    }
+
+    public DOMRetentionPolicy getDOMRetentionPolicy() {
+        return domRetentionPolicy;
+    }
+
+    public void setDOMRetentionPolicy(DOMRetentionPolicy domRetentionPolicy) {
+        this.domRetentionPolicy = domRetentionPolicy;
+    }
+
+    public StubPool<SAML2SSOAuthenticationServiceStub> getAuthenticationStubPool() {
+        return authenticationStubPool;
+    }
+
+    public void setAuthenticationStubPool(StubPool<SAML2SSOAuthenticationServiceStub> authenticationStubPool) {
+        this.authenticationStubPool = authenticationStubPool;
+    }
+
+    public StubPool<IdentitySAMLSSOServiceStub> getSAMLSSOServiceStubPool() {
+        return samlSSOServiceStubPool;
+    }
+
+    public void setSAMLSSOServiceStubPool(StubPool<IdentitySAMLSSOServiceStub> samlSSOServiceStubPool) {
+        this.samlSSOServiceStubPool = samlSSOServiceStubPool;
+    }
+
+    public SAML2SSOLoginService getLoginService() {
+        return loginService;
+    }
+
+    public void setLoginService(SAML2SSOLoginService loginService) {
+        this.loginService = loginService;
+    }
+
+    public boolean isCompressedLoginEnabled() {
+        return compressedLoginEnabled;
+    }
+
+    public void setCompressedLoginEnabled(boolean compressedLoginEnabled) {
+        this.compressedLoginEnabled = compressedLoginEnabled;
+    }
+
+    public boolean isInResponseToValidationEnabled() {
+        return inResponseToValidationEnabled;
+    }
+
+    public void setInResponseToValidationEnabled(boolean inResponseToValidationEnabled) {
+        this.inResponseToValidationEnabled = inResponseToValidationEnabled;
+    }
+
+    public BackendCallGuard getLoginCallGuard() {
+        return loginCallGuard;
+    }
+
+    public void setLoginCallGuard(BackendCallGuard loginCallGuard) {
+        this.loginCallGuard = loginCallGuard;
+    }
+
+    public BackendCallGuard getFederationCallGuard() {
+        return federationCallGuard;
+    }
+
+    public void setFederationCallGuard(BackendCallGuard federationCallGuard) {
+        this.federationCallGuard = federationCallGuard;
+    }
 }
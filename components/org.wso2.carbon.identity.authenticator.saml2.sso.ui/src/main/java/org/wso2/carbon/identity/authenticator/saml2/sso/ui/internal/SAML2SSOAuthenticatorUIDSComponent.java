@@ -21,9 +21,25 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.osgi.service.component.ComponentContext;
 import org.wso2.carbon.CarbonConstants;
+import org.wso2.carbon.core.security.AuthenticatorsConfiguration;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionReplayCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AuditEventSink;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AuthnRequestStore;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.CryptoAdmissionController;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.DOMRetentionPolicy;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOAuthenticatorConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOLoginService;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SSOSessionManager;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.TrustedIssuerIndex;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.Util;
+import org.wso2.carbon.identity.authenticator.saml2.sso.stub.SAML2SSOAuthenticationServiceStub;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.authenticator.SAML2SSOUIAuthenticator;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.BackendCallGuard;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.SAML2SSOAuthenticationClient;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.SAMLSSOServiceClient;
+import org.wso2.carbon.identity.authenticator.saml2.sso.ui.client.StubPool;
 import org.wso2.carbon.identity.authenticator.saml2.sso.ui.filters.LoginPageFilter;
+import org.wso2.carbon.identity.sso.saml.stub.IdentitySAMLSSOServiceStub;
 import org.wso2.carbon.ui.CarbonSSOSessionManager;
 import org.wso2.carbon.ui.CarbonUIAuthenticator;
 import org.wso2.carbon.user.core.service.RealmService;
@@ -37,6 +53,8 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.util.Dictionary;
 import java.util.Hashtable;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
@@ -50,6 +68,7 @@ import org.osgi.service.component.annotations.ReferencePolicy;
 public class SAML2SSOAuthenticatorUIDSComponent {
 
     private static final Log log = LogFactory.getLog(SAML2SSOAuthenticatorUIDSComponent.class);
+    private static final int DEFAULT_STUB_POOL_MAX_IDLE = 32;
 
     @Activate
     protected void activate(ComponentContext ctxt) {
@@ -77,6 +96,15 @@ public class SAML2SSOAuthenticatorUIDSComponent {
                     Hashtable<String, String> props = new Hashtable<String, String>();
                     props.put(CarbonConstants.AUTHENTICATOR_TYPE, authenticator.getAuthenticatorName());
                     ctxt.getBundleContext().registerService(CarbonUIAuthenticator.class.getName(), authenticator, props);
+                    configureAuditEventSink();
+                    configureReplayCache();
+                    configureTrustedIssuerIndex();
+                    configureCryptoAdmissionController();
+                    configureDOMRetentionPolicy();
+                    configureAuthnRequestStore();
+                    configureStubPools();
+                    configureCompressedLogin();
+                    configureBackendCallGuards();
                     if (log.isDebugEnabled()) {
                         log.debug("SAML2 SSO Authenticator BE Bundle activated successfully.");
                     }
@@ -95,9 +123,135 @@ public class SAML2SSOAuthenticatorUIDSComponent {
 
     @Deactivate
     protected void deactivate(ComponentContext ctxt) {
+        AuditEventSink auditEventSink = SAML2SSOAuthFEDataHolder.getInstance().getAuditEventSink();
+        if (auditEventSink != null) {
+            // Flush the pending audit lines before the bundle goes away.
+            auditEventSink.shutdown();
+            SAML2SSOAuthFEDataHolder.getInstance().setAuditEventSink(null);
+        }
+        SAML2SSOAuthFEDataHolder.getInstance().setReplayCache(null);
+        SAML2SSOAuthFEDataHolder.getInstance().setTrustedIssuerIndex(null);
+        SAML2SSOAuthFEDataHolder.getInstance().setCryptoAdmissionController(null);
+        SAML2SSOAuthFEDataHolder.getInstance().setDOMRetentionPolicy(null);
+        SAML2SSOAuthFEDataHolder.getInstance().setCompressedLoginEnabled(false);
+        SAML2SSOAuthFEDataHolder.getInstance().setInResponseToValidationEnabled(false);
+        SAML2SSOAuthFEDataHolder.getInstance().setLoginCallGuard(null);
+        SAML2SSOAuthFEDataHolder.getInstance().setFederationCallGuard(null);
+        StubPool<SAML2SSOAuthenticationServiceStub> authenticationStubPool =
+                SAML2SSOAuthFEDataHolder.getInstance().getAuthenticationStubPool();
+        if (authenticationStubPool != null) {
+            SAML2SSOAuthFEDataHolder.getInstance().setAuthenticationStubPool(null);
+            authenticationStubPool.clear();
+        }
+        StubPool<IdentitySAMLSSOServiceStub> samlSSOServiceStubPool =
+                SAML2SSOAuthFEDataHolder.getInstance().getSAMLSSOServiceStubPool();
+        if (samlSSOServiceStubPool != null) {
+            SAML2SSOAuthFEDataHolder.getInstance().setSAMLSSOServiceStubPool(null);
+            samlSSOServiceStubPool.clear();
+        }
         log.debug("SAML2 SSO Authenticator FE Bundle is deactivated ");
     }
 
+    private void configureAuditEventSink() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        if (authenticatorConfig != null) {
+            SAML2SSOAuthFEDataHolder.getInstance().setAuditEventSink(
+                    AuditEventSink.create(authenticatorConfig.getParameters(), CarbonConstants.AUDIT_LOG));
+        }
+    }
+
+    private void configureReplayCache() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        Map<String, String> parameters = authenticatorConfig != null ? authenticatorConfig.getParameters() : null;
+        // The IDs are remembered as long as the BE accepts the assertions, which includes its clock skew.
+        int timeStampSkew = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.TIME_STAMP_SKEW,
+                SAML2SSOAuthenticatorConstants.DEFAULT_TIME_STAMP_SKEW, 0);
+        SAML2SSOAuthFEDataHolder.getInstance().setReplayCache(AssertionReplayCache.create(parameters,
+                TimeUnit.SECONDS.toMillis(timeStampSkew)));
+    }
+
+    private void configureTrustedIssuerIndex() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        if (authenticatorConfig != null) {
+            SAML2SSOAuthFEDataHolder.getInstance().setTrustedIssuerIndex(
+                    TrustedIssuerIndex.create(authenticatorConfig.getParameters()));
+        }
+    }
+
+    private void configureStubPools() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        Map<String, String> parameters = authenticatorConfig != null ? authenticatorConfig.getParameters() : null;
+        if (parameters != null &&
+                "false".equalsIgnoreCase(parameters.get(SAML2SSOAuthenticatorConstants.STUB_POOL_ENABLED))) {
+            if (log.isDebugEnabled()) {
+                log.debug("Pooling of the back end service stubs is disabled in the configuration");
+            }
+            return;
+        }
+        int maxIdle = Util.getIntParameter(parameters, SAML2SSOAuthenticatorConstants.STUB_POOL_MAX_IDLE,
+                DEFAULT_STUB_POOL_MAX_IDLE, 0);
+        SAML2SSOAuthFEDataHolder.getInstance().setAuthenticationStubPool(
+                new StubPool<SAML2SSOAuthenticationServiceStub>(SAML2SSOAuthenticationClient.STUB_FACTORY, maxIdle));
+        SAML2SSOAuthFEDataHolder.getInstance().setSAMLSSOServiceStubPool(
+                new StubPool<IdentitySAMLSSOServiceStub>(SAMLSSOServiceClient.STUB_FACTORY, maxIdle));
+    }
+
+    private void configureBackendCallGuards() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        Map<String, String> parameters = authenticatorConfig != null ? authenticatorConfig.getParameters() : null;
+        // The login and the federation calls have separate bulkheads, so that one can not starve the other.
+        SAML2SSOAuthFEDataHolder.getInstance().setLoginCallGuard(BackendCallGuard.create(
+                "SAML2SSOAuthenticationService", parameters, SAML2SSOAuthenticatorConstants.LOGIN_MAX_CONCURRENCY));
+        SAML2SSOAuthFEDataHolder.getInstance().setFederationCallGuard(BackendCallGuard.create(
+                "IdentitySAMLSSOService", parameters, SAML2SSOAuthenticatorConstants.FEDERATION_MAX_CONCURRENCY));
+    }
+
+    private void configureCompressedLogin() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        if (authenticatorConfig != null && "true".equalsIgnoreCase(authenticatorConfig.getParameters().get(
+                SAML2SSOAuthenticatorConstants.COMPRESSED_LOGIN_ENABLED))) {
+            // The BE has to provide the loginWithCompressedResponse operation.
+            SAML2SSOAuthFEDataHolder.getInstance().setCompressedLoginEnabled(true);
+            if (log.isDebugEnabled()) {
+                log.debug("SAML2 Responses are sent to the BE as compressed MTOM attachments");
+            }
+        }
+    }
+
+    private void configureCryptoAdmissionController() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        if (authenticatorConfig != null) {
+            SAML2SSOAuthFEDataHolder.getInstance().setCryptoAdmissionController(
+                    CryptoAdmissionController.create(authenticatorConfig.getParameters()));
+        }
+    }
+
+    private void configureAuthnRequestStore() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        Map<String, String> parameters = authenticatorConfig != null ? authenticatorConfig.getParameters() : null;
+        SSOSessionManager.setAuthnRequestStore(AuthnRequestStore.create(parameters));
+        if (parameters != null && "true".equalsIgnoreCase(parameters.get(
+                SAML2SSOAuthenticatorConstants.VALIDATE_IN_RESPONSE_TO))) {
+            // Only the Responses to the requests sent by redirect_ajaxprocessor.jsp are accepted.
+            SAML2SSOAuthFEDataHolder.getInstance().setInResponseToValidationEnabled(true);
+        }
+    }
+
+    private void configureDOMRetentionPolicy() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME);
+        SAML2SSOAuthFEDataHolder.getInstance().setDOMRetentionPolicy(DOMRetentionPolicy.create(
+                authenticatorConfig != null ? authenticatorConfig.getParameters() : null));
+    }
+
     @Reference(
              name = "user.realmservice.default", 
              service = org.wso2.carbon.user.core.service.RealmService.class, 
@@ -139,5 +293,19 @@ public class SAML2SSOAuthenticatorUIDSComponent {
     protected void unsetCarbonSSOSessionManagerInstance(CarbonSSOSessionManager carbonSSOSessionMgr) {
         SAML2SSOAuthFEDataHolder.getInstance().setCarbonSSOSessionManager(null);
     }
+
+    @Reference(
+             name = "saml2.sso.login.service", 
+             service = org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOLoginService.class, 
+             cardinality = ReferenceCardinality.OPTIONAL, 
+             policy = ReferencePolicy.DYNAMIC, 
+             unbind = "unsetLoginService")
+    protected void setLoginService(SAML2SSOLoginService loginService) {
+        SAML2SSOAuthFEDataHolder.getInstance().setLoginService(loginService);
+    }
+
+    protected void unsetLoginService(SAML2SSOLoginService loginService) {
+        SAML2SSOAuthFEDataHolder.getInstance().setLoginService(null);
+    }
 }
 
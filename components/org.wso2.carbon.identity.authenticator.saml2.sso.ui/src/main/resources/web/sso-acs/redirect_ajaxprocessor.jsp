@@ -34,12 +34,14 @@
     String relayState = "";
     String domain = null;
     String url = null;
+    String requestId = null;
     if (request.getParameter(SAML2SSOAuthenticatorConstants.LOG_OUT_REQ) != null) {
         LogoutRequestBuilder logoutRequestBuilder = new LogoutRequestBuilder();
         LogoutRequest logoutReq = logoutRequestBuilder.buildLogoutRequest((String) request.getAttribute(
                 SAML2SSOAuthenticatorConstants.LOGGED_IN_USER), SAML2SSOAuthenticatorConstants.LOGOUT_USER,
                 (String)request.getSession().getAttribute(SAML2SSOAuthenticatorConstants.IDP_SESSION_INDEX));
         encodedReq = Util.encode(Util.marshall(logoutReq));
+        requestId = logoutReq.getID();
         relayState = UUID.randomUUID().toString();
         url = Util.getIdentityProviderSLOServiceURL();
         if (url == null) {
@@ -52,12 +54,13 @@
                  authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorConstants.AUTHENTICATOR_NAME); 
          AuthnRequest authRequest = authnReqGenerator.buildAuthenticationRequest(null,authenticatorConfig.getParameters().get(SAML2SSOAuthenticatorConstants.NAMEID_POLICY_FORMAT));;
          encodedReq = Util.encode(Util.marshall(authRequest));
+         requestId = authRequest.getID();
          relayState = UUID.randomUUID().toString();
          domain = (String)request.getAttribute(MultitenantConstants.TENANT_DOMAIN);
          url = Util.getIdentityProviderSSOServiceURL();
     }
     // add the relay state to Session Manager
-    SSOSessionManager.addAuthnRequest(relayState);
+    SSOSessionManager.addAuthnRequest(relayState, requestId);
 
 %>
  <p>You are now redirected to <%=Util.getIdentityProviderSSOServiceURL()%>. If the
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso;
+
+import org.opensaml.saml.saml2.core.Response;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOLoginService;
+
+import javax.servlet.http.HttpSession;
+
+/**
+ * Logs users in for a FE running in the same JVM. The Response parsed by the FE is handed over to the login of the
+ * {@link SAML2SSOAuthenticator}, so the SOAP envelope and the second decoding and parsing of the Response are skipped.
+ * The login stages run the same as for the SAML2SSOAuthenticationService.
+ */
+public class InProcessLoginService implements SAML2SSOLoginService {
+
+    private final SAML2SSOAuthenticator authenticator;
+
+    public InProcessLoginService(SAML2SSOAuthenticator authenticator) {
+        this.authenticator = authenticator;
+    }
+
+    @Override
+    public boolean login(Response response, String encodedResponse, HttpSession httpSession) {
+        if (response == null) {
+            return false;
+        }
+        return authenticator.login(response, null, authenticator.getResponseDigest(encodedResponse), httpSession);
+    }
+}
@@ -24,34 +24,42 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.joda.time.DateTime;
 import org.opensaml.saml.saml2.core.Assertion;
-import org.opensaml.saml.saml2.core.Attribute;
-import org.opensaml.saml.saml2.core.AttributeStatement;
 import org.opensaml.saml.saml2.core.Audience;
 import org.opensaml.saml.saml2.core.AudienceRestriction;
 import org.opensaml.saml.saml2.core.Conditions;
 import org.opensaml.saml.saml2.core.EncryptedAssertion;
 import org.opensaml.saml.saml2.core.Response;
-import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
 import org.opensaml.core.xml.XMLObject;
-import org.opensaml.core.xml.schema.XSString;
-import org.opensaml.core.xml.schema.impl.XSAnyImpl;
-import org.opensaml.xmlsec.signature.Signature;
-import org.opensaml.xmlsec.signature.support.SignatureValidator;
-import org.opensaml.xmlsec.signature.support.SignatureException;
 import org.osgi.framework.BundleContext;
 import org.osgi.util.tracker.ServiceTracker;
 import org.wso2.carbon.CarbonConstants;
-import org.wso2.carbon.base.MultitenantConstants;
 import org.wso2.carbon.context.PrivilegedCarbonContext;
 import org.wso2.carbon.core.security.AuthenticatorsConfiguration;
 import org.wso2.carbon.core.services.authentication.CarbonServerAuthenticator;
 import org.wso2.carbon.core.services.util.CarbonAuthenticationUtil;
 import org.wso2.carbon.core.util.AnonymousSessionUtil;
 import org.wso2.carbon.core.util.PermissionUpdateUtil;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionAttributeExtractor;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionReplayCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AuditEventSink;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.DOMRetentionPolicy;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOAuthenticatorConstants;
 import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOUIAuthenticatorException;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.TrustedIssuerIndex;
 import org.wso2.carbon.identity.authenticator.saml2.sso.dto.AuthnReqDTO;
+import org.wso2.carbon.identity.authenticator.saml2.sso.dto.CompressedAuthnReqDTO;
 import org.wso2.carbon.identity.authenticator.saml2.sso.internal.SAML2SSOAuthBEDataHolder;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.LoginContext;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.LoginPipeline;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.LoginStage;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.RejectedResponseCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.provisioning.JITProvisioningQueue;
+import org.wso2.carbon.identity.authenticator.saml2.sso.provisioning.JITProvisioningRequest;
+import org.wso2.carbon.identity.authenticator.saml2.sso.provisioning.JITProvisioningUtil;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.CredentialTrustIndex;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.IdPTrustPolicy;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.SignatureValidationExecutor;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.SignatureVerificationService;
 import org.wso2.carbon.identity.authenticator.saml2.sso.util.Util;
 import org.wso2.carbon.identity.central.log.mgt.utils.LoggerUtils;
 import org.wso2.carbon.user.core.UserCoreConstants;
@@ -64,17 +72,20 @@ import org.wso2.carbon.utils.AuthenticationObserver;
 import org.wso2.carbon.utils.ServerConstants;
 import org.wso2.carbon.utils.multitenancy.MultitenantUtils;
 
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.math.BigInteger;
 import java.security.SecureRandom;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Calendar;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpSession;
 
@@ -90,104 +101,546 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
     private static final int DEFAULT_PRIORITY_LEVEL = 3;
     private static final String AUTHENTICATOR_NAME = SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME;
     private SecureRandom random = new SecureRandom();
-    private int timeStampSkewInSeconds = 300;
+    private final SignatureVerificationService signatureVerificationService = new SignatureVerificationService();
+    private volatile LoginPipeline loginPipeline;
 
     public boolean login(AuthnReqDTO authDto) {
-        String username = null;
-        String tenantDomain = null;
+        long cpuStartNanos = getCurrentThreadCpuTime();
+        String encodedResponse = authDto.getResponse();
+        boolean isAuthenticated = false;
+        try {
+            String responseXml = org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.decode(encodedResponse);
+            isAuthenticated = login(null, responseXml, getResponseDigest(encodedResponse), getHttpSession());
+        } catch (Exception e) {
+            log.error("System error while Authenticating/Authorizing User : " + e.getMessage(), e);
+        }
+        recordLoginPayload(SAML2SSOAuthenticatorBEConstants.LOGIN_FORM_TEXT,
+                encodedResponse != null ? encodedResponse.length() : 0, cpuStartNanos);
+        return isAuthenticated;
+    }
+
+    /**
+     * Login with the SAML2 Response sent as a raw DEFLATE compressed binary in an MTOM attachment, which avoids the
+     * Base64 encoding of the Response inside the SOAP body.
+     *
+     * @param authDto login request carrying the compressed Response
+     * @return true if the user is logged in
+     */
+    public boolean loginWithCompressedResponse(CompressedAuthnReqDTO authDto) {
+        long cpuStartNanos = getCurrentThreadCpuTime();
+        byte[] compressedResponse = null;
+        boolean isAuthenticated = false;
+        try {
+            compressedResponse = Util.readCompressedResponse(authDto.getResponse().getInputStream(),
+                    SAML2SSOAuthenticatorBEConstants.MAX_INFLATED_RESPONSE_SIZE);
+            String responseXml = Util.inflate(compressedResponse,
+                    SAML2SSOAuthenticatorBEConstants.MAX_INFLATED_RESPONSE_SIZE);
+            String responseDigest = dataHolder.getRejectedResponseCache() != null ?
+                    RejectedResponseCache.getDigest(compressedResponse) : null;
+            isAuthenticated = login(null, responseXml, responseDigest, getHttpSession());
+        } catch (Exception e) {
+            log.error("System error while Authenticating/Authorizing User : " + e.getMessage(), e);
+        }
+        recordLoginPayload(SAML2SSOAuthenticatorBEConstants.LOGIN_FORM_COMPRESSED,
+                compressedResponse != null ? compressedResponse.length : 0, cpuStartNanos);
+        return isAuthenticated;
+    }
+
+    /**
+     * Log a user in to a session with a SAML2 Response. This is the login of the SOAP operations and of the in-process
+     * {@link InProcessLoginService}.
+     *
+     * @param xmlObject      SAML2 Response which is already parsed, or null to parse the Response XML
+     * @param responseXml    SAML2 Response XML, may be null if the Response is already parsed
+     * @param responseDigest digest the Response is remembered by in the rejected response cache, may be null
+     * @param httpSession    session to log the user in to
+     * @return true if the user is logged in
+     */
+    boolean login(XMLObject xmlObject, String responseXml, String responseDigest, HttpSession httpSession) {
+        LoginContext context = null;
         String auditResult = SAML2SSOAuthenticatorConstants.AUDIT_RESULT_FAILED;
 
-        HttpSession httpSession = getHttpSession();
         try {
-            XMLObject xmlObject = Util.unmarshall(org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.decode(authDto.getResponse()));
-
-            username = org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.getUsername(xmlObject);
-            if (StringUtils.isBlank(username)) {
-                log.error("Authentication Request is rejected. " +
-                        "SAMLResponse does not contain the username of the subject.");
-                CarbonAuthenticationUtil.onFailedAdminLogin(httpSession, "", -1,
-                        "SAML2 SSO Authentication", "SAMLResponse does not contain the username of the subject");
-                // Unable to call #handleAuthenticationCompleted since there is no way to determine
-                // tenantId without knowing the username.
+            // A Response which was rejected recently is rejected again without being parsed or verified.
+            RejectedResponseCache rejectedResponseCache = dataHolder.getRejectedResponseCache();
+            if (rejectedResponseCache == null) {
+                responseDigest = null;
+            }
+            if (responseDigest != null) {
+                RejectedResponseCache.Rejection rejection = rejectedResponseCache.getRejection(responseDigest,
+                        System.currentTimeMillis());
+                if (rejection != null) {
+                    log.error("Authentication Request is rejected. The same SAML2 Response was rejected recently " +
+                            "by the login stage : " + rejection.getStage());
+                    String username = rejection.getUsername() != null ? rejection.getUsername() : "";
+                    CarbonAuthenticationUtil.onFailedAdminLogin(httpSession, username, rejection.getTenantId(),
+                            "SAML2 SSO Authentication", rejection.getFailureReason());
+                    auditLogin(rejection.getUsername(), rejection.getTenantAwareUsername(),
+                            rejection.getTenantDomain(), auditResult);
+                    return false;
+                }
+            }
+
+            if (xmlObject == null) {
+                xmlObject = Util.unmarshall(responseXml);
+            }
+            context = new LoginContext(httpSession, xmlObject);
+
+            if (!getLoginPipeline().execute(context)) {
+                log.error("Authentication Request is rejected. " + context.getFailureReason());
+                if (responseDigest != null && !context.isOverloaded()) {
+                    rejectedResponseCache.rejected(responseDigest, context);
+                }
+                String username = context.getUsername() != null ? context.getUsername() : "";
+                CarbonAuthenticationUtil.onFailedAdminLogin(httpSession, username, context.getTenantId(),
+                        "SAML2 SSO Authentication", context.getFailureReason());
+                // Unable to call #handleAuthenticationCompleted if the login was rejected before the tenant of the
+                // subject was determined.
+                if (context.isAuthenticationStarted()) {
+                    handleAuthenticationCompleted(context.getTenantId(), false);
+                }
+                return false;
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("User : " + context.getUsername() + " is authenticated for the SP entity ID : " +
+                        context.getServiceProviderId());
+            }
+            UserCoreUtil.setDomainInThreadLocal(null);
+            CarbonAuthenticationUtil.onSuccessAdminLogin(httpSession, context.getTenantAwareUsername(),
+                    context.getTenantId(), context.getTenantDomain(), "SAML2 SSO Authentication");
+            handleAuthenticationCompleted(context.getTenantId(), true);
+            auditResult = SAML2SSOAuthenticatorConstants.AUDIT_RESULT_SUCCESS;
+            return true;
+        } catch (Exception e) {
+            String msg = "System error while Authenticating/Authorizing User : " + e.getMessage();
+            log.error(msg, e);
+            return false;
+        } finally {
+            if (context != null) {
+                // The Response handed over by an in-process FE login outlives this login, and the signature
+                // stage that otherwise releases its DOM may be disabled.
+                releaseDOM(context);
+                auditLogin(context.getUsername(), context.getTenantAwareUsername(), context.getTenantDomain(),
+                        auditResult);
+            }
+        }
+    }
+
+    /**
+     * Write the audit line of a login, if the subject of the login is known.
+     */
+    private void auditLogin(String username, String tenantAwareUsername, String tenantDomain, String auditResult) {
+        if (StringUtils.isNotBlank(username) && AUDIT_LOG.isInfoEnabled() && !LoggerUtils.isEnableV2AuditLogs()) {
+
+            String auditInitiator = (tenantAwareUsername != null ? tenantAwareUsername : username) +
+                    UserCoreConstants.TENANT_DOMAIN_COMBINER + tenantDomain;
+            String auditData = "";
+
+            audit(auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGIN, auditData, auditResult);
+        }
+    }
+
+    /**
+     * Release the DOM of the Response and of its decrypted assertion, unless the DOM retention policy keeps it.
+     */
+    private void releaseDOM(LoginContext context) {
+        DOMRetentionPolicy domRetentionPolicy = dataHolder.getDOMRetentionPolicy();
+        if (domRetentionPolicy != null) {
+            domRetentionPolicy.release(context.getXmlObject(), context.getAssertion());
+        }
+    }
+
+    /**
+     * @param encodedResponse SAML2 Response as submitted by the client, may be null
+     * @return digest of the Response, or null if the rejected response cache is disabled
+     */
+    String getResponseDigest(String encodedResponse) {
+        if (encodedResponse == null || dataHolder.getRejectedResponseCache() == null) {
+            return null;
+        }
+        return RejectedResponseCache.getDigest(encodedResponse);
+    }
+
+    /**
+     * @return CPU time of the current thread in nanoseconds, or -1 if it is not supported
+     */
+    private long getCurrentThreadCpuTime() {
+        ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        return threadMXBean.isCurrentThreadCpuTimeSupported() ? threadMXBean.getCurrentThreadCpuTime() : -1;
+    }
+
+    /**
+     * Record the size of the Response and the CPU time of the login on the request thread. The CPU time of the
+     * signature validations which run in parallel on other threads is not included.
+     */
+    private void recordLoginPayload(String form, long payloadBytes, long cpuStartNanos) {
+        long cpuTimeNanos = cpuStartNanos >= 0 ? getCurrentThreadCpuTime() - cpuStartNanos : -1;
+        dataHolder.getLoginPayloadMetrics(form).record(payloadBytes, cpuTimeNanos);
+    }
+
+    /**
+     * Get the pipeline of the login stages. The pipeline is built on the first login from the stages of this
+     * authenticator and the <Parameter name="ValidationStageOrder"> and <Parameter name="DisabledValidationStages">
+     * configurations.
+     *
+     * @return login pipeline
+     * @throws SAML2SSOAuthenticatorException if the login stages can not be ordered
+     */
+    private LoginPipeline getLoginPipeline() throws SAML2SSOAuthenticatorException {
+        LoginPipeline pipeline = loginPipeline;
+        if (pipeline == null) {
+            List<LoginStage> stages = new ArrayList<LoginStage>();
+            stages.add(new TrustedIssuerStage());
+            stages.add(new ReplayStage());
+            stages.add(new DecryptionStage());
+            stages.add(new SubjectStage());
+            stages.add(new ValidityPeriodStage());
+            stages.add(new AudienceRestrictionStage());
+            stages.add(new TenantStage());
+            stages.add(new SignatureStage());
+            stages.add(new ProvisioningStage());
+            stages.add(new AuthorizationStage());
+
+            AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig =
+                    AuthenticatorsConfiguration.getInstance().getAuthenticatorConfig(AUTHENTICATOR_NAME);
+            List<String> stageOrder = Collections.emptyList();
+            Set<String> disabledStages = Collections.emptySet();
+            if (authenticatorConfig != null) {
+                Map<String, String> configParameters = authenticatorConfig.getParameters();
+                stageOrder = getStageNames(configParameters.get(
+                        SAML2SSOAuthenticatorBEConstants.PropertyConfig.VALIDATION_STAGE_ORDER));
+                disabledStages = new HashSet<String>(getStageNames(configParameters.get(
+                        SAML2SSOAuthenticatorBEConstants.PropertyConfig.DISABLED_VALIDATION_STAGES)));
+            }
+            pipeline = new LoginPipeline(stages, stageOrder, disabledStages);
+            loginPipeline = pipeline;
+        }
+        return pipeline;
+    }
+
+    private List<String> getStageNames(String stageNames) {
+        List<String> names = new ArrayList<String>();
+        if (StringUtils.isNotBlank(stageNames)) {
+            for (String name : StringUtils.split(stageNames, ',')) {
+                if (StringUtils.isNotBlank(name)) {
+                    names.add(name.trim());
+                }
+            }
+        }
+        return names;
+    }
+
+    /**
+     * Rejects messages which are not issued by one of the <Parameter name="TrustedIssuers">. The stage passes all the
+     * messages if no trusted issuers are configured.
+     */
+    private class TrustedIssuerStage extends LoginStage {
+
+        TrustedIssuerStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.TRUSTED_ISSUER, 0, false, false);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            TrustedIssuerIndex trustedIssuerIndex = dataHolder.getTrustedIssuerIndex();
+            if (trustedIssuerIndex == null) {
+                return true;
+            }
+            TrustedIssuerIndex.RejectionReason reason = trustedIssuerIndex.check(context.getXmlObject());
+            if (reason != null) {
+                context.setFailureReason("SAML2 Response is not issued by a trusted issuer : " + reason);
+                context.setRejectionCacheable(true);
                 return false;
             }
+            return true;
+        }
+    }
+
+    /**
+     * Rejects Responses and unencrypted Assertions which are already consumed, before the assertion is decrypted.
+     * The IDs of the encrypted assertions are checked by the {@link SignatureStage} once they are decrypted.
+     */
+    private class ReplayStage extends LoginStage {
 
+        ReplayStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.REPLAY, 5, false, false);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            AssertionReplayCache replayCache = dataHolder.getReplayCache();
+            if (replayCache == null) {
+                return true;
+            }
+            XMLObject xmlObject = context.getXmlObject();
+            long now = context.getRequestTimeMillis();
+            boolean replayed = false;
+            if (xmlObject instanceof Response) {
+                Response response = (Response) xmlObject;
+                replayed = replayCache.isReplayed(getIssuer(response), response.getID(), now);
+                List<Assertion> assertions = response.getAssertions();
+                for (int i = 0; !replayed && assertions != null && i < assertions.size(); i++) {
+                    replayed = replayCache.isReplayed(assertions.get(i), now);
+                }
+            } else if (xmlObject instanceof Assertion) {
+                replayed = replayCache.isReplayed((Assertion) xmlObject, now);
+            }
+            if (replayed) {
+                context.setFailureReason("SAML2 Response is already consumed. Possible replay attack!");
+                context.setRejectionCacheable(true);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Resolves the assertion (decrypting it if required) and the username of the subject.
+     */
+    private class DecryptionStage extends LoginStage {
+
+        DecryptionStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.DECRYPTION, 100, true, true);
+        }
+
+        /**
+         * An unencrypted assertion is only looked up, so the login is not held back by the crypto admission controller.
+         */
+        @Override
+        public boolean isCryptographic(LoginContext context) {
+            return isEncrypted(context.getXmlObject());
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            // Resolve the assertion once, the following stages read it from the context.
+            Assertion assertion = getAssertion(context.getXmlObject());
+            if (assertion == null && isEncrypted(context.getXmlObject())) {
+                context.setFailureReason("Unable to decrypt the SAML2 Assertion");
+                return false;
+            }
+            context.setAssertion(assertion);
+            return true;
+        }
+    }
+
+    private class SubjectStage extends LoginStage {
+
+        SubjectStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.SUBJECT, 10, false, true,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.DECRYPTION);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            // Read all the attributes required for the login from the assertion at once.
+            Assertion assertion = context.getAssertion();
+            if (assertion != null) {
+                context.setUsername(getAttributeExtractor().extract(assertion).getUsername());
+            }
+            context.setTrustPolicy(dataHolder.getTrustPolicyRegistry().getPolicy(
+                    getIssuer(context.getXmlObject(), assertion)));
+            if (StringUtils.isBlank(context.getUsername())) {
+                context.setFailureReason("SAMLResponse does not contain the username of the subject");
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private class ValidityPeriodStage extends LoginStage {
+
+        ValidityPeriodStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.VALIDITY_PERIOD, 20, false, false,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.SUBJECT);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
             try {
-                validateAssertionValidityPeriod(xmlObject);
+                validateAssertionValidityPeriod(context.getAssertion(), context.getRequestTimeMillis(),
+                        context.getTrustPolicy().getTimeStampSkewInMillis());
+                return true;
             } catch (SAML2SSOAuthenticatorException e) {
-                log.error("Authentication Request is rejected. " + e.getMessage());
-                CarbonAuthenticationUtil.onFailedAdminLogin(httpSession, username, -1,
-                        "SAML2 SSO Authentication", e.getMessage());
+                context.setFailureReason(e.getMessage());
                 return false;
             }
+        }
+    }
+
+    private class AudienceRestrictionStage extends LoginStage {
 
-            if (!validateAudienceRestrictionInXML(xmlObject)) {
-                log.error("Authentication Request is rejected. SAMLResponse AudienceRestriction validation failed.");
-                CarbonAuthenticationUtil.onFailedAdminLogin(httpSession, username, -1,
-                        "SAML2 SSO Authentication", "AudienceRestriction validation failed");
+        AudienceRestrictionStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.AUDIENCE_RESTRICTION, 20, false, false,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.SUBJECT);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            String serviceProviderId = getMatchedAudience(context.getAssertion(),
+                    context.getTrustPolicy().getAudiences());
+            if (serviceProviderId == null) {
+                context.setFailureReason("AudienceRestriction validation failed");
+                context.setRejectionCacheable(true);
                 return false;
             }
+            context.setServiceProviderId(serviceProviderId);
+            return true;
+        }
+    }
 
+    /**
+     * Resolves the tenant and the user realm of the subject and notifies the authentication observers.
+     */
+    private class TenantStage extends LoginStage {
 
+        TenantStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.TENANT, 30, false, true,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.SUBJECT);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
             RealmService realmService = dataHolder.getRealmService();
-            tenantDomain = MultitenantUtils.getTenantDomain(username);
+            String tenantDomain = MultitenantUtils.getTenantDomain(context.getUsername());
             int tenantId = realmService.getTenantManager().getTenantId(tenantDomain);
-            boolean isSignatureValid = false;
+            context.setTenantDomain(tenantDomain);
+            context.setTenantId(tenantId);
+            context.setTenantAwareUsername(MultitenantUtils.getTenantAwareUsername(context.getUsername()));
+            context.setRealm((UserRealm) realmService.getTenantUserRealm(tenantId));
             handleAuthenticationStarted(tenantId);
+            context.setAuthenticationStarted(true);
+            return true;
+        }
+    }
+
+    private class SignatureStage extends LoginStage {
 
-            isSignatureValid = validateSignature(xmlObject, tenantDomain);
-            if (!isSignatureValid) {
-                log.error("Authentication Request is rejected. Signature validation failed.");
-                CarbonAuthenticationUtil.onFailedAdminLogin(httpSession, username, tenantId, "SAML2 SSO Authentication",
-                        "Invalid Signature");
-                handleAuthenticationCompleted(tenantId, false);
+        SignatureStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.SIGNATURE, 100, true, true,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.SUBJECT,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.TENANT);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            AssertionReplayCache replayCache = dataHolder.getReplayCache();
+            long now = context.getRequestTimeMillis();
+            // An encrypted assertion is only known after the decryption, check it before verifying the signature.
+            if (replayCache != null && replayCache.isReplayed(context.getAssertion(), now)) {
+                context.setFailureReason("SAML2 Assertion is already consumed. Possible replay attack!");
+                context.setRejectionCacheable(true);
+                return false;
+            }
+            if (!validateSignature(context.getXmlObject(), context.getAssertion(), context.getTenantDomain(),
+                    context.getTrustPolicy())) {
+                if (Thread.currentThread().isInterrupted()) {
+                    // The parallel verification was interrupted, which says nothing about the signatures.
+                    context.setFailureReason("Signature validation was interrupted");
+                    return false;
+                }
+                context.setFailureReason("Invalid Signature");
+                context.setRejectionCacheable(true);
+                return false;
+            }
+            // Only messages with a valid signature are remembered, so that forged IDs can not fill the cache. The
+            // consumption is checked again since the same message may have been verified concurrently.
+            if (replayCache != null && !markConsumed(replayCache, context.getXmlObject(), context.getAssertion(),
+                    now)) {
+                if (replayCache.isFailClosed() && replayCache.isFull()) {
+                    // The message may pass once the entries of the cache expire.
+                    context.setFailureReason("SAML2 Response can not be remembered since the replay cache is full");
+                    return false;
+                }
+                context.setFailureReason("SAML2 Response is already consumed. Possible replay attack!");
+                context.setRejectionCacheable(true);
                 return false;
             }
+            // The signatures were the last use of the DOM, the rest of the login reads the XMLObjects.
+            releaseDOM(context);
+            return true;
+        }
+    }
 
-            username = MultitenantUtils.getTenantAwareUsername(username);
-            UserRealm realm = (UserRealm) realmService.getTenantUserRealm(tenantId);;
-            // Authentication is done
+    private class ProvisioningStage extends LoginStage {
 
-            // Starting user provisioning
-            provisionUser(username, realm, xmlObject);
-            // End user provisioning
+        ProvisioningStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.PROVISIONING, 200, false, true,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.SIGNATURE);
+        }
 
-            // Starting Authorization
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            provisionUser(context.getTenantAwareUsername(), context.getTenantId(), context.getTenantDomain(),
+                    context.getRealm(), context.getAssertion());
+            return true;
+        }
+    }
+
+    private class AuthorizationStage extends LoginStage {
 
-            PermissionUpdateUtil.updatePermissionTree(tenantId);
-            boolean isAuthorized = false;
-            if (realm != null) {
-                isAuthorized = realm.getAuthorizationManager().isUserAuthorized(username,
-                        "/permission/admin/login", CarbonConstants.UI_PERMISSION_ACTION);
+        AuthorizationStage() {
+            super(SAML2SSOAuthenticatorBEConstants.LoginStages.AUTHORIZATION, 300, false, true,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.SIGNATURE,
+                    SAML2SSOAuthenticatorBEConstants.LoginStages.PROVISIONING);
+        }
+
+        @Override
+        public boolean execute(LoginContext context) throws Exception {
+            PermissionUpdateUtil.updatePermissionTree(context.getTenantId());
+            UserRealm realm = context.getRealm();
+            if (realm == null || !realm.getAuthorizationManager().isUserAuthorized(context.getTenantAwareUsername(),
+                    SAML2SSOAuthenticatorBEConstants.LOGIN_PERMISSION, CarbonConstants.UI_PERMISSION_ACTION)) {
+                context.setFailureReason("Authorization Failure");
+                return false;
             }
-            if (isAuthorized) {
-                UserCoreUtil.setDomainInThreadLocal(null);
-                CarbonAuthenticationUtil.onSuccessAdminLogin(httpSession, username,
-                        tenantId, tenantDomain, "SAML2 SSO Authentication");
-                handleAuthenticationCompleted(tenantId, true);
-                auditResult = SAML2SSOAuthenticatorConstants.AUDIT_RESULT_SUCCESS;
-                return true;
-            } else {
-                log.error("Authentication Request is rejected. Authorization Failure.");
-                CarbonAuthenticationUtil.onFailedAdminLogin(httpSession, username, tenantId,
-                        "SAML2 SSO Authentication", "Authorization Failure");
-                handleAuthenticationCompleted(tenantId, false);
+            return true;
+        }
+    }
+
+    /**
+     * Remember the Response (if any) and the Assertion of a login as consumed.
+     *
+     * @return false if either of them was already consumed
+     */
+    private boolean markConsumed(AssertionReplayCache replayCache, XMLObject xmlObject, Assertion assertion,
+                                 long now) {
+        if (xmlObject instanceof Response) {
+            Response response = (Response) xmlObject;
+            // A Response has no validity period of its own, it is remembered as long as its assertion.
+            if (!replayCache.markConsumed(getIssuer(response), response.getID(),
+                    AssertionReplayCache.getNotOnOrAfter(assertion), now)) {
                 return false;
             }
-        } catch (Exception e) {
-            String msg = "System error while Authenticating/Authorizing User : " + e.getMessage();
-            log.error(msg, e);
-            return false;
-        } finally {
-            if (StringUtils.isNotBlank(username) && AUDIT_LOG.isInfoEnabled() && !LoggerUtils.isEnableV2AuditLogs()) {
+        }
+        return replayCache.markConsumed(assertion, now);
+    }
 
-                String auditInitiator = username + UserCoreConstants.TENANT_DOMAIN_COMBINER + tenantDomain;
-                String auditData = "";
+    private String getIssuer(Response response) {
+        return response.getIssuer() != null ? response.getIssuer().getValue() : null;
+    }
 
-                AUDIT_LOG.info(String.format(SAML2SSOAuthenticatorConstants.AUDIT_MESSAGE,
-                        auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGIN, AUTHENTICATOR_NAME,
-                        auditData, auditResult));
-            }
+    /**
+     * @return issuer of the assertion, or the issuer of the Response if the assertion does not carry one
+     */
+    private String getIssuer(XMLObject xmlObject, Assertion assertion) {
+        if (assertion != null && assertion.getIssuer() != null) {
+            return assertion.getIssuer().getValue();
+        }
+        return xmlObject instanceof Response ? getIssuer((Response) xmlObject) : null;
+    }
+
+    /**
+     * Write an audit line, through the asynchronous audit event sink if it is enabled.
+     */
+    private void audit(String initiator, String action, String data, String result) {
+        AuditEventSink auditEventSink = dataHolder.getAuditEventSink();
+        if (auditEventSink != null) {
+            auditEventSink.publish(initiator, action, AUTHENTICATOR_NAME, data, result);
+        } else {
+            AUDIT_LOG.info(String.format(SAML2SSOAuthenticatorConstants.AUDIT_MESSAGE, initiator, action,
+                    AUTHENTICATOR_NAME, data, result));
         }
     }
 
@@ -254,9 +707,8 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
                 String auditInitiator = tenantAwareUsername + UserCoreConstants.TENANT_DOMAIN_COMBINER + tenantDomain;
                 String auditData = delegatedBy != null ? "Delegated By : " + delegatedBy : "";
 
-                AUDIT_LOG.info(String.format(SAML2SSOAuthenticatorConstants.AUDIT_MESSAGE,
-                        auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGOUT, AUTHENTICATOR_NAME,
-                        auditData, SAML2SSOAuthenticatorConstants.AUDIT_RESULT_SUCCESS));
+                audit(auditInitiator, SAML2SSOAuthenticatorConstants.AUDIT_ACTION_LOGOUT, auditData,
+                        SAML2SSOAuthenticatorConstants.AUDIT_RESULT_SUCCESS);
             }
         }
     }
@@ -303,142 +755,95 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
     }
 
     /**
-     * Check whether signature validation is enabled in the authenticators.xml configuration file
-     *
-     * @return false only if SSOAuthenticator configuration has the parameter
-     * <Parameter name="ResponseSignatureValidationEnabled">false</Parameter>, true otherwise
-     */
-    private boolean isResponseSignatureValidationEnabled() {
-        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration
-                .getInstance();
-        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration
-                .getAuthenticatorConfig(AUTHENTICATOR_NAME);
-        if (authenticatorConfig != null) {
-            String responseSignatureValidation = authenticatorConfig
-                    .getParameters()
-                    .get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.RESPONSE_SIGNATURE_VALIDATION_ENABLED);
-            if (responseSignatureValidation != null
-                    && responseSignatureValidation.equalsIgnoreCase("false")) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Response signature validation is disabled in the configuration");
-                }
-                return false;
-            }
-        }
-        if (log.isDebugEnabled()) {
-            log.debug("Response signature validation is enabled in the configuration");
-        }
-        return true;
-    }
-
-    /**
-     * Check whether the Assertion signature validation is enabled or disabled in the authenticators.xml configuration
-     * file
+     * Validate the signature of a SAML2 XMLObject
      *
-     * @return false only if SAML2SSOAuthenticator configuration has the configuration
-     * <Parameter name="AssertionSignatureValidationEnabled">false</Parameter>
-     * Otherwise returns true
+     * @param xmlObject   SAML2 XMLObject
+     * @param assertion   SAML2 Assertion resolved from the XMLObject
+     * @param domainName  domain name of the subject
+     * @param trustPolicy trust policy of the IdP which issued the XMLObject
+     * @return true, if signature is valid.
+     * @throws SAML2SSOAuthenticatorException if the trusted credentials can not be loaded
      */
-    private boolean isAssertionSignatureValidationEnabled() {
+    private boolean validateSignature(XMLObject xmlObject, Assertion assertion, String domainName,
+                                      IdPTrustPolicy trustPolicy) throws SAML2SSOAuthenticatorException {
 
-        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
-        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig =
-                authenticatorsConfiguration.getAuthenticatorConfig(
-                        AUTHENTICATOR_NAME);
-        if (authenticatorConfig != null) {
-            String assertionSignatureValidation = authenticatorConfig.getParameters().get(
-                    SAML2SSOAuthenticatorBEConstants.PropertyConfig.ASSERTION_SIGNATURE_VALIDATION_ENABLED);
-            if (assertionSignatureValidation != null && !Boolean.parseBoolean(assertionSignatureValidation)) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Assertion signature validation is disabled in the configuration");
-                }
-                return false;
-            }
+        if (!(xmlObject instanceof Response) && !(xmlObject instanceof Assertion)) {
+            log.error("Only Response and Assertion objects are validated in this authenticator");
+            return false;
         }
-        if (log.isDebugEnabled()) {
-            log.debug("Assertion signature validation is enabled in the configuration");
+        boolean responseSignatureRequired = xmlObject instanceof Response && trustPolicy.isResponseSignatureRequired();
+        boolean assertionSignatureRequired = trustPolicy.isAssertionSignatureRequired();
+        if (!responseSignatureRequired && !assertionSignatureRequired) {
+            return true;
         }
-        return true;
-    }
 
-    /**
-     * Check whether signature validation is enabled in the authenticators.xml configuration file
-     *
-     * @return false only if SSOAuthenticator configuration has the parameter
-     * <Parameter name="ResponseSignatureValidationEnabled">false</Parameter>, true otherwise
-     */
-    private boolean isVerifySignWithUserDomain() {
-        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration
-                .getInstance();
-        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration
-                .getAuthenticatorConfig(AUTHENTICATOR_NAME);
-        if (authenticatorConfig != null) {
-            String responseSignatureValidation = authenticatorConfig
-                    .getParameters()
-                    .get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.VALIDATE_SIGNATURE_WITH_USER_DOMAIN);
-            if ("true".equalsIgnoreCase(responseSignatureValidation)) {
-                if (log.isDebugEnabled()) {
-                    log.debug("Signature validation is done based on user tenant domain");
-                }
-                return true;
-            }
+        // Resolved once, both signatures of the login are verified with the same credentials.
+        // A failure to load the credentials is a system error rather than an invalid signature.
+        CredentialTrustIndex credentials = trustPolicy.getCredentialTrustIndex(domainName);
+
+        boolean isSignatureValid;
+        SignatureValidationExecutor signatureValidationExecutor = dataHolder.getSignatureValidationExecutor();
+        if (responseSignatureRequired && assertionSignatureRequired && signatureValidationExecutor != null &&
+                hasOwnDocument(assertion, (Response) xmlObject)) {
+            isSignatureValid = validateSignatures(signatureValidationExecutor, (Response) xmlObject, assertion,
+                    credentials);
+        } else {
+            isSignatureValid = (!responseSignatureRequired || validateSignature((Response) xmlObject, credentials)) &&
+                    (!assertionSignatureRequired || validateSignature(assertion, credentials));
         }
-        if (log.isDebugEnabled()) {
-            log.debug("Signature validation is done with super tenant domain");
+        if (!isSignatureValid && log.isDebugEnabled()) {
+            log.debug("SAML Signature validation failed from domain : " + domainName);
         }
-        return false;
+        return isSignatureValid;
     }
 
-    private int getTimeStampSkewInSeconds() {
-        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
-        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration
-                .getAuthenticatorConfig(AUTHENTICATOR_NAME);
-
-        if (authenticatorConfig != null) {
-            String timeStampSkew = authenticatorConfig.getParameters()
-                    .get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.TIME_STAMP_SKEW);
-            if (timeStampSkew != null) {
-                timeStampSkewInSeconds = Integer.parseInt(timeStampSkew);
-            }
-        }
-        if (log.isDebugEnabled()) {
-            log.debug("TimestampSkew is set to " + timeStampSkewInSeconds + " s.");
+    /**
+     * The signatures can only be verified in parallel if the Assertion does not share the DOM of the Response, i.e. if
+     * it was decrypted into a document of its own.
+     */
+    private boolean hasOwnDocument(Assertion assertion, Response response) {
+        if (assertion.getDOM() == null || response.getDOM() == null) {
+            return false;
         }
-        return timeStampSkewInSeconds;
+        return assertion.getDOM().getOwnerDocument() != response.getDOM().getOwnerDocument();
     }
 
     /**
-     * Validate the signature of a SAML2 XMLObject
+     * Validate the signatures of a SAML2 Response and its decrypted Assertion at the same time
      *
-     * @param xmlObject  SAML2 XMLObject
-     * @param domainName domain name of the subject
-     * @return true, if signature is valid.
+     * @param signatureValidationExecutor executor running the validations
+     * @param response                    SAML2 Response
+     * @param assertion                   SAML2 Assertion resolved from the Response
+     * @param credentials                 credentials trusted to sign the Response and the Assertion
+     * @return true, if both signatures are valid.
      */
-    private boolean validateSignature(XMLObject xmlObject, String domainName) {
-
-        if (xmlObject instanceof Response) {
-            Response response = (Response) xmlObject;
-            if (!isResponseSignatureValidationEnabled() || validateSignature(response, domainName)) {
-                return !isAssertionSignatureValidationEnabled() || validateSignature(getAssertionFromResponse
-                        (response), domainName);
+    private boolean validateSignatures(SignatureValidationExecutor signatureValidationExecutor,
+                                       final Response response, final Assertion assertion,
+                                       final CredentialTrustIndex credentials) {
+        List<Callable<Boolean>> validations = new ArrayList<Callable<Boolean>>(2);
+        validations.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return validateSignature(response, credentials);
             }
-        } else if (xmlObject instanceof Assertion) {
-            return !isAssertionSignatureValidationEnabled() || validateSignature((Assertion) xmlObject, domainName);
-        } else {
-            log.error("Only Response and Assertion objects are validated in this authenticator");
-        }
-
-        return false;
+        });
+        validations.add(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return validateSignature(assertion, credentials);
+            }
+        });
+        return signatureValidationExecutor.validateAll(validations);
     }
 
     /**
      * Validate the signature of a SAML2 Response
      *
-     * @param response   SAML2 Response
-     * @param domainName domain name of the subject
+     * @param response    SAML2 Response
+     * @param credentials credentials trusted to sign the Response
      * @return true, if signature is valid.
      */
-    private boolean validateSignature(Response response, String domainName) {
+    private boolean validateSignature(Response response, CredentialTrustIndex credentials) {
         boolean isSignatureValid = false;
         if (response == null || response.getSignature() == null) {
             log.error("SAML Response is not signed or response not available. Authentication process will be " +
@@ -447,7 +852,7 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
             if (log.isDebugEnabled()) {
                 log.debug("Validating SAML Response Signature.");
             }
-            isSignatureValid = validateSignature(response.getSignature(), domainName);
+            isSignatureValid = signatureVerificationService.verify(response.getSignature(), credentials);
         }
         return isSignatureValid;
     }
@@ -455,11 +860,11 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
     /**
      * Validate the signature of a SAML2 Assertion
      *
-     * @param assertion  SAML2 Assertion
-     * @param domainName domain name of the subject
+     * @param assertion   SAML2 Assertion
+     * @param credentials credentials trusted to sign the Assertion
      * @return true, if signature is valid.
      */
-    private boolean validateSignature(Assertion assertion, String domainName) {
+    private boolean validateSignature(Assertion assertion, CredentialTrustIndex credentials) {
         boolean isSignatureValid = false;
         if (assertion == null || assertion.getSignature() == null) {
             log.error("SAML Assertion is not signed or assertion not available. Authentication process will be " +
@@ -468,53 +873,7 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
             if (log.isDebugEnabled()) {
                 log.debug("Validating SAML Assertion Signature.");
             }
-            isSignatureValid = validateSignature(assertion.getSignature(), domainName);
-        }
-        return isSignatureValid;
-    }
-
-    /**
-     * Validate the signature of a SAML2 Signature
-     *
-     * @param signature  SAML2 Signature
-     * @param domainName domain name of the subject
-     * @return true, if signature is valid.
-     */
-    private boolean validateSignature(Signature signature, String domainName) {
-        boolean isSignatureValid = false;
-
-        try {
-            SAMLSignatureProfileValidator signatureProfileValidator = new SAMLSignatureProfileValidator();
-            signatureProfileValidator.validate(signature);
-        } catch (SignatureException e) {
-            String logMsg = "Signature do not confirm to SAML signature profile. Possible XML Signature Wrapping " +
-                    "Attack!";
-            if (!LoggerUtils.isEnableV2AuditLogs()) {
-                AUDIT_LOG.warn(logMsg);
-            }
-            if (log.isDebugEnabled()) {
-                log.debug(logMsg, e);
-            }
-
-            return isSignatureValid;
-        }
-
-        try {
-            if (isVerifySignWithUserDomain()) {
-                SignatureValidator.validate(signature, Util.getX509CredentialImplForTenant(domainName));
-            } else {
-                SignatureValidator.validate(signature, Util.getX509CredentialImplForTenant(MultitenantConstants
-                        .SUPER_TENANT_DOMAIN_NAME));
-            }
-
-            isSignatureValid = true;
-        } catch (SAML2SSOAuthenticatorException e) {
-            String errorMsg = "Error when creating an X509CredentialImpl instance";
-            log.error(errorMsg, e);
-        } catch (SignatureException e) {
-            if (log.isDebugEnabled()) {
-                log.debug("SAML Signature validation failed from domain : " + domainName, e);
-            }
+            isSignatureValid = signatureVerificationService.verify(assertion.getSignature(), credentials);
         }
         return isSignatureValid;
     }
@@ -547,20 +906,31 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
     }
 
     /**
-     * Validate the AudienceRestriction of SAML2 XMLObject
+     * @param xmlObject Unmarshalled SAML2 Response or Assertion
+     * @return true if the assertion has to be decrypted to be read
+     */
+    private boolean isEncrypted(XMLObject xmlObject) {
+        if (xmlObject instanceof Response) {
+            Response response = (Response) xmlObject;
+            return (response.getAssertions() == null || response.getAssertions().isEmpty()) &&
+                    response.getEncryptedAssertions() != null && !response.getEncryptedAssertions().isEmpty();
+        }
+        return false;
+    }
+
+    /**
+     * Get the Assertion from a SAML2 XMLObject
      *
-     * @param xmlObject Unmarshalled SAML2 Response
-     * @return validity
+     * @param xmlObject Unmarshalled SAML2 Response or Assertion
+     * @return assertion, or null if the XMLObject does not carry an assertion
      */
-    private boolean validateAudienceRestrictionInXML(XMLObject xmlObject) {
+    private Assertion getAssertion(XMLObject xmlObject) {
         if (xmlObject instanceof Response) {
-            return validateAudienceRestrictionInResponse((Response) xmlObject);
+            return getAssertionFromResponse((Response) xmlObject);
         } else if (xmlObject instanceof Assertion) {
-            return validateAudienceRestrictionInAssertion((Assertion) xmlObject);
-        } else {
-            log.error("Only Response and Assertion objects are validated in this authendicator");
-            return false;
+            return (Assertion) xmlObject;
         }
+        return null;
     }
 
     /**
@@ -575,31 +945,41 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
     }
 
     /**
-     * Validate the AudienceRestriction of SAML2 Assertion
+     * Validate the AudienceRestriction of SAML2 Assertion against the audiences of the default trust policy
      *
      * @param assertion SAML2 Assertion
      * @return validity
      */
     public boolean validateAudienceRestrictionInAssertion(Assertion assertion) {
+        return getMatchedAudience(assertion,
+                dataHolder.getTrustPolicyRegistry().getDefaultPolicy().getAudiences()) != null;
+    }
+
+    /**
+     * Match the AudienceRestrictions of the assertion against the accepted audiences.
+     *
+     * @param assertion         SAML2 Assertion
+     * @param acceptedAudiences audiences (SP entity IDs) accepted from the issuer of the assertion
+     * @return the accepted audience (SP entity ID) the assertion is issued to, or null if there is no match
+     */
+    private String getMatchedAudience(Assertion assertion, Set<String> acceptedAudiences) {
         if (assertion != null) {
             Conditions conditions = assertion.getConditions();
             if (conditions != null) {
                 List<AudienceRestriction> audienceRestrictions = conditions.getAudienceRestrictions();
                 if (audienceRestrictions != null && !audienceRestrictions.isEmpty()) {
-                    for (AudienceRestriction audienceRestriction : audienceRestrictions) {
-                        if (audienceRestriction.getAudiences() != null && audienceRestriction.getAudiences().size() > 0) {
-                            for (Audience audience : audienceRestriction.getAudiences()) {
-                                String spId = org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.getServiceProviderId();
-                                if (spId == null) {
-                                    org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.initSSOConfigParams();
-                                    spId = org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.getServiceProviderId();
-                                }
-                                if (spId != null) {
-                                    if (spId.equals(audience.getAudienceURI())) {
-                                        return true;
-                                    }
-                                } else {
-                                    log.warn("No SAML2 service provider ID defined.");
+                    if (acceptedAudiences.isEmpty()) {
+                        log.warn("No SAML2 service provider ID defined.");
+                        return null;
+                    }
+                    // Indexed loops avoid allocating iterators on every login.
+                    for (int r = 0; r < audienceRestrictions.size(); r++) {
+                        List<Audience> audiences = audienceRestrictions.get(r).getAudiences();
+                        if (audiences != null && !audiences.isEmpty()) {
+                            for (int i = 0; i < audiences.size(); i++) {
+                                String audienceURI = audiences.get(i).getAudienceURI();
+                                if (acceptedAudiences.contains(audienceURI)) {
+                                    return audienceURI;
                                 }
                             }
                         } else {
@@ -613,7 +993,7 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
                 log.error("SAML2 Response doesn't contain Conditions");
             }
         }
-        return false;
+        return null;
     }
 
     private HttpSession getHttpSession() {
@@ -631,12 +1011,15 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
      * Provision/Create user on the server(SP) and update roles accordingly
      *
      * @param username
+     * @param tenantId
+     * @param tenantDomain
      * @param realm
-     * @param xmlObject
+     * @param assertion
      * @throws UserStoreException
      * @throws SAML2SSOAuthenticatorException
      */
-    private void provisionUser(String username, UserRealm realm, XMLObject xmlObject) throws UserStoreException, SAML2SSOAuthenticatorException {
+    private void provisionUser(String username, int tenantId, String tenantDomain, UserRealm realm,
+                               Assertion assertion) throws UserStoreException, SAML2SSOAuthenticatorException {
         AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
         AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig =
                 authenticatorsConfiguration.getAuthenticatorConfig(AUTHENTICATOR_NAME);
@@ -656,84 +1039,99 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
                         userstoreDomain = configParameters.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.PROVISIONING_DEFAULT_USERSTORE);
                     }
 
-                    UserStoreManager userstore = null;
-
                     // TODO : Get userstore from asserstion
                     // TODO : remove user store domain name from username
 
-                    if (userstoreDomain != null && !userstoreDomain.isEmpty()) {
-                        userstore = realm.getUserStoreManager().getSecondaryUserStoreManager(userstoreDomain);
-                    }
-
-                    // If default user store is invalid or not specified use primary user store
-                    if (userstore == null) {
-                        userstore = realm.getUserStoreManager();
+                    UserStoreManager userstore = JITProvisioningUtil.getUserStoreManager(realm, userstoreDomain);
+
+                    Set<String> allExistingRoles = JITProvisioningUtil.getExistingRoles(tenantId, userstoreDomain,
+                            userstore);
+                    boolean isExistingUser = userstore.isExistingUser(username);
+                    Set<String> currentRoles = isExistingUser ?
+                            JITProvisioningUtil.getRoleListOfUser(userstore, username) : Collections.<String>emptySet();
+
+                    // Only the asserted roles which exist in the user store can be assigned, so the role claim is
+                    // filtered against them while it is read. The roles the user holds are kept as well, so that
+                    // the revocations never depend on the cached role list of the user store.
+                    AssertionAttributeExtractor.RoleClaim roleClaim = getAttributeExtractor().extractRoles(assertion,
+                            JITProvisioningUtil.getKnownRoles(allExistingRoles, currentRoles),
+                            getMaxRoleClaimValues(configParameters));
+                    if (roleClaim.isTruncated()) {
+                        log.warn("Role claim of the user : " + username + " has more than " +
+                                roleClaim.getValueCount() + " values. Only the first " + roleClaim.getValueCount() +
+                                " values are considered, and no roles are revoked.");
                     }
-
-                    String[] newRoles = getRoles(xmlObject);
+                    Set<String> newRoles = roleClaim.getRoles();
                     // Load default role if asserstion didnt specify roles
-                    if (newRoles == null || newRoles.length == 0) {
+                    if (roleClaim.getValueCount() == 0) {
                         if (configParameters.containsKey(SAML2SSOAuthenticatorBEConstants.PropertyConfig.PROVISIONING_DEFAULT_ROLE)) {
-                            newRoles = new String[]{configParameters.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.PROVISIONING_DEFAULT_ROLE)};
+                            newRoles = Collections.singleton(configParameters.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.PROVISIONING_DEFAULT_ROLE));
                         }
                     }
-                    if (newRoles == null) {
-                        newRoles = new String[]{};
-                    }
-
 
                     if (log.isDebugEnabled()) {
-                        log.debug("User " + username + " contains roles : " + Arrays.toString(newRoles) + " as per response and (default role) config");
+                        log.debug("User " + username + " contains " + newRoles.size() + " known roles out of " +
+                                roleClaim.getValueCount() + " role values as per response and (default role) config");
                     }
 
-                    // addingRoles = newRoles AND allExistingRoles
-                    Collection<String> addingRoles = new ArrayList<String>();
-                    Collections.addAll(addingRoles, newRoles);
-                    Collection<String> allExistingRoles = Arrays.asList(userstore.getRoleNames());
-                    addingRoles.retainAll(allExistingRoles);
-
-                    if (userstore.isExistingUser(username)) {
+                    if (isExistingUser) {
                         // Update user
-                        Collection<String> currentRolesList = Arrays.asList(userstore.getRoleListOfUser(username));
-                        // addingRoles = (newRoles AND existingRoles) - currentRolesList)
-                        addingRoles.removeAll(currentRolesList);
-
-
-                        Collection<String> deletingRoles = new ArrayList<String>();
-                        deletingRoles.addAll(currentRolesList);
-                        // deletingRoles = currentRolesList - newRoles
-                        deletingRoles.removeAll(Arrays.asList(newRoles));
-
-                        // Exclude Internal/everyonerole from deleting role since its cannot be deleted
-                        deletingRoles.remove(realm.getRealmConfiguration().getEveryOneRoleName());
-
-                        // Check for case whether superadmin login
-                        if (userstore.getRealmConfiguration().isPrimary() && username.equals(realm.getRealmConfiguration().getAdminUserName())) {
-                            boolean isSuperAdminRoleRequired = false;
-                            if (configParameters.containsKey(SAML2SSOAuthenticatorBEConstants.PropertyConfig.IS_SUPER_ADMIN_ROLE_REQUIRED)) {
-                                isSuperAdminRoleRequired = Boolean.parseBoolean(configParameters.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.IS_SUPER_ADMIN_ROLE_REQUIRED));
+                        boolean isSuperAdminRoleRequired = Boolean.parseBoolean(configParameters.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.IS_SUPER_ADMIN_ROLE_REQUIRED));
+                        // The roles asserted past the limit of the role claim are unknown, so none are revoked.
+                        JITProvisioningUtil.RoleDiff roleDiff = JITProvisioningUtil.getRoleDiff(realm, userstore,
+                                username, currentRoles, newRoles, allExistingRoles, isSuperAdminRoleRequired,
+                                !roleClaim.isTruncated());
+                        JITProvisioningQueue jitProvisioningQueue = dataHolder.getJITProvisioningQueue();
+
+                        String[] addingRoles = roleDiff.getAddingRoles();
+                        String[] loginRoles = addingRoles.length > 0 && jitProvisioningQueue != null ?
+                                JITProvisioningUtil.getLoginRoles(realm, addingRoles) : addingRoles;
+
+                        if (roleDiff.isEmpty()) {
+                            // A queued request of an earlier login must not overwrite the roles asserted now.
+                            if (jitProvisioningQueue != null) {
+                                jitProvisioningQueue.supersede(tenantId, userstoreDomain, username);
                             }
-
-                            // Whether superadmin login without superadmin role is permitted
-                            if (!isSuperAdminRoleRequired && deletingRoles.contains(realm.getRealmConfiguration().getAdminRoleName())) {
-                                // Avoid removing superadmin role from superadmin user.
-                                deletingRoles.remove(realm.getRealmConfiguration().getAdminRoleName());
-                                log.warn("Proceeding with allowing super admin to be logged in, eventhough response doesn't include superadmin role assiged for the superadmin user.");
+                            if (log.isDebugEnabled()) {
+                                log.debug("Roles of the user : " + username + " are already up to date");
+                            }
+                        } else if (loginRoles.length < addingRoles.length &&
+                                jitProvisioningQueue.submit(new JITProvisioningRequest(tenantId, tenantDomain,
+                                        username, userstoreDomain, newRoles, isSuperAdminRoleRequired))) {
+                            // Revoked roles are removed and the roles granting the login permission are added inline,
+                            // since the user is authorized right after. The other new roles are added by the
+                            // provisioning queue.
+                            if (roleDiff.getDeletingRoles().length > 0 || loginRoles.length > 0) {
+                                userstore.updateRoleListOfUser(username, roleDiff.getDeletingRoles(), loginRoles);
+                            }
+                            if (log.isDebugEnabled()) {
+                                log.debug("Deleted " + roleDiff.getDeletingRoles().length + " roles, added " +
+                                        loginRoles.length + " login roles and queued " +
+                                        (addingRoles.length - loginRoles.length) + " adding roles of the user : " +
+                                        username);
+                            }
+                        } else {
+                            if (log.isDebugEnabled()) {
+                                log.debug("Deleting " + roleDiff.getDeletingRoles().length + " roles and adding " +
+                                        addingRoles.length + " roles of the user : " + username);
+                            }
+                            if (jitProvisioningQueue != null) {
+                                jitProvisioningQueue.supersede(tenantId, userstoreDomain, username);
+                            }
+                            userstore.updateRoleListOfUser(username, roleDiff.getDeletingRoles(), addingRoles);
+                            if (log.isDebugEnabled()) {
+                                log.debug("User: " + username + " is updated via SAML authenticator with " +
+                                        newRoles.size() + " roles");
                             }
-                        }
-
-                        if (log.isDebugEnabled()) {
-                            log.debug("Deleting roles : " + Arrays.toString(deletingRoles.toArray(new String[0])) + " and Adding roles : " + Arrays.toString(addingRoles.toArray(new String[0])));
-                        }
-                        userstore.updateRoleListOfUser(username, deletingRoles.toArray(new String[0]), addingRoles.toArray(new String[0]));
-                        if (log.isDebugEnabled()) {
-                            log.debug("User: " + username + " is updated via SAML authenticator with roles : " + Arrays.toString(newRoles));
                         }
                     } else {
+                        // First-time users are always provisioned inline since the authorization needs the user.
+                        String[] addingRoles = JITProvisioningUtil.getAssignableRoles(newRoles, allExistingRoles);
                         UserCoreUtil.setSkipPasswordPatternValidationThreadLocal(true);
-                        userstore.addUser(username, generatePassword(username), addingRoles.toArray(new String[0]), null, null);
+                        userstore.addUser(username, generatePassword(username), addingRoles, null, null);
                         if (log.isDebugEnabled()) {
-                            log.debug("User: " + username + " is provisioned via SAML authenticator with roles : " + Arrays.toString(addingRoles.toArray(new String[0])));
+                            log.debug("User: " + username + " is provisioned via SAML authenticator with " +
+                                    addingRoles.length + " roles");
                         }
                     }
                 } else {
@@ -753,113 +1151,41 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
     }
 
     /**
-     * Generates (random) password for user to be provisioned
+     * Maximum number of role values read from the role claim of an assertion
      *
-     * @param username
-     * @return
+     * @param configParameters authenticator configuration parameters
+     * @return maximum number of role values, or 0 if the role claim is not limited
      */
-    private String generatePassword(String username) {
-        return new BigInteger(130, random).toString(32);
+    private int getMaxRoleClaimValues(Map<String, String> configParameters) {
+        return org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.getIntParameter(configParameters,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.MAX_ROLE_CLAIM_VALUES, 0, 0);
     }
 
     /**
-     * Get roles from the SAML2 XMLObject
+     * Generates (random) password for user to be provisioned
      *
-     * @param xmlObject SAML2 XMLObject
-     * @return String array of roles
+     * @param username
+     * @return
      */
-    private String[] getRoles(XMLObject xmlObject) {
-        String[] arrRoles = {};
-        if (xmlObject instanceof Response) {
-            return getRolesFromResponse((Response) xmlObject);
-        } else if (xmlObject instanceof Assertion) {
-            return getRolesFromAssertion((Assertion) xmlObject);
-        } else {
-            return arrRoles;
-        }
+    private String generatePassword(String username) {
+        return new BigInteger(130, random).toString(32);
     }
 
     /**
-     * Get roles from the SAML2 Response
+     * Get the extractor used to read the username, roles and session index from assertions. It is built once from
+     * the configuration and shared by all the logins.
      *
-     * @param response SAML2 Response
-     * @return roles array
+     * @return assertion attribute extractor
      */
-    private String[] getRolesFromResponse(Response response) {
-        List<Assertion> assertions = response.getAssertions();
-        Assertion assertion = null;
-        if (assertions != null && assertions.size() > 0) {
-            assertion = assertions.get(0);
-            return getRolesFromAssertion(assertion);
-        }
-        return null;
-    }
-
-    /**
-     * Get the username from the SAML2 Assertion
-     *
-     * @param assertion SAML2 assertion
-     * @return username
-     */
-    private String[] getRolesFromAssertion(Assertion assertion) {
-        List<String> roles = new ArrayList<>();
-        String roleClaim = getRoleClaim();
-        List<AttributeStatement> attributeStatementList = assertion.getAttributeStatements();
-
-        if (attributeStatementList != null) {
-            for (AttributeStatement statement : attributeStatementList) {
-                List<Attribute> attributesList = statement.getAttributes();
-                for (Attribute attribute : attributesList) {
-                    String attributeName = attribute.getName();
-                    if (attributeName != null && roleClaim.equals(attributeName)) {
-                        List<XMLObject> attributeValues = attribute.getAttributeValues();
-                        if (attributeValues != null && attributeValues.size() == 1) {
-                            String attributeValueString = getAttributeValue(attributeValues.get(0));
-                            String multiAttributeSeparator = getAttributeSeperator();
-                            String[] attributeValuesArray = attributeValueString.split(multiAttributeSeparator);
-                            if (log.isDebugEnabled()) {
-                                log.debug("Adding attributes for Assertion: " + assertion + " AttributeName : " +
-                                        attributeName + ", AttributeValue : " + Arrays.toString(attributeValuesArray));
-                            }
-                            roles.addAll(Arrays.asList(attributeValuesArray));
-                        } else if (attributeValues != null && attributeValues.size() > 1) {
-                            for (XMLObject attributeValue : attributeValues) {
-                                String attributeValueString = getAttributeValue(attributeValue);
-                                if (log.isDebugEnabled()) {
-                                    log.debug("Adding attributes for Assertion: " + assertion + " AttributeName : " +
-                                            attributeName + ", AttributeValue : " + attributeValue);
-                                }
-                                roles.add(attributeValueString);
-                            }
-                        }
-                    }
-                }
-            }
-        }
-        if (log.isDebugEnabled()) {
-            log.debug("Role list found for assertion: " + assertion + ", roles: " + roles);
-        }
-        return roles.toArray(new String[roles.size()]);
-    }
-
-    private String getAttributeValue(XMLObject attributeValue) {
-        if (attributeValue == null){
-            return null;
-        } else if (attributeValue instanceof XSString){
-            return getStringAttributeValue((XSString) attributeValue);
-        } else if(attributeValue instanceof XSAnyImpl){
-            return getAnyAttributeValue((XSAnyImpl) attributeValue);
-        } else {
-            return attributeValue.toString();
+    private AssertionAttributeExtractor getAttributeExtractor() {
+        AssertionAttributeExtractor extractor = dataHolder.getAttributeExtractor();
+        if (extractor == null) {
+            extractor = new AssertionAttributeExtractor(
+                    org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.getLoginAttributeName(),
+                    getRoleClaim(), getAttributeSeperator());
+            dataHolder.setAttributeExtractor(extractor);
         }
-    }
-
-    private String getStringAttributeValue(XSString attributeValue) {
-        return attributeValue.getValue();
-    }
-
-    private String getAnyAttributeValue(XSAnyImpl attributeValue) {
-        return attributeValue.getTextContent();
+        return extractor;
     }
 
     /**
@@ -903,20 +1229,13 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
     /**
      * Validates the 'Not Before' and 'Not On Or After' conditions of the SAML Assertion
      *
-     * @param xmlObject SAML Assertion element
+     * @param assertion SAML Assertion element
+     * @param now       request time in epoch milliseconds
+     * @param skew      clock skew allowed for the issuer of the assertion, in milliseconds
      * @throws SAML2SSOAuthenticatorException
      */
-    private void validateAssertionValidityPeriod(XMLObject xmlObject) throws SAML2SSOAuthenticatorException {
-
-        Assertion assertion;
-        if (xmlObject instanceof Response) {
-            assertion = getAssertionFromResponse((Response) xmlObject);
-        } else if (xmlObject instanceof Assertion) {
-            assertion = (Assertion) xmlObject;
-        } else {
-            throw new SAML2SSOAuthenticatorException(
-                    "Only Response and Assertion objects are validated in this authenticator");
-        }
+    private void validateAssertionValidityPeriod(Assertion assertion, long now, long skew)
+            throws SAML2SSOAuthenticatorException {
 
         if (assertion == null) {
             throw new SAML2SSOAuthenticatorException("Cannot find a SAML Assertion");
@@ -925,18 +1244,18 @@ public class SAML2SSOAuthenticator implements CarbonServerAuthenticator {
         if (assertion.getConditions() != null) {
             DateTime validFrom = assertion.getConditions().getNotBefore();
             DateTime validTill = assertion.getConditions().getNotOnOrAfter();
-            int timeStampSkewInSeconds = getTimeStampSkewInSeconds();
 
-            if (validFrom != null && validFrom.minusSeconds(timeStampSkewInSeconds).isAfterNow()) {
+            // Compare the epoch milliseconds against the request time instead of deriving new DateTime instances.
+            if (validFrom != null && validFrom.getMillis() - skew > now) {
                 throw new SAML2SSOAuthenticatorException("Failed to meet SAML Assertion Condition 'Not Before'");
             }
 
-            if (validTill != null && validTill.plusSeconds(timeStampSkewInSeconds).isBeforeNow()) {
+            if (validTill != null && validTill.getMillis() + skew < now) {
                 throw new SAML2SSOAuthenticatorException(
                         "Failed to meet SAML Assertion Condition 'Not On Or After'");
             }
 
-            if (validFrom != null && validTill != null && validFrom.isAfter(validTill)) {
+            if (validFrom != null && validTill != null && validFrom.getMillis() > validTill.getMillis()) {
                 throw new SAML2SSOAuthenticatorException(
                         "SAML Assertion Condition 'Not Before' must be less than the " +
                                 "value of 'Not On Or After'");
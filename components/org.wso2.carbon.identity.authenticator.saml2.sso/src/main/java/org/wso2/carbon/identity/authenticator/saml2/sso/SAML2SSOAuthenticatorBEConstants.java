@@ -24,6 +24,18 @@ public class SAML2SSOAuthenticatorBEConstants {
 
     public static final String ROLE_ATTRIBUTE_NAME = "http://wso2.org/claims/role";
     public static final String ATTRIBUTE_VALUE_SEPERATER = ",";
+    public static final String LOGIN_PERMISSION = "/permission/admin/login";
+
+    public static final int DEFAULT_JIT_PROVISIONING_QUEUE_CAPACITY = 10000;
+    public static final int DEFAULT_JIT_PROVISIONING_BATCH_SIZE = 100;
+    public static final int DEFAULT_JIT_PROVISIONING_MAX_ATTEMPTS = 3;
+    public static final int DEFAULT_TIME_STAMP_SKEW = 300;
+    public static final int DEFAULT_SIGNATURE_VALIDATION_QUEUE_CAPACITY = 1000;
+    public static final int DEFAULT_REJECTED_RESPONSE_CACHE_MAX_ENTRIES = 4096;
+    public static final int DEFAULT_REJECTED_RESPONSE_CACHE_TIMEOUT = 30;
+    public static final int MAX_INFLATED_RESPONSE_SIZE = 1024 * 1024;
+    public static final String LOGIN_FORM_TEXT = "Text";
+    public static final String LOGIN_FORM_COMPRESSED = "Compressed";
 
 
     public class PropertyConfig {
@@ -42,6 +54,43 @@ public class SAML2SSOAuthenticatorBEConstants {
         public static final String PROVISIONING_DEFAULT_USERSTORE = "ProvisioningDefaultUserstore";
         public static final String PROVISIONING_DEFAULT_ROLE = "ProvisioningDefaultRole";
         public static final String IS_SUPER_ADMIN_ROLE_REQUIRED = "IsSuperAdminRoleRequired";
+        public static final String JIT_PROVISIONING_ASYNC_ENABLED = "JITProvisioningAsyncEnabled";
+        public static final String JIT_PROVISIONING_QUEUE_CAPACITY = "JITProvisioningQueueCapacity";
+        public static final String JIT_PROVISIONING_BATCH_SIZE = "JITProvisioningBatchSize";
+        public static final String JIT_PROVISIONING_MAX_ATTEMPTS = "JITProvisioningMaxAttempts";
+        public static final String MAX_ROLE_CLAIM_VALUES = "MaxRoleClaimValues";
+        public static final String VALIDATION_STAGE_ORDER = "ValidationStageOrder";
+        public static final String DISABLED_VALIDATION_STAGES = "DisabledValidationStages";
+        public static final String ACCEPTED_AUDIENCES = "AcceptedAudiences";
+        public static final String PARALLEL_SIGNATURE_VALIDATION_ENABLED = "ParallelSignatureValidationEnabled";
+        public static final String SIGNATURE_VALIDATION_THREADS = "SignatureValidationThreads";
+        public static final String SIGNATURE_VALIDATION_QUEUE_CAPACITY = "SignatureValidationQueueCapacity";
+        public static final String REJECTED_RESPONSE_CACHE_ENABLED = "RejectedResponseCacheEnabled";
+        public static final String REJECTED_RESPONSE_CACHE_MAX_ENTRIES = "RejectedResponseCacheMaxEntries";
+        public static final String REJECTED_RESPONSE_CACHE_TIMEOUT = "RejectedResponseCacheTimeout";
+        // Per IdP trust policies are configured as IdP.<n>.<setting>
+        public static final String IDP_POLICY_PREFIX = "IdP.";
+        public static final String IDP_POLICY_ISSUER = "Issuer";
+        public static final String IDP_POLICY_CERT_ALIAS = "CertAlias";
+        public static final String IDP_POLICY_AUDIENCES = "Audiences";
     }
 
+    /**
+     * Names of the login stages, as used in the ValidationStageOrder and DisabledValidationStages configurations.
+     */
+    public class LoginStages {
+        private LoginStages() {
+
+        }
+        public static final String TRUSTED_ISSUER = "TrustedIssuer";
+        public static final String REPLAY = "Replay";
+        public static final String DECRYPTION = "Decryption";
+        public static final String SUBJECT = "Subject";
+        public static final String VALIDITY_PERIOD = "ValidityPeriod";
+        public static final String AUDIENCE_RESTRICTION = "AudienceRestriction";
+        public static final String TENANT = "Tenant";
+        public static final String SIGNATURE = "Signature";
+        public static final String PROVISIONING = "Provisioning";
+        public static final String AUTHORIZATION = "Authorization";
+    }
 }
@@ -0,0 +1,37 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.dto;
+
+import javax.activation.DataHandler;
+
+/**
+ * Login request carrying the SAML2 Response as a DEFLATE compressed binary, which is sent as an MTOM attachment.
+ */
+public class CompressedAuthnReqDTO {
+
+    private DataHandler response;
+
+    public DataHandler getResponse() {
+        return response;
+    }
+
+    public void setResponse(DataHandler response) {
+        this.response = response;
+    }
+
+}
@@ -18,8 +18,25 @@
 package org.wso2.carbon.identity.authenticator.saml2.sso.internal;
 
 import org.osgi.framework.BundleContext;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionAttributeExtractor;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionReplayCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AuditEventSink;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.CryptoAdmissionController;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.DOMRetentionPolicy;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.TrustedIssuerIndex;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.LoginPayloadMetrics;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.LoginStageMetrics;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.RejectedResponseCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.provisioning.JITProvisioningQueue;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.IdPTrustPolicyRegistry;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.SignatureValidationExecutor;
 import org.wso2.carbon.user.core.service.RealmService;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 /**
  * This class is used as the singleton data holder inside SAML2 SSO Authenticator BE module.
  */
@@ -28,7 +45,20 @@ public class SAML2SSOAuthBEDataHolder {
 
     private RealmService realmService;
     private BundleContext bundleContext;
-    private String idPCertAlias;
+    private JITProvisioningQueue jitProvisioningQueue;
+    private volatile AssertionAttributeExtractor attributeExtractor;
+    private AuditEventSink auditEventSink;
+    private AssertionReplayCache replayCache;
+    private TrustedIssuerIndex trustedIssuerIndex;
+    private SignatureValidationExecutor signatureValidationExecutor;
+    private CryptoAdmissionController cryptoAdmissionController;
+    private RejectedResponseCache rejectedResponseCache;
+    private DOMRetentionPolicy domRetentionPolicy;
+    private final IdPTrustPolicyRegistry trustPolicyRegistry = new IdPTrustPolicyRegistry();
+    private final ConcurrentMap<String, LoginStageMetrics> loginStageMetrics =
+            new ConcurrentHashMap<String, LoginStageMetrics>();
+    private final ConcurrentMap<String, LoginPayloadMetrics> loginPayloadMetrics =
+            new ConcurrentHashMap<String, LoginPayloadMetrics>();
 
     private SAML2SSOAuthBEDataHolder() {
     }
@@ -53,11 +83,121 @@ public class SAML2SSOAuthBEDataHolder {
         this.bundleContext = bundleContext;
     }
 
-    public String getIdPCertAlias() {
-        return idPCertAlias;
+    public JITProvisioningQueue getJITProvisioningQueue() {
+        return jitProvisioningQueue;
+    }
+
+    public void setJITProvisioningQueue(JITProvisioningQueue jitProvisioningQueue) {
+        this.jitProvisioningQueue = jitProvisioningQueue;
+    }
+
+    public AssertionAttributeExtractor getAttributeExtractor() {
+        return attributeExtractor;
+    }
+
+    public void setAttributeExtractor(AssertionAttributeExtractor attributeExtractor) {
+        this.attributeExtractor = attributeExtractor;
+    }
+
+    public AuditEventSink getAuditEventSink() {
+        return auditEventSink;
+    }
+
+    public void setAuditEventSink(AuditEventSink auditEventSink) {
+        this.auditEventSink = auditEventSink;
+    }
+
+    public AssertionReplayCache getReplayCache() {
+        return replayCache;
+    }
+
+    public void setReplayCache(AssertionReplayCache replayCache) {
+        this.replayCache = replayCache;
+    }
+
+    public TrustedIssuerIndex getTrustedIssuerIndex() {
+        return trustedIssuerIndex;
+    }
+
+    public void setTrustedIssuerIndex(TrustedIssuerIndex trustedIssuerIndex) {
+        this.trustedIssuerIndex = trustedIssuerIndex;
+    }
+
+    public SignatureValidationExecutor getSignatureValidationExecutor() {
+        return signatureValidationExecutor;
+    }
+
+    public void setSignatureValidationExecutor(SignatureValidationExecutor signatureValidationExecutor) {
+        this.signatureValidationExecutor = signatureValidationExecutor;
+    }
+
+    public CryptoAdmissionController getCryptoAdmissionController() {
+        return cryptoAdmissionController;
+    }
+
+    public void setCryptoAdmissionController(CryptoAdmissionController cryptoAdmissionController) {
+        this.cryptoAdmissionController = cryptoAdmissionController;
+    }
+
+    public RejectedResponseCache getRejectedResponseCache() {
+        return rejectedResponseCache;
+    }
+
+    public void setRejectedResponseCache(RejectedResponseCache rejectedResponseCache) {
+        this.rejectedResponseCache = rejectedResponseCache;
+    }
+
+    public DOMRetentionPolicy getDOMRetentionPolicy() {
+        return domRetentionPolicy;
+    }
+
+    public void setDOMRetentionPolicy(DOMRetentionPolicy domRetentionPolicy) {
+        this.domRetentionPolicy = domRetentionPolicy;
+    }
+
+    public IdPTrustPolicyRegistry getTrustPolicyRegistry() {
+        return trustPolicyRegistry;
+    }
+
+    /**
+     * Metrics of a login stage are kept here so that they are shared by all the authenticator instances.
+     *
+     * @param stageName name of the login stage
+     * @return metrics of the login stage
+     */
+    public LoginStageMetrics getLoginStageMetrics(String stageName) {
+        LoginStageMetrics metrics = loginStageMetrics.get(stageName);
+        if (metrics == null) {
+            LoginStageMetrics newMetrics = new LoginStageMetrics(stageName);
+            metrics = loginStageMetrics.putIfAbsent(stageName, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
+    }
+
+    public Collection<LoginStageMetrics> getLoginStageMetrics() {
+        return Collections.unmodifiableCollection(loginStageMetrics.values());
+    }
+
+    /**
+     * @param form form of the SAML2 Response received by the login
+     * @return payload metrics of the logins receiving that form
+     */
+    public LoginPayloadMetrics getLoginPayloadMetrics(String form) {
+        LoginPayloadMetrics metrics = loginPayloadMetrics.get(form);
+        if (metrics == null) {
+            LoginPayloadMetrics newMetrics = new LoginPayloadMetrics(form);
+            metrics = loginPayloadMetrics.putIfAbsent(form, newMetrics);
+            if (metrics == null) {
+                metrics = newMetrics;
+            }
+        }
+        return metrics;
     }
 
-    public void setIdPCertAlias(String idPCertAlias) {
-        this.idPCertAlias = idPCertAlias;
+    public Collection<LoginPayloadMetrics> getLoginPayloadMetrics() {
+        return Collections.unmodifiableCollection(loginPayloadMetrics.values());
     }
 }
@@ -23,11 +23,23 @@ import org.osgi.service.component.ComponentContext;
 import org.wso2.carbon.CarbonConstants;
 import org.wso2.carbon.core.security.AuthenticatorsConfiguration;
 import org.wso2.carbon.core.services.authentication.CarbonServerAuthenticator;
+import org.wso2.carbon.identity.authenticator.saml2.sso.InProcessLoginService;
 import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticator;
 import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorBEConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AssertionReplayCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.AuditEventSink;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.CryptoAdmissionController;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.DOMRetentionPolicy;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.SAML2SSOLoginService;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.TrustedIssuerIndex;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.Util;
+import org.wso2.carbon.identity.authenticator.saml2.sso.pipeline.RejectedResponseCache;
+import org.wso2.carbon.identity.authenticator.saml2.sso.provisioning.JITProvisioningQueue;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.SignatureValidationExecutor;
 import org.wso2.carbon.user.core.service.RealmService;
 import java.util.Hashtable;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 import org.osgi.service.component.annotations.Deactivate;
@@ -50,8 +62,18 @@ public class SAML2SSOAuthenticatorDSComponent {
             Hashtable<String, String> props = new Hashtable<String, String>();
             props.put(CarbonConstants.AUTHENTICATOR_TYPE, authenticator.getAuthenticatorName());
             ctxt.getBundleContext().registerService(CarbonServerAuthenticator.class.getName(), authenticator, props);
-            // Check whether the IdPCertAlias is set for signature validations of Tenant 0.
-            configureIdPCertAlias();
+            // Lets a co-located FE log users in without a SOAP call.
+            ctxt.getBundleContext().registerService(SAML2SSOLoginService.class.getName(),
+                    new InProcessLoginService(authenticator), null);
+            configureJITProvisioningQueue();
+            configureAuditEventSink();
+            configureReplayCache();
+            configureTrustedIssuerIndex();
+            configureSignatureValidationExecutor();
+            configureCryptoAdmissionController();
+            configureRejectedResponseCache();
+            configureDOMRetentionPolicy();
+            SAML2SSOAuthBEDataHolder.getInstance().getTrustPolicyRegistry().reload();
             if (log.isDebugEnabled()) {
                 log.debug("SAML2 SSO Authenticator BE Bundle activated successfuly.");
             }
@@ -64,6 +86,28 @@ public class SAML2SSOAuthenticatorDSComponent {
 
     @Deactivate
     protected void deactivate(ComponentContext ctxt) {
+        JITProvisioningQueue jitProvisioningQueue = SAML2SSOAuthBEDataHolder.getInstance().getJITProvisioningQueue();
+        if (jitProvisioningQueue != null) {
+            jitProvisioningQueue.shutdown();
+            SAML2SSOAuthBEDataHolder.getInstance().setJITProvisioningQueue(null);
+        }
+        AuditEventSink auditEventSink = SAML2SSOAuthBEDataHolder.getInstance().getAuditEventSink();
+        if (auditEventSink != null) {
+            // Flush the pending audit lines before the bundle goes away.
+            auditEventSink.shutdown();
+            SAML2SSOAuthBEDataHolder.getInstance().setAuditEventSink(null);
+        }
+        SignatureValidationExecutor signatureValidationExecutor =
+                SAML2SSOAuthBEDataHolder.getInstance().getSignatureValidationExecutor();
+        if (signatureValidationExecutor != null) {
+            SAML2SSOAuthBEDataHolder.getInstance().setSignatureValidationExecutor(null);
+            signatureValidationExecutor.shutdown();
+        }
+        SAML2SSOAuthBEDataHolder.getInstance().setCryptoAdmissionController(null);
+        SAML2SSOAuthBEDataHolder.getInstance().setRejectedResponseCache(null);
+        SAML2SSOAuthBEDataHolder.getInstance().setDOMRetentionPolicy(null);
+        SAML2SSOAuthBEDataHolder.getInstance().setReplayCache(null);
+        SAML2SSOAuthBEDataHolder.getInstance().setTrustedIssuerIndex(null);
         SAML2SSOAuthBEDataHolder.getInstance().setBundleContext(null);
         log.debug("SAML2 SSO Authenticator BE Bundle is deactivated ");
     }
@@ -82,17 +126,107 @@ public class SAML2SSOAuthenticatorDSComponent {
         SAML2SSOAuthBEDataHolder.getInstance().setRealmService(null);
     }
 
-    private void configureIdPCertAlias() {
-        // read the meta data required for signature validation for assertions issued for Super Tenant.
+    private void configureJITProvisioningQueue() {
+        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        if (authenticatorConfig == null) {
+            return;
+        }
+        Map<String, String> authenticatorParams = authenticatorConfig.getParameters();
+        if (!Boolean.parseBoolean(authenticatorParams.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.JIT_USER_PROVISIONING_ENABLED)) ||
+                !Boolean.parseBoolean(authenticatorParams.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.JIT_PROVISIONING_ASYNC_ENABLED))) {
+            return;
+        }
+        int capacity = Util.getIntParameter(authenticatorParams,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.JIT_PROVISIONING_QUEUE_CAPACITY,
+                SAML2SSOAuthenticatorBEConstants.DEFAULT_JIT_PROVISIONING_QUEUE_CAPACITY, 1);
+        int batchSize = Util.getIntParameter(authenticatorParams,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.JIT_PROVISIONING_BATCH_SIZE,
+                SAML2SSOAuthenticatorBEConstants.DEFAULT_JIT_PROVISIONING_BATCH_SIZE, 1);
+        int maxAttempts = Util.getIntParameter(authenticatorParams,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.JIT_PROVISIONING_MAX_ATTEMPTS,
+                SAML2SSOAuthenticatorBEConstants.DEFAULT_JIT_PROVISIONING_MAX_ATTEMPTS, 1);
+        JITProvisioningQueue jitProvisioningQueue = new JITProvisioningQueue(capacity, batchSize, maxAttempts);
+        jitProvisioningQueue.start();
+        SAML2SSOAuthBEDataHolder.getInstance().setJITProvisioningQueue(jitProvisioningQueue);
+    }
+
+    private void configureAuditEventSink() {
         AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
         AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
         if (authenticatorConfig != null) {
-            Map<String, String> authenticatorParams = authenticatorConfig.getParameters();
-            // if this parameter is set, then use it with tenant 0. Otherwise use the default cert.
-            if (authenticatorParams.containsKey(SAML2SSOAuthenticatorBEConstants.PropertyConfig.AUTH_CONFIG_PARAM_IDP_CERT_ALIAS)) {
-                SAML2SSOAuthBEDataHolder.getInstance().setIdPCertAlias(authenticatorParams.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.AUTH_CONFIG_PARAM_IDP_CERT_ALIAS));
-            }
+            SAML2SSOAuthBEDataHolder.getInstance().setAuditEventSink(
+                    AuditEventSink.create(authenticatorConfig.getParameters(), CarbonConstants.AUDIT_LOG));
         }
     }
-}
 
+    private void configureReplayCache() {
+        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        Map<String, String> authenticatorParams = authenticatorConfig != null ? authenticatorConfig.getParameters() : null;
+        int timeStampSkew = SAML2SSOAuthenticatorBEConstants.DEFAULT_TIME_STAMP_SKEW;
+        if (authenticatorParams != null) {
+            timeStampSkew = Util.getIntParameter(authenticatorParams,
+                    SAML2SSOAuthenticatorBEConstants.PropertyConfig.TIME_STAMP_SKEW,
+                    SAML2SSOAuthenticatorBEConstants.DEFAULT_TIME_STAMP_SKEW, 0);
+        }
+        AssertionReplayCache replayCache = AssertionReplayCache.create(authenticatorParams,
+                TimeUnit.SECONDS.toMillis(timeStampSkew));
+        if (replayCache == null && log.isDebugEnabled()) {
+            log.debug("Replay detection of SAML2 Responses is disabled in the configuration");
+        }
+        SAML2SSOAuthBEDataHolder.getInstance().setReplayCache(replayCache);
+    }
+
+    private void configureTrustedIssuerIndex() {
+        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        if (authenticatorConfig != null) {
+            SAML2SSOAuthBEDataHolder.getInstance().setTrustedIssuerIndex(
+                    TrustedIssuerIndex.create(authenticatorConfig.getParameters()));
+        }
+    }
+
+    private void configureSignatureValidationExecutor() {
+        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        if (authenticatorConfig == null) {
+            return;
+        }
+        Map<String, String> authenticatorParams = authenticatorConfig.getParameters();
+        if (!Boolean.parseBoolean(authenticatorParams.get(SAML2SSOAuthenticatorBEConstants.PropertyConfig.PARALLEL_SIGNATURE_VALIDATION_ENABLED))) {
+            return;
+        }
+        int threads = Util.getIntParameter(authenticatorParams,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.SIGNATURE_VALIDATION_THREADS,
+                Runtime.getRuntime().availableProcessors(), 1);
+        int queueCapacity = Util.getIntParameter(authenticatorParams,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.SIGNATURE_VALIDATION_QUEUE_CAPACITY,
+                SAML2SSOAuthenticatorBEConstants.DEFAULT_SIGNATURE_VALIDATION_QUEUE_CAPACITY, 1);
+        SAML2SSOAuthBEDataHolder.getInstance().setSignatureValidationExecutor(
+                new SignatureValidationExecutor(threads, queueCapacity));
+    }
+
+    private void configureCryptoAdmissionController() {
+        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        if (authenticatorConfig != null) {
+            SAML2SSOAuthBEDataHolder.getInstance().setCryptoAdmissionController(
+                    CryptoAdmissionController.create(authenticatorConfig.getParameters()));
+        }
+    }
+
+    private void configureRejectedResponseCache() {
+        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        SAML2SSOAuthBEDataHolder.getInstance().setRejectedResponseCache(RejectedResponseCache.create(
+                authenticatorConfig != null ? authenticatorConfig.getParameters() : null));
+    }
+
+    private void configureDOMRetentionPolicy() {
+        AuthenticatorsConfiguration authenticatorsConfiguration = AuthenticatorsConfiguration.getInstance();
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = authenticatorsConfiguration.getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        SAML2SSOAuthBEDataHolder.getInstance().setDOMRetentionPolicy(DOMRetentionPolicy.create(
+                authenticatorConfig != null ? authenticatorConfig.getParameters() : null));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.pipeline;
+
+import org.opensaml.core.xml.XMLObject;
+import org.opensaml.saml.saml2.core.Assertion;
+import org.wso2.carbon.identity.authenticator.saml2.sso.trust.IdPTrustPolicy;
+import org.wso2.carbon.user.core.UserRealm;
+
+import javax.servlet.http.HttpSession;
+
+/**
+ * State of a single SAML2 SSO login, shared by the stages of the {@link LoginPipeline}.
+ */
+public class LoginContext {
+
+    private final HttpSession httpSession;
+    private final XMLObject xmlObject;
+    private final long requestTimeMillis;
+    private Assertion assertion;
+    private String username;
+    private String tenantAwareUsername;
+    private String tenantDomain;
+    private String serviceProviderId;
+    private IdPTrustPolicy trustPolicy;
+    private int tenantId = -1;
+    private UserRealm realm;
+    private boolean authenticationStarted;
+    private String failureReason;
+    private String failedStage;
+    private boolean overloaded;
+    private boolean rejectionCacheable;
+
+    public LoginContext(HttpSession httpSession, XMLObject xmlObject) {
+        this.httpSession = httpSession;
+        this.xmlObject = xmlObject;
+        this.requestTimeMillis = System.currentTimeMillis();
+    }
+
+    public HttpSession getHttpSession() {
+        return httpSession;
+    }
+
+    /**
+     * @return unmarshalled SAML2 Response or Assertion
+     */
+    public XMLObject getXmlObject() {
+        return xmlObject;
+    }
+
+    /**
+     * The clock is read once per login so that all the time based checks are done against the same instant.
+     *
+     * @return time the login was received at, in epoch milliseconds
+     */
+    public long getRequestTimeMillis() {
+        return requestTimeMillis;
+    }
+
+    /**
+     * @return assertion resolved (and decrypted if required) from the XMLObject
+     */
+    public Assertion getAssertion() {
+        return assertion;
+    }
+
+    public void setAssertion(Assertion assertion) {
+        this.assertion = assertion;
+    }
+
+    /**
+     * @return username of the subject as asserted by the IdP
+     */
+    public String getUsername() {
+        return username;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public String getTenantAwareUsername() {
+        return tenantAwareUsername;
+    }
+
+    public void setTenantAwareUsername(String tenantAwareUsername) {
+        this.tenantAwareUsername = tenantAwareUsername;
+    }
+
+    public String getTenantDomain() {
+        return tenantDomain;
+    }
+
+    public void setTenantDomain(String tenantDomain) {
+        this.tenantDomain = tenantDomain;
+    }
+
+    /**
+     * @return SP entity ID the assertion was issued to, or null if the audience restriction was not validated
+     */
+    public String getServiceProviderId() {
+        return serviceProviderId;
+    }
+
+    public void setServiceProviderId(String serviceProviderId) {
+        this.serviceProviderId = serviceProviderId;
+    }
+
+    /**
+     * @return trust policy of the IdP which issued the assertion
+     */
+    public IdPTrustPolicy getTrustPolicy() {
+        return trustPolicy;
+    }
+
+    public void setTrustPolicy(IdPTrustPolicy trustPolicy) {
+        this.trustPolicy = trustPolicy;
+    }
+
+    /**
+     * @return tenant id of the subject, or -1 if it is not resolved yet
+     */
+    public int getTenantId() {
+        return tenantId;
+    }
+
+    public void setTenantId(int tenantId) {
+        this.tenantId = tenantId;
+    }
+
+    public UserRealm getRealm() {
+        return realm;
+    }
+
+    public void setRealm(UserRealm realm) {
+        this.realm = realm;
+    }
+
+    /**
+     * @return true if the authentication observers were notified about the start of the authentication, in which
+     * case they have to be notified about its completion as well
+     */
+    public boolean isAuthenticationStarted() {
+        return authenticationStarted;
+    }
+
+    public void setAuthenticationStarted(boolean authenticationStarted) {
+        this.authenticationStarted = authenticationStarted;
+    }
+
+    public String getFailureReason() {
+        return failureReason;
+    }
+
+    public void setFailureReason(String failureReason) {
+        this.failureReason = failureReason;
+    }
+
+    /**
+     * @return name of the stage which rejected the login, or null if the login was not rejected
+     */
+    public String getFailedStage() {
+        return failedStage;
+    }
+
+    void setFailedStage(String failedStage) {
+        this.failedStage = failedStage;
+    }
+
+    /**
+     * @return true if the login was rejected since the server was too busy to do its cryptographic work, in which
+     * case the same message may pass when it is submitted again
+     */
+    public boolean isOverloaded() {
+        return overloaded;
+    }
+
+    public void setOverloaded(boolean overloaded) {
+        this.overloaded = overloaded;
+    }
+
+    /**
+     * @return true if the login was rejected for a reason which only depends on the message and the configuration,
+     * so that the same message is rejected again when it is submitted again
+     */
+    public boolean isRejectionCacheable() {
+        return rejectionCacheable;
+    }
+
+    public void setRejectionCacheable(boolean rejectionCacheable) {
+        this.rejectionCacheable = rejectionCacheable;
+    }
+}
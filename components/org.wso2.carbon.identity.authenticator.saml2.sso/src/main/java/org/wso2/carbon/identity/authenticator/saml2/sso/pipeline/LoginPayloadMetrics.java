@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Payload size and CPU time of the logins received in one form of the SAML2 Response, such as the Base64 text or the
+ * compressed attachment.
+ */
+public class LoginPayloadMetrics {
+
+    private final String form;
+    private final AtomicLong loginCount = new AtomicLong();
+    private final AtomicLong totalPayloadBytes = new AtomicLong();
+    private final AtomicLong measuredCount = new AtomicLong();
+    private final AtomicLong totalCpuTimeNanos = new AtomicLong();
+
+    public LoginPayloadMetrics(String form) {
+        this.form = form;
+    }
+
+    /**
+     * @param payloadBytes size of the Response as received by the login operation
+     * @param cpuTimeNanos CPU time the login took on the request thread, or a negative value if it is not measured
+     */
+    public void record(long payloadBytes, long cpuTimeNanos) {
+        loginCount.incrementAndGet();
+        totalPayloadBytes.addAndGet(payloadBytes);
+        if (cpuTimeNanos >= 0) {
+            measuredCount.incrementAndGet();
+            totalCpuTimeNanos.addAndGet(cpuTimeNanos);
+        }
+    }
+
+    public String getForm() {
+        return form;
+    }
+
+    public long getLoginCount() {
+        return loginCount.get();
+    }
+
+    public long getAveragePayloadBytes() {
+        long logins = loginCount.get();
+        return logins == 0 ? 0 : totalPayloadBytes.get() / logins;
+    }
+
+    /**
+     * @return number of logins whose CPU time is measured
+     */
+    public long getMeasuredCount() {
+        return measuredCount.get();
+    }
+
+    /**
+     * @return average CPU time of the measured logins, or 0 if no login is measured
+     */
+    public long getAverageCpuTimeMicros() {
+        long measured = measuredCount.get();
+        return measured == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalCpuTimeNanos.get() / measured);
+    }
+
+    @Override
+    public String toString() {
+        return form + "{logins=" + getLoginCount() + ", avgPayloadBytes=" + getAveragePayloadBytes() +
+                ", measured=" + getMeasuredCount() + ", avgCpuMicros=" + getAverageCpuTimeMicros() + "}";
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.pipeline;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorException;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.CryptoAdmissionController;
+import org.wso2.carbon.identity.authenticator.saml2.sso.internal.SAML2SSOAuthBEDataHolder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the stages of a SAML2 SSO login in order, stopping at the first stage which rejects the login.
+ * <p>
+ * The order is resolved once when the pipeline is built. A stage runs only after the stages it depends on. Among the
+ * stages which are ready to run, non cryptographic stages always run before cryptographic ones, so cheap rejections
+ * never wait behind signature verification. The remaining ties are broken by the configured stage order and then by
+ * the declared cost of the stages.
+ * <p>
+ * If an admission controller is configured, a cryptographic stage runs only after it is admitted. A login which is
+ * not admitted is rejected at once instead of waiting for the overloaded cryptographic work.
+ */
+public class LoginPipeline {
+
+    private static final Log log = LogFactory.getLog(LoginPipeline.class);
+
+    private final List<LoginStage> stages;
+    private final List<LoginStageMetrics> metrics;
+
+    /**
+     * @param stages         available stages
+     * @param configuredOrder stage names in the preferred order, stages which are not listed run after the listed ones
+     * @param disabledStages names of the stages to be skipped, mandatory stages can not be disabled
+     * @throws SAML2SSOAuthenticatorException if the dependencies of the stages can not be satisfied
+     */
+    public LoginPipeline(List<LoginStage> stages, List<String> configuredOrder, Set<String> disabledStages)
+            throws SAML2SSOAuthenticatorException {
+
+        List<LoginStage> enabledStages = new ArrayList<LoginStage>(stages.size());
+        for (LoginStage stage : stages) {
+            if (disabledStages.contains(stage.getName())) {
+                if (stage.isMandatory()) {
+                    log.warn("Login stage : " + stage.getName() + " is mandatory and can not be disabled");
+                } else {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Login stage : " + stage.getName() + " is disabled in the configuration");
+                    }
+                    continue;
+                }
+            }
+            enabledStages.add(stage);
+        }
+
+        this.stages = Collections.unmodifiableList(order(enabledStages, configuredOrder));
+        List<LoginStageMetrics> stageMetrics = new ArrayList<LoginStageMetrics>(this.stages.size());
+        for (LoginStage stage : this.stages) {
+            stageMetrics.add(SAML2SSOAuthBEDataHolder.getInstance().getLoginStageMetrics(stage.getName()));
+        }
+        this.metrics = stageMetrics;
+
+        if (log.isDebugEnabled()) {
+            log.debug("SAML2 SSO login stages will be executed in the order : " + this.stages);
+        }
+    }
+
+    /**
+     * Execute the stages of the pipeline.
+     *
+     * @param context login context
+     * @return false if a stage rejected the login
+     * @throws Exception if a stage could not be completed
+     */
+    public boolean execute(LoginContext context) throws Exception {
+
+        for (int i = 0; i < stages.size(); i++) {
+            LoginStage stage = stages.get(i);
+            CryptoAdmissionController admissionController = stage.isCryptographic(context) ?
+                    SAML2SSOAuthBEDataHolder.getInstance().getCryptoAdmissionController() : null;
+            if (admissionController != null && !admissionController.acquire()) {
+                context.setFailureReason("Server is busy. Login stage : " + stage.getName() + " was not admitted");
+                context.setOverloaded(true);
+                context.setFailedStage(stage.getName());
+                return false;
+            }
+            boolean passed = false;
+            long startTime = System.nanoTime();
+            try {
+                passed = stage.execute(context);
+            } finally {
+                if (admissionController != null) {
+                    admissionController.release();
+                }
+                long elapsedTime = System.nanoTime() - startTime;
+                metrics.get(i).record(elapsedTime, passed);
+                if (log.isDebugEnabled()) {
+                    log.debug("Login stage : " + stage.getName() + (passed ? " passed" : " did not pass") + " in " +
+                            TimeUnit.NANOSECONDS.toMicros(elapsedTime) + " us");
+                }
+            }
+            if (!passed) {
+                context.setFailedStage(stage.getName());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return stages of the pipeline in the execution order
+     */
+    public List<LoginStage> getStages() {
+        return stages;
+    }
+
+    private static List<LoginStage> order(List<LoginStage> enabledStages, List<String> configuredOrder)
+            throws SAML2SSOAuthenticatorException {
+
+        Set<String> enabledStageNames = new HashSet<String>();
+        for (LoginStage stage : enabledStages) {
+            enabledStageNames.add(stage.getName());
+        }
+
+        List<LoginStage> pending = new ArrayList<LoginStage>(enabledStages);
+        List<LoginStage> ordered = new ArrayList<LoginStage>(enabledStages.size());
+        Set<String> executed = new HashSet<String>();
+        while (!pending.isEmpty()) {
+            LoginStage next = null;
+            for (LoginStage stage : pending) {
+                if (isReady(stage, executed, enabledStageNames) &&
+                        (next == null || compare(stage, next, configuredOrder) < 0)) {
+                    next = stage;
+                }
+            }
+            if (next == null) {
+                throw new SAML2SSOAuthenticatorException("Unable to resolve the dependencies of the login stages : "
+                        + pending);
+            }
+            pending.remove(next);
+            executed.add(next.getName());
+            ordered.add(next);
+        }
+        return ordered;
+    }
+
+    private static boolean isReady(LoginStage stage, Set<String> executed, Set<String> enabledStageNames) {
+        for (String dependency : stage.getDependencies()) {
+            // Dependencies on disabled stages are considered to be satisfied.
+            if (enabledStageNames.contains(dependency) && !executed.contains(dependency)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int compare(LoginStage stage, LoginStage other, List<String> configuredOrder) {
+        if (stage.isCryptographic() != other.isCryptographic()) {
+            return stage.isCryptographic() ? 1 : -1;
+        }
+        int position = getPosition(stage, configuredOrder);
+        int otherPosition = getPosition(other, configuredOrder);
+        if (position != otherPosition) {
+            return position < otherPosition ? -1 : 1;
+        }
+        if (stage.getCost() != other.getCost()) {
+            return stage.getCost() < other.getCost() ? -1 : 1;
+        }
+        return 0;
+    }
+
+    private static int getPosition(LoginStage stage, List<String> configuredOrder) {
+        int position = configuredOrder.indexOf(stage.getName());
+        return position == -1 ? Integer.MAX_VALUE : position;
+    }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.pipeline;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A single step of the SAML2 SSO login, such as a validation of the response or the provisioning of the user.
+ * <p>
+ * Each stage declares a relative cost, whether it performs cryptographic operations and the stages it depends on.
+ * The {@link LoginPipeline} uses these to run the cheap rejections before the expensive ones.
+ */
+public abstract class LoginStage {
+
+    private final String name;
+    private final int cost;
+    private final boolean cryptographic;
+    private final boolean mandatory;
+    private final List<String> dependencies;
+
+    /**
+     * @param name          unique name of the stage, used in the configuration
+     * @param cost          relative cost of the stage, cheaper stages run first
+     * @param cryptographic whether the stage performs signature verification or decryption
+     * @param mandatory     whether the stage can not be disabled through the configuration
+     * @param dependencies  names of the stages which have to run before this stage
+     */
+    protected LoginStage(String name, int cost, boolean cryptographic, boolean mandatory, String... dependencies) {
+        this.name = name;
+        this.cost = cost;
+        this.cryptographic = cryptographic;
+        this.mandatory = mandatory;
+        this.dependencies = Collections.unmodifiableList(Arrays.asList(dependencies));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCost() {
+        return cost;
+    }
+
+    public boolean isCryptographic() {
+        return cryptographic;
+    }
+
+    /**
+     * @param context login context
+     * @return whether the stage performs cryptographic operations for the given login, and has to be admitted by the
+     * crypto admission controller. A cryptographic stage may override this when the work is not always required.
+     */
+    public boolean isCryptographic(LoginContext context) {
+        return cryptographic;
+    }
+
+    public boolean isMandatory() {
+        return mandatory;
+    }
+
+    public List<String> getDependencies() {
+        return dependencies;
+    }
+
+    /**
+     * Execute the stage.
+     *
+     * @param context login context
+     * @return false if the login has to be rejected, in which case the failure reason is set in the context
+     * @throws Exception if the stage could not be completed
+     */
+    public abstract boolean execute(LoginContext context) throws Exception;
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
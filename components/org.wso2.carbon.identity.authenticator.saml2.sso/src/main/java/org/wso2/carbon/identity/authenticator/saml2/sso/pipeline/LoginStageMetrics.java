@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.pipeline;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Latency and outcome counters of a login stage.
+ */
+public class LoginStageMetrics {
+
+    private final String stageName;
+    private final AtomicLong invocationCount = new AtomicLong();
+    private final AtomicLong rejectionCount = new AtomicLong();
+    private final AtomicLong totalTimeNanos = new AtomicLong();
+    private final AtomicLong maxTimeNanos = new AtomicLong();
+
+    public LoginStageMetrics(String stageName) {
+        this.stageName = stageName;
+    }
+
+    void record(long elapsedNanos, boolean passed) {
+        invocationCount.incrementAndGet();
+        if (!passed) {
+            rejectionCount.incrementAndGet();
+        }
+        totalTimeNanos.addAndGet(elapsedNanos);
+        long max;
+        while (elapsedNanos > (max = maxTimeNanos.get())) {
+            if (maxTimeNanos.compareAndSet(max, elapsedNanos)) {
+                break;
+            }
+        }
+    }
+
+    public String getStageName() {
+        return stageName;
+    }
+
+    public long getInvocationCount() {
+        return invocationCount.get();
+    }
+
+    /**
+     * @return number of logins rejected or failed at this stage
+     */
+    public long getRejectionCount() {
+        return rejectionCount.get();
+    }
+
+    public long getAverageTimeMicros() {
+        long invocations = invocationCount.get();
+        return invocations == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalTimeNanos.get() / invocations);
+    }
+
+    public long getMaxTimeMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxTimeNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return stageName + "{invocations=" + getInvocationCount() + ", rejections=" + getRejectionCount() +
+                ", avgMicros=" + getAverageTimeMicros() + ", maxMicros=" + getMaxTimeMicros() + "}";
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.pipeline;
+
+import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorBEConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.common.Util;
+
+import java.nio.charset.Charset;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the SAML2 Responses which were recently rejected for a reason that does not change when the same message
+ * is submitted again, such as an invalid signature or a wrong audience. The stages flag such rejections with
+ * {@link LoginContext#setRejectionCacheable(boolean)}. A rejection for the validity period, for an overloaded server
+ * or for an interrupted verification is not remembered, since the same message may pass later.
+ * <p>
+ * The Responses are keyed by the SHA-256 digest of the encoded payload, so a resubmitted message is rejected without
+ * being parsed, decrypted or verified again. The entries expire after a short time and the oldest entries are evicted
+ * once the cache is full. Since all the entries live for the same time, the insertion order is also the expiry order.
+ * The subject of the rejected login is remembered with the entry, so that a login rejected from the cache is reported
+ * and audited like the original rejection.
+ */
+public class RejectedResponseCache {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final long timeoutMillis;
+    private final Map<String, Rejection> rejections;
+    private final AtomicLong hitCount = new AtomicLong();
+
+    /**
+     * @param maxEntries    maximum number of rejected Responses remembered at a time
+     * @param timeoutMillis time a rejected Response is remembered for
+     */
+    public RejectedResponseCache(final int maxEntries, long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.rejections = new LinkedHashMap<String, Rejection>(16, 0.75f, false) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Rejection> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Build a rejected response cache from the authenticator configuration.
+     *
+     * @param parameters authenticator configuration parameters
+     * @return rejected response cache, or null if it is disabled
+     */
+    public static RejectedResponseCache create(Map<String, String> parameters) {
+        if (parameters != null && "false".equalsIgnoreCase(parameters.get(
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.REJECTED_RESPONSE_CACHE_ENABLED))) {
+            return null;
+        }
+        int maxEntries = Util.getIntParameter(parameters,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.REJECTED_RESPONSE_CACHE_MAX_ENTRIES,
+                SAML2SSOAuthenticatorBEConstants.DEFAULT_REJECTED_RESPONSE_CACHE_MAX_ENTRIES, 1);
+        int timeout = Util.getIntParameter(parameters,
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.REJECTED_RESPONSE_CACHE_TIMEOUT,
+                SAML2SSOAuthenticatorBEConstants.DEFAULT_REJECTED_RESPONSE_CACHE_TIMEOUT, 1);
+        return new RejectedResponseCache(maxEntries, TimeUnit.SECONDS.toMillis(timeout));
+    }
+
+    /**
+     * @param payload encoded SAML2 Response as submitted by the client
+     * @return digest the Response is remembered by
+     */
+    public static String getDigest(String payload) {
+        return getDigest(payload.getBytes(UTF_8));
+    }
+
+    /**
+     * @param payload binary SAML2 Response as submitted by the client
+     * @return digest the Response is remembered by
+     */
+    public static String getDigest(byte[] payload) {
+        return org.wso2.carbon.identity.authenticator.saml2.sso.util.Util.sha256Hex(payload);
+    }
+
+    /**
+     * @param digest digest of the Response
+     * @param now    current time in epoch milliseconds
+     * @return rejection of the Response, or null if the Response was not rejected recently
+     */
+    public synchronized Rejection getRejection(String digest, long now) {
+        Rejection rejection = rejections.get(digest);
+        if (rejection == null) {
+            return null;
+        }
+        if (rejection.expiry <= now) {
+            rejections.remove(digest);
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return rejection;
+    }
+
+    /**
+     * Remember a rejected Response, if the stage which rejected it gives the same result for the same message.
+     *
+     * @param digest  digest of the Response
+     * @param context context of the rejected login
+     */
+    public synchronized void rejected(String digest, LoginContext context) {
+        if (!context.isRejectionCacheable()) {
+            return;
+        }
+        // Re-insert so that the entry moves to the end of the expiry order.
+        rejections.remove(digest);
+        rejections.put(digest, new Rejection(context, context.getRequestTimeMillis() + timeoutMillis));
+    }
+
+    public synchronized int getSize() {
+        return rejections.size();
+    }
+
+    /**
+     * @return number of Responses rejected from the cache
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * A recently rejected login.
+     */
+    public static class Rejection {
+
+        private final String stage;
+        private final String failureReason;
+        private final String username;
+        private final String tenantAwareUsername;
+        private final int tenantId;
+        private final String tenantDomain;
+        private final long expiry;
+
+        Rejection(LoginContext context, long expiry) {
+            this.stage = context.getFailedStage();
+            this.failureReason = context.getFailureReason();
+            this.username = context.getUsername();
+            this.tenantAwareUsername = context.getTenantAwareUsername();
+            this.tenantId = context.getTenantId();
+            this.tenantDomain = context.getTenantDomain();
+            this.expiry = expiry;
+        }
+
+        public String getStage() {
+            return stage;
+        }
+
+        public String getFailureReason() {
+            return failureReason;
+        }
+
+        /**
+         * @return username of the subject, or null if the login was rejected before the subject was read
+         */
+        public String getUsername() {
+            return username;
+        }
+
+        public String getTenantAwareUsername() {
+            return tenantAwareUsername;
+        }
+
+        public int getTenantId() {
+            return tenantId;
+        }
+
+        public String getTenantDomain() {
+            return tenantDomain;
+        }
+    }
+}
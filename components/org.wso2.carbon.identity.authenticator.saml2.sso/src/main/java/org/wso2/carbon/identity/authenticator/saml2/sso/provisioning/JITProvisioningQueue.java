@@ -0,0 +1,362 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.provisioning;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.context.PrivilegedCarbonContext;
+import org.wso2.carbon.identity.authenticator.saml2.sso.internal.SAML2SSOAuthBEDataHolder;
+import org.wso2.carbon.user.core.UserRealm;
+import org.wso2.carbon.user.core.UserStoreManager;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Applies the role updates of JIT provisioned users outside the login request.
+ * <p>
+ * Only the work needed for the authorization decision is done inline by the authenticator: first-time users are
+ * created with their roles and roles no longer asserted by the IdP are removed, so the authorization is never granted
+ * based on a revoked role. Newly asserted roles of existing users are queued here and become effective once the
+ * worker has applied them.
+ * <p>
+ * The worker drains the queue in batches, groups the requests per tenant user store so that the user store and its
+ * role list are resolved once per batch, and applies only the latest request of a user: a request is dropped once a
+ * later login of the same user is queued or applied inline. The user store calls of a batch run in the tenant flow of
+ * its tenant. A failed request is retried after an exponential backoff, and a request that still fails after the
+ * configured number of attempts is written to the dead-letter log.
+ */
+public class JITProvisioningQueue {
+
+    private static final Log log = LogFactory.getLog(JITProvisioningQueue.class);
+    private static final Log DEAD_LETTER_LOG = LogFactory.getLog(JITProvisioningQueue.class.getName() + ".DeadLetter");
+
+    private static final long POLL_INTERVAL_MILLIS = 500;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+    private static final long RETRY_BASE_DELAY_MILLIS = 1000;
+    private static final long RETRY_MAX_DELAY_MILLIS = 60000;
+
+    private final BlockingQueue<JITProvisioningRequest> queue;
+    private final int capacity;
+    private final int batchSize;
+    private final int maxAttempts;
+    private final AtomicLong sequence = new AtomicLong();
+    /**
+     * Sequence of the latest pending request of each user.
+     */
+    private final ConcurrentMap<String, Long> latestRequests = new ConcurrentHashMap<String, Long>();
+    /**
+     * Failed requests waiting for their backoff, ordered by the time they are due. Used by the worker only.
+     */
+    private final Queue<JITProvisioningRequest> retries = new PriorityQueue<JITProvisioningRequest>(16,
+            new Comparator<JITProvisioningRequest>() {
+                @Override
+                public int compare(JITProvisioningRequest first, JITProvisioningRequest second) {
+                    return first.getNotBefore() < second.getNotBefore() ? -1 :
+                            (first.getNotBefore() == second.getNotBefore() ? 0 : 1);
+                }
+            });
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong supersededCount = new AtomicLong();
+    private final AtomicLong rejectedCount = new AtomicLong();
+    private final AtomicLong appliedCount = new AtomicLong();
+    private final AtomicLong deadLetterCount = new AtomicLong();
+    private volatile boolean running;
+    private Thread worker;
+
+    public JITProvisioningQueue(int capacity, int batchSize, int maxAttempts) {
+        this.queue = new ArrayBlockingQueue<JITProvisioningRequest>(capacity);
+        this.capacity = capacity;
+        this.batchSize = batchSize;
+        this.maxAttempts = maxAttempts;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processQueue();
+            }
+        }, "SAML2SSO-JIT-Provisioning");
+        worker.setDaemon(true);
+        worker.start();
+        if (log.isDebugEnabled()) {
+            log.debug("JIT provisioning queue started with batch size : " + batchSize);
+        }
+    }
+
+    /**
+     * Stop accepting requests and wait for the worker to apply the requests which are already queued.
+     */
+    public synchronized void shutdown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            worker.join(SHUTDOWN_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        List<JITProvisioningRequest> remaining = new ArrayList<JITProvisioningRequest>();
+        queue.drainTo(remaining);
+        for (JITProvisioningRequest request : remaining) {
+            deadLetter(request, "JIT provisioning queue was shut down before the request was applied");
+        }
+    }
+
+    /**
+     * Queue a role update.
+     *
+     * @param request role update
+     * @return false if the queue is full or stopped, in which case the caller has to apply the update inline
+     */
+    public boolean submit(JITProvisioningRequest request) {
+        long requestSequence = sequence.incrementAndGet();
+        request.setSequence(requestSequence);
+        // Any earlier request of the user is superseded from now on, even if this one has to be applied inline.
+        latestRequests.put(request.getUserKey(), requestSequence);
+        if (running && queue.offer(request)) {
+            submittedCount.incrementAndGet();
+            return true;
+        }
+        latestRequests.remove(request.getUserKey(), requestSequence);
+        rejectedCount.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("JIT provisioning queue is full. Applying the update inline for user : " +
+                    request.getUsername());
+        }
+        return false;
+    }
+
+    /**
+     * Drop the pending request of a user whose roles are updated inline, so that it does not overwrite them later.
+     *
+     * @param tenantId        tenant of the user
+     * @param userStoreDomain provisioning user store domain, may be null
+     * @param username        tenant aware username
+     */
+    public void supersede(int tenantId, String userStoreDomain, String username) {
+        latestRequests.remove(JITProvisioningRequest.getUserKey(tenantId, userStoreDomain, username));
+    }
+
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    public long getRejectedCount() {
+        return rejectedCount.get();
+    }
+
+    public long getAppliedCount() {
+        return appliedCount.get();
+    }
+
+    public long getDeadLetterCount() {
+        return deadLetterCount.get();
+    }
+
+    /**
+     * @return number of requests dropped because a later request of the same user was submitted
+     */
+    public long getSupersededCount() {
+        return supersededCount.get();
+    }
+
+    private void processQueue() {
+        List<JITProvisioningRequest> batch = new ArrayList<JITProvisioningRequest>(batchSize);
+        while (running || !queue.isEmpty()) {
+            try {
+                long now = System.currentTimeMillis();
+                while (!retries.isEmpty() && retries.peek().getNotBefore() <= now && batch.size() < batchSize) {
+                    batch.add(retries.poll());
+                }
+                if (batch.isEmpty()) {
+                    JITProvisioningRequest first = queue.poll(getPollTimeout(now), TimeUnit.MILLISECONDS);
+                    if (first == null) {
+                        continue;
+                    }
+                    batch.add(first);
+                }
+                queue.drainTo(batch, batchSize - batch.size());
+                processBatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (RuntimeException e) {
+                log.error("Error while applying the JIT provisioning batch", e);
+            } finally {
+                batch.clear();
+            }
+        }
+        JITProvisioningRequest request;
+        while ((request = retries.poll()) != null) {
+            deadLetter(request, "JIT provisioning queue was shut down before the request was retried");
+        }
+    }
+
+    /**
+     * @return time to wait for a new request, without missing a retry which becomes due
+     */
+    private long getPollTimeout(long now) {
+        JITProvisioningRequest nextRetry = retries.peek();
+        if (nextRetry == null) {
+            return POLL_INTERVAL_MILLIS;
+        }
+        return Math.max(1, Math.min(POLL_INTERVAL_MILLIS, nextRetry.getNotBefore() - now));
+    }
+
+    private void processBatch(List<JITProvisioningRequest> batch) {
+        // Group per user store and keep the latest request of each user.
+        Map<String, Map<String, JITProvisioningRequest>> requestsPerUserStore =
+                new LinkedHashMap<String, Map<String, JITProvisioningRequest>>();
+        for (JITProvisioningRequest request : batch) {
+            if (!isLatest(request)) {
+                supersede(request);
+                continue;
+            }
+            Map<String, JITProvisioningRequest> requests = requestsPerUserStore.get(request.getUserStoreKey());
+            if (requests == null) {
+                requests = new LinkedHashMap<String, JITProvisioningRequest>();
+                requestsPerUserStore.put(request.getUserStoreKey(), requests);
+            }
+            requests.put(request.getUsername(), request);
+        }
+
+        for (Map<String, JITProvisioningRequest> requests : requestsPerUserStore.values()) {
+            List<JITProvisioningRequest> userStoreBatch = new ArrayList<JITProvisioningRequest>(requests.values());
+            JITProvisioningRequest first = userStoreBatch.get(0);
+            // The worker is not bound to a tenant, the user store calls need the tenant of the users.
+            PrivilegedCarbonContext.startTenantFlow();
+            try {
+                PrivilegedCarbonContext carbonContext = PrivilegedCarbonContext.getThreadLocalCarbonContext();
+                carbonContext.setTenantId(first.getTenantId());
+                carbonContext.setTenantDomain(first.getTenantDomain());
+                processUserStoreBatch(userStoreBatch);
+            } finally {
+                PrivilegedCarbonContext.endTenantFlow();
+            }
+        }
+    }
+
+    private void processUserStoreBatch(List<JITProvisioningRequest> requests) {
+        JITProvisioningRequest first = requests.get(0);
+        UserRealm realm;
+        UserStoreManager userstore;
+        Set<String> allExistingRoles;
+        try {
+            realm = (UserRealm) SAML2SSOAuthBEDataHolder.getInstance().getRealmService()
+                    .getTenantUserRealm(first.getTenantId());
+            userstore = JITProvisioningUtil.getUserStoreManager(realm, first.getUserStoreDomain());
+            allExistingRoles = JITProvisioningUtil.getExistingRoles(first.getTenantId(),
+                    first.getUserStoreDomain(), userstore);
+        } catch (Exception e) {
+            for (JITProvisioningRequest request : requests) {
+                retry(request, e);
+            }
+            return;
+        }
+
+        for (JITProvisioningRequest request : requests) {
+            // A login of the user may have updated the roles inline while the batch was being applied.
+            if (!isLatest(request)) {
+                supersede(request);
+                continue;
+            }
+            try {
+                // The revoked roles are removed inline by the login which queued the request, so only the remaining
+                // roles are added here.
+                JITProvisioningUtil.RoleDiff roleDiff = JITProvisioningUtil.getRoleDiff(realm, userstore,
+                        request.getUsername(), JITProvisioningUtil.getRoleListOfUser(userstore,
+                                request.getUsername()), request.getRoles(), allExistingRoles,
+                        request.isSuperAdminRoleRequired(), false);
+                if (!roleDiff.isEmpty()) {
+                    userstore.updateRoleListOfUser(request.getUsername(), roleDiff.getDeletingRoles(),
+                            roleDiff.getAddingRoles());
+                }
+                latestRequests.remove(request.getUserKey(), request.getSequence());
+                appliedCount.incrementAndGet();
+                if (log.isDebugEnabled()) {
+                    log.debug("User: " + request.getUsername() + " is updated via the JIT provisioning queue. " +
+                            "Added " + roleDiff.getAddingRoles().length + " and removed " +
+                            roleDiff.getDeletingRoles().length + " roles.");
+                }
+            } catch (Exception e) {
+                retry(request, e);
+            }
+        }
+    }
+
+    private boolean isLatest(JITProvisioningRequest request) {
+        Long latest = latestRequests.get(request.getUserKey());
+        return latest != null && latest == request.getSequence();
+    }
+
+    private void supersede(JITProvisioningRequest request) {
+        supersededCount.incrementAndGet();
+        if (log.isDebugEnabled()) {
+            log.debug("Dropped " + request + " since a later login updated the roles of the user");
+        }
+    }
+
+    private void retry(JITProvisioningRequest request, Exception e) {
+        request.incrementAttempts();
+        if (log.isDebugEnabled()) {
+            log.debug("Error while applying " + request, e);
+        }
+        if (!isLatest(request)) {
+            supersede(request);
+            return;
+        }
+        if (request.getAttempts() >= maxAttempts || retries.size() >= capacity) {
+            latestRequests.remove(request.getUserKey(), request.getSequence());
+            deadLetter(request, e.getMessage());
+            return;
+        }
+        // Back off exponentially, so that an unavailable user store is not called in a loop.
+        long delay = Math.min(RETRY_MAX_DELAY_MILLIS,
+                RETRY_BASE_DELAY_MILLIS << Math.min(request.getAttempts() - 1, 16));
+        request.setNotBefore(System.currentTimeMillis() + delay);
+        retries.offer(request);
+    }
+
+    private void deadLetter(JITProvisioningRequest request, String reason) {
+        deadLetterCount.incrementAndGet();
+        DEAD_LETTER_LOG.error("JIT provisioning failed for " + request + ". Reason : " + reason);
+    }
+}
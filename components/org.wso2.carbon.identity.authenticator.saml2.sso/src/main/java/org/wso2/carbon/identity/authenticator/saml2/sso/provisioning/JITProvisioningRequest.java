@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.provisioning;
+
+import java.util.Set;
+
+/**
+ * A deferred role update for an already provisioned user. The request carries the complete role list asserted by
+ * the IdP, so the worker recomputes the difference against the user store when it is applied.
+ */
+public class JITProvisioningRequest {
+
+    private final int tenantId;
+    private final String tenantDomain;
+    private final String username;
+    private final String userStoreDomain;
+    private final Set<String> roles;
+    private final boolean superAdminRoleRequired;
+    private int attempts;
+    private long sequence;
+    private long notBefore;
+
+    public JITProvisioningRequest(int tenantId, String tenantDomain, String username, String userStoreDomain,
+                                  Set<String> roles, boolean superAdminRoleRequired) {
+        this.tenantId = tenantId;
+        this.tenantDomain = tenantDomain;
+        this.username = username;
+        this.userStoreDomain = userStoreDomain;
+        this.roles = roles;
+        this.superAdminRoleRequired = superAdminRoleRequired;
+    }
+
+    public int getTenantId() {
+        return tenantId;
+    }
+
+    public String getTenantDomain() {
+        return tenantDomain;
+    }
+
+    public String getUsername() {
+        return username;
+    }
+
+    public String getUserStoreDomain() {
+        return userStoreDomain;
+    }
+
+    public Set<String> getRoles() {
+        return roles;
+    }
+
+    public boolean isSuperAdminRoleRequired() {
+        return superAdminRoleRequired;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public void incrementAttempts() {
+        attempts++;
+    }
+
+    /**
+     * @return order in which the request was submitted, a request of a user is superseded by a later one
+     */
+    long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return time in epoch milliseconds before which a failed request is not retried
+     */
+    long getNotBefore() {
+        return notBefore;
+    }
+
+    void setNotBefore(long notBefore) {
+        this.notBefore = notBefore;
+    }
+
+    /**
+     * Requests applied in the same batch share one user store lookup when this key matches.
+     *
+     * @return key identifying the tenant and user store of this request
+     */
+    public String getUserStoreKey() {
+        return tenantId + ":" + (userStoreDomain == null ? "" : userStoreDomain);
+    }
+
+    /**
+     * @return key identifying the user of this request
+     */
+    public String getUserKey() {
+        return getUserKey(tenantId, userStoreDomain, username);
+    }
+
+    static String getUserKey(int tenantId, String userStoreDomain, String username) {
+        return tenantId + ":" + (userStoreDomain == null ? "" : userStoreDomain) + ":" + username;
+    }
+
+    @Override
+    public String toString() {
+        return "JITProvisioningRequest{tenantId=" + tenantId + ", username=" + username + ", userStoreDomain=" +
+                userStoreDomain + ", roles=" + roles.size() + ", attempts=" + attempts + "}";
+    }
+}
@@ -0,0 +1,337 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.provisioning;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.CarbonConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorBEConstants;
+import org.wso2.carbon.user.core.UserRealm;
+import org.wso2.carbon.user.core.UserStoreException;
+import org.wso2.carbon.user.core.UserStoreManager;
+
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Role calculations shared by the inline and the queued JIT provisioning paths.
+ */
+public class JITProvisioningUtil {
+
+    private static final Log log = LogFactory.getLog(JITProvisioningUtil.class);
+
+    private static final long EXISTING_ROLES_TIMEOUT_MILLIS = 60000;
+    private static final ConcurrentMap<String, ExistingRoles> EXISTING_ROLES =
+            new ConcurrentHashMap<String, ExistingRoles>();
+
+    private JITProvisioningUtil() {
+
+    }
+
+    /**
+     * Resolve the user store the users are provisioned to.
+     *
+     * @param realm           user realm of the tenant
+     * @param userStoreDomain configured provisioning user store domain, may be null
+     * @return secondary user store of the given domain, or the primary user store if it is not available
+     * @throws UserStoreException
+     */
+    public static UserStoreManager getUserStoreManager(UserRealm realm, String userStoreDomain)
+            throws UserStoreException {
+
+        UserStoreManager userstore = null;
+        if (userStoreDomain != null && !userStoreDomain.isEmpty()) {
+            userstore = realm.getUserStoreManager().getSecondaryUserStoreManager(userStoreDomain);
+        }
+        // If default user store is invalid or not specified use primary user store
+        if (userstore == null) {
+            userstore = realm.getUserStoreManager();
+        }
+        return userstore;
+    }
+
+    /**
+     * @param userstore user store of the user
+     * @param username  tenant aware username
+     * @return roles the user currently holds
+     * @throws UserStoreException
+     */
+    public static Set<String> getRoleListOfUser(UserStoreManager userstore, String username)
+            throws UserStoreException {
+
+        return new HashSet<String>(Arrays.asList(userstore.getRoleListOfUser(username)));
+    }
+
+    /**
+     * Roles the role claim of an existing user is filtered against: the roles available in the user store and the
+     * roles the user already holds. The role list of the user store may be cached, so a held role which it does not
+     * list yet is still recognised when the IdP asserts it, and is not revoked.
+     *
+     * @param allExistingRoles roles available in the user store
+     * @param currentRoles     roles the user currently holds
+     * @return union of both, backed by the given sets
+     */
+    public static Set<String> getKnownRoles(Set<String> allExistingRoles, Set<String> currentRoles) {
+        return new UnionSet(allExistingRoles, currentRoles);
+    }
+
+    /**
+     * Calculate the roles to be added to and removed from an existing user so that the user ends up with the roles
+     * asserted by the IdP.
+     *
+     * @param realm                    user realm of the tenant
+     * @param userstore                user store of the user
+     * @param username                 tenant aware username
+     * @param currentRoles             roles the user currently holds
+     * @param newRoles                 roles asserted by the IdP, including the asserted roles the user already holds
+     * @param allExistingRoles         roles available in the user store
+     * @param isSuperAdminRoleRequired whether the super admin has to be asserted the admin role
+     * @param revokeRoles              whether the held roles which are not asserted are removed. This has to be false
+     *                                 if not all the asserted roles are known, such as for a truncated role claim
+     * @return role difference
+     * @throws UserStoreException
+     */
+    public static RoleDiff getRoleDiff(UserRealm realm, UserStoreManager userstore, String username,
+                                       Set<String> currentRoles, Set<String> newRoles, Set<String> allExistingRoles,
+                                       boolean isSuperAdminRoleRequired, boolean revokeRoles)
+            throws UserStoreException {
+
+        // addingRoles = (newRoles AND allExistingRoles) - currentRolesList
+        Collection<String> addingRoles = new ArrayList<String>();
+        for (String role : newRoles) {
+            if (allExistingRoles.contains(role)) {
+                addingRoles.add(role);
+            }
+        }
+        addingRoles.removeAll(currentRoles);
+
+        if (!revokeRoles) {
+            return new RoleDiff(addingRoles.toArray(new String[0]), new String[0]);
+        }
+
+        // deletingRoles = currentRolesList - newRoles
+        Collection<String> deletingRoles = new ArrayList<String>(currentRoles);
+        deletingRoles.removeAll(newRoles);
+
+        // Exclude Internal/everyonerole from deleting role since its cannot be deleted
+        deletingRoles.remove(realm.getRealmConfiguration().getEveryOneRoleName());
+
+        // Check for case whether superadmin login
+        if (userstore.getRealmConfiguration().isPrimary() &&
+                username.equals(realm.getRealmConfiguration().getAdminUserName())) {
+            // Whether superadmin login without superadmin role is permitted
+            if (!isSuperAdminRoleRequired &&
+                    deletingRoles.contains(realm.getRealmConfiguration().getAdminRoleName())) {
+                // Avoid removing superadmin role from superadmin user.
+                deletingRoles.remove(realm.getRealmConfiguration().getAdminRoleName());
+                log.warn("Proceeding with allowing super admin to be logged in, eventhough response doesn't " +
+                        "include superadmin role assiged for the superadmin user.");
+            }
+        }
+        return new RoleDiff(addingRoles.toArray(new String[0]), deletingRoles.toArray(new String[0]));
+    }
+
+    /**
+     * Filter the asserted roles down to the roles available in the user store.
+     *
+     * @param newRoles         roles asserted by the IdP
+     * @param allExistingRoles roles available in the user store
+     * @return roles that can be assigned to the user
+     */
+    public static String[] getAssignableRoles(Set<String> newRoles, Set<String> allExistingRoles) {
+
+        List<String> assignableRoles = new ArrayList<String>(newRoles.size());
+        for (String role : newRoles) {
+            if (allExistingRoles.contains(role)) {
+                assignableRoles.add(role);
+            }
+        }
+        return assignableRoles.toArray(new String[assignableRoles.size()]);
+    }
+
+    /**
+     * Filter the roles to be added to a user down to the roles which grant the login permission. These roles have to
+     * be assigned before the user is authorized, the remaining roles may be assigned later.
+     *
+     * @param realm       user realm of the tenant
+     * @param addingRoles roles to be added to the user
+     * @return roles granting the login permission
+     * @throws UserStoreException
+     */
+    public static String[] getLoginRoles(UserRealm realm, String[] addingRoles) throws UserStoreException {
+
+        List<String> loginRoles = new ArrayList<String>();
+        for (String role : addingRoles) {
+            if (realm.getAuthorizationManager().isRoleAuthorized(role,
+                    SAML2SSOAuthenticatorBEConstants.LOGIN_PERMISSION, CarbonConstants.UI_PERMISSION_ACTION)) {
+                loginRoles.add(role);
+            }
+        }
+        return loginRoles.toArray(new String[loginRoles.size()]);
+    }
+
+    /**
+     * Roles available in a user store. The role list is cached for a short time, since it is read on each login of an
+     * existing user and changes rarely, so a role created in the user store is assigned at most a minute later.
+     *
+     * @param tenantId        tenant of the user store
+     * @param userStoreDomain provisioning user store domain, may be null
+     * @param userstore       user store of the user
+     * @return roles available in the user store
+     * @throws UserStoreException
+     */
+    public static Set<String> getExistingRoles(int tenantId, String userStoreDomain, UserStoreManager userstore)
+            throws UserStoreException {
+
+        String key = tenantId + ":" + (userStoreDomain == null ? "" : userStoreDomain);
+        long now = System.currentTimeMillis();
+        ExistingRoles existingRoles = EXISTING_ROLES.get(key);
+        if (existingRoles != null && existingRoles.expiry > now) {
+            return existingRoles.roles;
+        }
+        Set<String> allExistingRoles = new HashSet<String>();
+        Collections.addAll(allExistingRoles, userstore.getRoleNames());
+        allExistingRoles = Collections.unmodifiableSet(allExistingRoles);
+        EXISTING_ROLES.put(key, new ExistingRoles(allExistingRoles, now + EXISTING_ROLES_TIMEOUT_MILLIS));
+        return allExistingRoles;
+    }
+
+    /**
+     * Read only union of two sets, which avoids copying the role list of the user store on each login.
+     */
+    private static class UnionSet extends AbstractSet<String> {
+
+        private final Set<String> first;
+        private final Set<String> second;
+
+        UnionSet(Set<String> first, Set<String> second) {
+            this.first = first;
+            this.second = second;
+        }
+
+        @Override
+        public boolean contains(Object o) {
+            return first.contains(o) || second.contains(o);
+        }
+
+        @Override
+        public Iterator<String> iterator() {
+            final Iterator<String> firstIterator = first.iterator();
+            final Iterator<String> secondIterator = second.iterator();
+            return new Iterator<String>() {
+
+                private String next;
+
+                @Override
+                public boolean hasNext() {
+                    if (next != null) {
+                        return true;
+                    }
+                    if (firstIterator.hasNext()) {
+                        next = firstIterator.next();
+                        return true;
+                    }
+                    while (secondIterator.hasNext()) {
+                        String candidate = secondIterator.next();
+                        if (!first.contains(candidate)) {
+                            next = candidate;
+                            return true;
+                        }
+                    }
+                    return false;
+                }
+
+                @Override
+                public String next() {
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    String current = next;
+                    next = null;
+                    return current;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            int size = first.size();
+            for (String role : second) {
+                if (!first.contains(role)) {
+                    size++;
+                }
+            }
+            return size;
+        }
+    }
+
+    /**
+     * Role list of a user store and the time it is cached until.
+     */
+    private static class ExistingRoles {
+
+        private final Set<String> roles;
+        private final long expiry;
+
+        ExistingRoles(Set<String> roles, long expiry) {
+            this.roles = roles;
+            this.expiry = expiry;
+        }
+    }
+
+    /**
+     * Roles to be added to and removed from a user.
+     */
+    public static class RoleDiff {
+
+        private final String[] addingRoles;
+        private final String[] deletingRoles;
+
+        public RoleDiff(String[] addingRoles, String[] deletingRoles) {
+            this.addingRoles = addingRoles;
+            this.deletingRoles = deletingRoles;
+        }
+
+        public String[] getAddingRoles() {
+            return addingRoles;
+        }
+
+        public String[] getDeletingRoles() {
+            return deletingRoles;
+        }
+
+        public boolean isEmpty() {
+            return addingRoles.length == 0 && deletingRoles.length == 0;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.trust;
+
+import net.shibboleth.utilities.java.support.codec.Base64Support;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.xmlsec.signature.KeyInfo;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.X509Data;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.opensaml.xmlsec.signature.support.SignatureValidator;
+import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorException;
+import org.wso2.carbon.identity.authenticator.saml2.sso.util.Util;
+import org.wso2.carbon.identity.authenticator.saml2.sso.util.X509CredentialImpl;
+
+import java.security.cert.CertificateEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Certificates trusted to sign the messages of an IdP in a tenant, keyed by their SHA-256 thumbprints.
+ * <p>
+ * More than one certificate is trusted while the IdP rolls its signing certificate over. If the KeyInfo of a
+ * signature carries a certificate, the trusted certificate with the same thumbprint is selected with a single
+ * lookup. The certificate in the KeyInfo itself is never trusted, it is only used to pick one of the trusted ones.
+ * Otherwise, or if no trusted certificate matches, the signature is verified against each trusted certificate in
+ * turn.
+ */
+public class CredentialTrustIndex {
+
+    private static final Log log = LogFactory.getLog(CredentialTrustIndex.class);
+
+
+    private final List<X509CredentialImpl> credentials;
+    private final Map<String, X509CredentialImpl> credentialsByThumbprint;
+    private final AtomicLong selectedCount = new AtomicLong();
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    /**
+     * @param credentials trusted credentials, in the order they are tried when no credential can be selected
+     * @throws SAML2SSOAuthenticatorException if the thumbprint of a certificate can not be computed
+     */
+    public CredentialTrustIndex(List<X509CredentialImpl> credentials) throws SAML2SSOAuthenticatorException {
+        Map<String, X509CredentialImpl> thumbprints = new HashMap<String, X509CredentialImpl>();
+        try {
+            for (X509CredentialImpl credential : credentials) {
+                if (credential.getSigningCert() != null) {
+                    thumbprints.put(Util.sha256Hex(credential.getSigningCert().getEncoded()), credential);
+                }
+            }
+        } catch (CertificateEncodingException e) {
+            throw new SAML2SSOAuthenticatorException("Error while computing the thumbprint of a trusted certificate",
+                    e);
+        }
+        this.credentials = Collections.unmodifiableList(new ArrayList<X509CredentialImpl>(credentials));
+        this.credentialsByThumbprint = thumbprints;
+    }
+
+    /**
+     * Verify a signature against the trusted credentials.
+     *
+     * @param signature signature to be verified
+     * @throws SignatureException if the signature is not valid for any of the trusted credentials
+     */
+    public void validate(Signature signature) throws SignatureException {
+        X509CredentialImpl selected = select(signature);
+        if (selected != null) {
+            selectedCount.incrementAndGet();
+            SignatureValidator.validate(signature, selected);
+            return;
+        }
+
+        fallbackCount.incrementAndGet();
+        SignatureException lastException = null;
+        for (int i = 0; i < credentials.size(); i++) {
+            try {
+                SignatureValidator.validate(signature, credentials.get(i));
+                return;
+            } catch (SignatureException e) {
+                lastException = e;
+            }
+        }
+        throw lastException != null ? lastException :
+                new SignatureException("No trusted credentials to validate the signature");
+    }
+
+    /**
+     * @return trusted credentials
+     */
+    public List<X509CredentialImpl> getCredentials() {
+        return credentials;
+    }
+
+    /**
+     * @return number of signatures verified with a credential selected by the KeyInfo thumbprint, or with the only
+     * trusted credential
+     */
+    public long getSelectedCount() {
+        return selectedCount.get();
+    }
+
+    /**
+     * @return number of signatures verified by trying each of the trusted credentials
+     */
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    /**
+     * Select the trusted credential matching a certificate in the KeyInfo of the signature.
+     *
+     * @return the matching credential, or null if the KeyInfo has no certificate of a trusted credential
+     */
+    private X509CredentialImpl select(Signature signature) {
+        if (credentials.size() == 1) {
+            // Nothing to select from, avoid decoding the KeyInfo.
+            return credentials.get(0);
+        }
+        KeyInfo keyInfo = signature.getKeyInfo();
+        if (keyInfo == null) {
+            return null;
+        }
+        List<X509Data> x509Datas = keyInfo.getX509Datas();
+        for (int i = 0; i < x509Datas.size(); i++) {
+            List<org.opensaml.xmlsec.signature.X509Certificate> certificates = x509Datas.get(i).getX509Certificates();
+            for (int j = 0; j < certificates.size(); j++) {
+                String value = certificates.get(j).getValue();
+                if (value == null) {
+                    continue;
+                }
+                try {
+                    X509CredentialImpl credential = credentialsByThumbprint.get(
+                            Util.sha256Hex(Base64Support.decode(value)));
+                    if (credential != null) {
+                        return credential;
+                    }
+                } catch (RuntimeException e) {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Unable to decode the certificate in the KeyInfo of the signature", e);
+                    }
+                }
+            }
+        }
+        return null;
+    }
+}
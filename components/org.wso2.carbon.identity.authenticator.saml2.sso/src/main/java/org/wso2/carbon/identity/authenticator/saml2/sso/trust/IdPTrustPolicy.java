@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.trust;
+
+import org.wso2.carbon.base.MultitenantConstants;
+import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorException;
+import org.wso2.carbon.identity.authenticator.saml2.sso.util.Util;
+import org.wso2.carbon.identity.authenticator.saml2.sso.util.X509CredentialImpl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Trust settings of an IdP: the credential its signatures are verified with, the clock skew allowed for its
+ * assertions, the audiences it may issue assertions to and the signatures it is required to put on its messages.
+ * <p>
+ * A policy is immutable apart from the trusted credentials, which are loaded from the key store on first use for each
+ * tenant and kept until the policies are reloaded.
+ */
+public class IdPTrustPolicy {
+
+    private final String issuer;
+    private final List<String> certAliases;
+    private final long timeStampSkewInMillis;
+    private final Set<String> audiences;
+    private final boolean responseSignatureRequired;
+    private final boolean assertionSignatureRequired;
+    private final boolean verifySignatureWithUserDomain;
+    private final ConcurrentMap<String, CredentialTrustIndex> credentialTrustIndexes =
+            new ConcurrentHashMap<String, CredentialTrustIndex>();
+
+    /**
+     * @param issuer                        entity ID of the IdP, or null for the default policy
+     * @param certAliases                   aliases of the IdP certificates in the primary key store, more than one
+     *                                      while the IdP rolls its certificate over. Empty to use the default
+     *                                      certificate
+     * @param timeStampSkewInMillis         clock skew allowed for the validity period of the assertions
+     * @param audiences                     audiences accepted in the AudienceRestriction of the assertions
+     * @param responseSignatureRequired     whether the Response has to be signed
+     * @param assertionSignatureRequired    whether the Assertion has to be signed
+     * @param verifySignatureWithUserDomain whether the signatures are verified with the certificate of the user's
+     *                                      tenant instead of the certificate of this policy
+     */
+    public IdPTrustPolicy(String issuer, List<String> certAliases, long timeStampSkewInMillis, Set<String> audiences,
+                          boolean responseSignatureRequired, boolean assertionSignatureRequired,
+                          boolean verifySignatureWithUserDomain) {
+        this.issuer = issuer;
+        this.certAliases = Collections.unmodifiableList(new ArrayList<String>(certAliases));
+        this.timeStampSkewInMillis = timeStampSkewInMillis;
+        this.audiences = Collections.unmodifiableSet(audiences);
+        this.responseSignatureRequired = responseSignatureRequired;
+        this.assertionSignatureRequired = assertionSignatureRequired;
+        this.verifySignatureWithUserDomain = verifySignatureWithUserDomain;
+    }
+
+    /**
+     * @return entity ID of the IdP, or null if this is the default policy
+     */
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public List<String> getCertAliases() {
+        return certAliases;
+    }
+
+    public long getTimeStampSkewInMillis() {
+        return timeStampSkewInMillis;
+    }
+
+    public Set<String> getAudiences() {
+        return audiences;
+    }
+
+    public boolean isResponseSignatureRequired() {
+        return responseSignatureRequired;
+    }
+
+    public boolean isAssertionSignatureRequired() {
+        return assertionSignatureRequired;
+    }
+
+    public boolean isVerifySignatureWithUserDomain() {
+        return verifySignatureWithUserDomain;
+    }
+
+    /**
+     * Get the credentials the signatures of this IdP are verified with.
+     *
+     * @param domainName tenant domain of the subject, used only if the signatures are verified with the user domain
+     * @return trusted credentials
+     * @throws SAML2SSOAuthenticatorException if the certificates can not be loaded
+     */
+    public CredentialTrustIndex getCredentialTrustIndex(String domainName) throws SAML2SSOAuthenticatorException {
+        String tenantDomain = verifySignatureWithUserDomain ? domainName :
+                MultitenantConstants.SUPER_TENANT_DOMAIN_NAME;
+        CredentialTrustIndex credentialTrustIndex = credentialTrustIndexes.get(tenantDomain);
+        if (credentialTrustIndex == null) {
+            List<X509CredentialImpl> credentials = new ArrayList<X509CredentialImpl>();
+            // The aliases are looked up in the primary key store only, the other tenants have a single certificate.
+            if (certAliases.isEmpty() || !MultitenantConstants.SUPER_TENANT_DOMAIN_NAME.equals(tenantDomain)) {
+                credentials.add(Util.getX509CredentialImpl(tenantDomain, null));
+            } else {
+                for (String certAlias : certAliases) {
+                    credentials.add(Util.getX509CredentialImpl(tenantDomain, certAlias));
+                }
+            }
+            // Concurrent first logins may build the index more than once, any of them can be kept.
+            credentialTrustIndex = new CredentialTrustIndex(credentials);
+            credentialTrustIndexes.put(tenantDomain, credentialTrustIndex);
+        }
+        return credentialTrustIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "IdPTrustPolicy{issuer=" + issuer + ", certAliases=" + certAliases + ", timeStampSkewInMillis=" +
+                timeStampSkewInMillis + ", audiences=" + audiences + ", responseSignatureRequired=" +
+                responseSignatureRequired + ", assertionSignatureRequired=" + assertionSignatureRequired +
+                ", verifySignatureWithUserDomain=" + verifySignatureWithUserDomain + "}";
+    }
+}
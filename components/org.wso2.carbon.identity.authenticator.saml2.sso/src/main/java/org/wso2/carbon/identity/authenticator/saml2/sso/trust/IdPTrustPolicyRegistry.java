@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.trust;
+
+import org.apache.commons.lang.StringUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.wso2.carbon.core.security.AuthenticatorsConfiguration;
+import org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorBEConstants;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Trust policies of the IdPs, keyed by their issuer entity IDs.
+ * <p>
+ * The policies are read from the authenticator configuration once and replaced all together on reload, so a login
+ * always sees a consistent set of policies and picks its policy with a single lookup. An IdP is configured with a
+ * group of parameters sharing an index, for example
+ * <pre>
+ * &lt;Parameter name="IdP.1.Issuer"&gt;https://idp1.example.com&lt;/Parameter&gt;
+ * &lt;Parameter name="IdP.1.CertAlias"&gt;idp1,idp1-next&lt;/Parameter&gt;
+ * &lt;Parameter name="IdP.1.TimestampSkew"&gt;120&lt;/Parameter&gt;
+ * &lt;Parameter name="IdP.1.Audiences"&gt;carbonServer,console&lt;/Parameter&gt;
+ * </pre>
+ * The certificate aliases are comma separated, so that the old and the new certificates of an IdP are both trusted
+ * during a certificate rollover.
+ * Settings which are not given for an IdP, and messages from issuers without a policy, fall back to the default
+ * policy built from the IdPCertAlias, TimestampSkew, AcceptedAudiences, ResponseSignatureValidationEnabled,
+ * AssertionSignatureValidationEnabled and VerifySignatureWithUserDomain parameters.
+ */
+public class IdPTrustPolicyRegistry {
+
+    private static final Log log = LogFactory.getLog(IdPTrustPolicyRegistry.class);
+
+    private final AtomicReference<Policies> policies = new AtomicReference<Policies>();
+
+    /**
+     * Get the trust policy of an issuer. The policies are loaded from the configuration on first use if they are
+     * not loaded yet.
+     *
+     * @param issuer issuer entity ID, may be null
+     * @return policy of the issuer, or the default policy if the issuer has no policy of its own
+     */
+    public IdPTrustPolicy getPolicy(String issuer) {
+        Policies current = getPolicies();
+        if (issuer != null) {
+            IdPTrustPolicy policy = current.issuerPolicies.get(issuer);
+            if (policy != null) {
+                return policy;
+            }
+        }
+        return current.defaultPolicy;
+    }
+
+    public IdPTrustPolicy getDefaultPolicy() {
+        return getPolicies().defaultPolicy;
+    }
+
+    /**
+     * @return policies of the configured IdPs, keyed by their issuer entity IDs
+     */
+    public Map<String, IdPTrustPolicy> getIssuerPolicies() {
+        return getPolicies().issuerPolicies;
+    }
+
+    /**
+     * Read the policies from the authenticator configuration and replace the current ones.
+     */
+    public void reload() {
+        AuthenticatorsConfiguration.AuthenticatorConfig authenticatorConfig = AuthenticatorsConfiguration
+                .getInstance().getAuthenticatorConfig(SAML2SSOAuthenticatorBEConstants.SAML2_SSO_AUTHENTICATOR_NAME);
+        Map<String, String> parameters = authenticatorConfig != null ? authenticatorConfig.getParameters() : null;
+        reload(parameters != null ? parameters : Collections.<String, String>emptyMap());
+    }
+
+    /**
+     * Build the policies from the given configuration parameters and replace the current ones.
+     *
+     * @param parameters authenticator configuration parameters
+     */
+    public void reload(Map<String, String> parameters) {
+        IdPTrustPolicy defaultPolicy = buildDefaultPolicy(parameters);
+        Map<String, IdPTrustPolicy> issuerPolicies = new HashMap<String, IdPTrustPolicy>();
+        String prefix = SAML2SSOAuthenticatorBEConstants.PropertyConfig.IDP_POLICY_PREFIX;
+        String issuerSuffix = "." + SAML2SSOAuthenticatorBEConstants.PropertyConfig.IDP_POLICY_ISSUER;
+        for (Map.Entry<String, String> parameter : parameters.entrySet()) {
+            String name = parameter.getKey();
+            if (name.length() > prefix.length() + issuerSuffix.length() && name.startsWith(prefix) &&
+                    name.endsWith(issuerSuffix) && StringUtils.isNotBlank(parameter.getValue())) {
+                String policyPrefix = name.substring(0, name.length() - issuerSuffix.length() + 1);
+                IdPTrustPolicy policy = buildPolicy(parameter.getValue().trim(), policyPrefix, parameters,
+                        defaultPolicy);
+                if (issuerPolicies.put(policy.getIssuer(), policy) != null) {
+                    log.warn("Multiple trust policies are configured for the issuer : " + policy.getIssuer() +
+                            ". Only one of them is used.");
+                }
+            }
+        }
+        policies.set(new Policies(defaultPolicy, Collections.unmodifiableMap(issuerPolicies)));
+        if (log.isDebugEnabled()) {
+            log.debug("Loaded the default SAML2 IdP trust policy : " + defaultPolicy + " and the IdP trust " +
+                    "policies : " + issuerPolicies.values());
+        }
+    }
+
+    private Policies getPolicies() {
+        Policies current = policies.get();
+        if (current == null) {
+            reload();
+            current = policies.get();
+        }
+        return current;
+    }
+
+    private IdPTrustPolicy buildDefaultPolicy(Map<String, String> parameters) {
+        Set<String> audiences = new HashSet<String>();
+        String spId = org.wso2.carbon.identity.authenticator.saml2.sso.common.Util.getServiceProviderId();
+        if (spId != null) {
+            audiences.add(spId);
+        }
+        audiences.addAll(getValues(parameters.get(
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.ACCEPTED_AUDIENCES)));
+
+        return new IdPTrustPolicy(null,
+                getValueList(parameters.get(
+                        SAML2SSOAuthenticatorBEConstants.PropertyConfig.AUTH_CONFIG_PARAM_IDP_CERT_ALIAS)),
+                getTimeStampSkewInMillis(parameters, SAML2SSOAuthenticatorBEConstants.PropertyConfig.TIME_STAMP_SKEW,
+                        TimeUnit.SECONDS.toMillis(SAML2SSOAuthenticatorBEConstants.DEFAULT_TIME_STAMP_SKEW)),
+                audiences,
+                // Signature validations are enabled unless they are disabled in the configuration.
+                !"false".equalsIgnoreCase(parameters.get(
+                        SAML2SSOAuthenticatorBEConstants.PropertyConfig.RESPONSE_SIGNATURE_VALIDATION_ENABLED)),
+                getBoolean(parameters,
+                        SAML2SSOAuthenticatorBEConstants.PropertyConfig.ASSERTION_SIGNATURE_VALIDATION_ENABLED, true),
+                "true".equalsIgnoreCase(parameters.get(
+                        SAML2SSOAuthenticatorBEConstants.PropertyConfig.VALIDATE_SIGNATURE_WITH_USER_DOMAIN)));
+    }
+
+    private IdPTrustPolicy buildPolicy(String issuer, String policyPrefix, Map<String, String> parameters,
+                                       IdPTrustPolicy defaultPolicy) {
+        List<String> certAliases = getValueList(parameters.get(policyPrefix +
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.IDP_POLICY_CERT_ALIAS));
+        Set<String> audiences = getValues(parameters.get(policyPrefix +
+                SAML2SSOAuthenticatorBEConstants.PropertyConfig.IDP_POLICY_AUDIENCES));
+        return new IdPTrustPolicy(issuer,
+                certAliases.isEmpty() ? defaultPolicy.getCertAliases() : certAliases,
+                getTimeStampSkewInMillis(parameters, policyPrefix +
+                        SAML2SSOAuthenticatorBEConstants.PropertyConfig.TIME_STAMP_SKEW,
+                        defaultPolicy.getTimeStampSkewInMillis()),
+                audiences.isEmpty() ? defaultPolicy.getAudiences() : audiences,
+                getBoolean(parameters, policyPrefix +
+                                SAML2SSOAuthenticatorBEConstants.PropertyConfig.RESPONSE_SIGNATURE_VALIDATION_ENABLED,
+                        defaultPolicy.isResponseSignatureRequired()),
+                getBoolean(parameters, policyPrefix +
+                                SAML2SSOAuthenticatorBEConstants.PropertyConfig.ASSERTION_SIGNATURE_VALIDATION_ENABLED,
+                        defaultPolicy.isAssertionSignatureRequired()),
+                getBoolean(parameters, policyPrefix +
+                                SAML2SSOAuthenticatorBEConstants.PropertyConfig.VALIDATE_SIGNATURE_WITH_USER_DOMAIN,
+                        defaultPolicy.isVerifySignatureWithUserDomain()));
+    }
+
+    private long getTimeStampSkewInMillis(Map<String, String> parameters, String name, long defaultValue) {
+        String timeStampSkew = parameters.get(name);
+        if (StringUtils.isNotBlank(timeStampSkew)) {
+            try {
+                return TimeUnit.SECONDS.toMillis(Integer.parseInt(timeStampSkew.trim()));
+            } catch (NumberFormatException e) {
+                log.warn("Invalid value : " + timeStampSkew + " for " + name + ". Using the default value : " +
+                        TimeUnit.MILLISECONDS.toSeconds(defaultValue) + " s.");
+            }
+        }
+        return defaultValue;
+    }
+
+    private boolean getBoolean(Map<String, String> parameters, String name, boolean defaultValue) {
+        String value = parameters.get(name);
+        return StringUtils.isNotBlank(value) ? Boolean.parseBoolean(value.trim()) : defaultValue;
+    }
+
+    private Set<String> getValues(String values) {
+        return new HashSet<String>(getValueList(values));
+    }
+
+    /**
+     * Split a comma separated parameter value, such as a list of certificate aliases.
+     *
+     * @param values comma separated values, may be null
+     * @return trimmed values without duplicates, in the configured order
+     */
+    public static List<String> getValueList(String values) {
+        List<String> valueList = new ArrayList<String>();
+        if (StringUtils.isNotBlank(values)) {
+            for (String value : StringUtils.split(values, ',')) {
+                if (StringUtils.isNotBlank(value) && !valueList.contains(value.trim())) {
+                    valueList.add(value.trim());
+                }
+            }
+        }
+        return valueList;
+    }
+
+    /**
+     * Snapshot of the policies, replaced as a whole on reload.
+     */
+    private static class Policies {
+
+        private final IdPTrustPolicy defaultPolicy;
+        private final Map<String, IdPTrustPolicy> issuerPolicies;
+
+        Policies(IdPTrustPolicy defaultPolicy, Map<String, IdPTrustPolicy> issuerPolicies) {
+            this.defaultPolicy = defaultPolicy;
+            this.issuerPolicies = issuerPolicies;
+        }
+    }
+}
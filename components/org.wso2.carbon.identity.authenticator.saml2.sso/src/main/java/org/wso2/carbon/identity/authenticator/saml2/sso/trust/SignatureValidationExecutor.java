@@ -0,0 +1,185 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.trust;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs the independent signature validations of a login at the same time, so that a Response and its Assertion which
+ * are both signed are verified in parallel instead of one after the other.
+ * <p>
+ * The validations run on a fixed number of threads with a bounded queue. When the queue is full a validation runs on
+ * the request thread itself, so an overloaded executor degrades to the sequential validation instead of failing the
+ * login. The same holds once the executor is shut down, for a login which obtained the executor just before.
+ * <p>
+ * The DOM is not safe to be read from several threads, even for a verification, so the validations run together here
+ * must not share a document. A validation which is already running can not be stopped, hence the caller always
+ * waits for all the validations to finish before it may release the DOM.
+ */
+public class SignatureValidationExecutor {
+
+    private static final Log log = LogFactory.getLog(SignatureValidationExecutor.class);
+
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10000;
+
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong validationCount = new AtomicLong();
+    private final AtomicLong failFastCount = new AtomicLong();
+
+    /**
+     * @param threads       number of threads verifying signatures
+     * @param queueCapacity number of validations which may wait for a thread
+     */
+    public SignatureValidationExecutor(int threads, int queueCapacity) {
+        final AtomicInteger threadCount = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "SAML2SSO-Signature-Validation-" +
+                                threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }, new CallerRunsAlways());
+        if (log.isDebugEnabled()) {
+            log.debug("Signature validation executor started with " + threads + " threads");
+        }
+    }
+
+    /**
+     * Run the given validations in parallel and wait until all of them are finished. Once one of them fails, the
+     * validations which have not started yet are skipped.
+     *
+     * @param validations signature validations, each returning true if the signature is valid
+     * @return true if all the signatures are valid
+     */
+    public boolean validateAll(List<Callable<Boolean>> validations) {
+        validationCount.incrementAndGet();
+        CompletionService<Boolean> completionService = new ExecutorCompletionService<Boolean>(executor);
+        List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(validations.size());
+        boolean valid = true;
+        try {
+            for (Callable<Boolean> validation : validations) {
+                futures.add(completionService.submit(validation));
+            }
+            for (int i = 0; i < futures.size() && valid; i++) {
+                valid = Boolean.TRUE.equals(completionService.take().get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            valid = false;
+        } catch (ExecutionException e) {
+            log.error("Error while validating the SAML signatures", e.getCause());
+            valid = false;
+        } finally {
+            if (!valid) {
+                for (Future<Boolean> future : futures) {
+                    if (future.cancel(false)) {
+                        failFastCount.incrementAndGet();
+                    }
+                }
+            }
+            awaitCompletion(futures);
+        }
+        return valid;
+    }
+
+    /**
+     * Wait for the validations which are still running, since they read the DOM of the login.
+     */
+    private static void awaitCompletion(List<Future<Boolean>> futures) {
+        boolean interrupted = Thread.interrupted();
+        for (Future<Boolean> future : futures) {
+            while (!future.isDone()) {
+                try {
+                    future.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException e) {
+                    // The login has already failed, or the failure is reported by the caller.
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the threads, waiting for the validations which are already running.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return number of logins whose signatures were validated through this executor
+     */
+    public long getValidationCount() {
+        return validationCount.get();
+    }
+
+    /**
+     * @return number of validations skipped because another signature of the same login was invalid
+     */
+    public long getFailFastCount() {
+        return failFastCount.get();
+    }
+
+    public int getActiveCount() {
+        return executor.getActiveCount();
+    }
+
+    public int getQueueSize() {
+        return executor.getQueue().size();
+    }
+
+    /**
+     * Runs a rejected validation on the submitting thread. Unlike {@link ThreadPoolExecutor.CallerRunsPolicy}, the
+     * validation also runs if the executor is shut down, otherwise the login would wait for it forever.
+     */
+    private static class CallerRunsAlways implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable runnable, ThreadPoolExecutor executor) {
+            runnable.run();
+        }
+    }
+}
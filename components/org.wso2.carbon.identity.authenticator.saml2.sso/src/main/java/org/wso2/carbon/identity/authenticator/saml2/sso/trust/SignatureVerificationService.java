@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2010, WSO2 Inc. (http://www.wso2.org) All Rights Reserved.
+ *
+ * WSO2 Inc. licenses this file to you under the Apache License,
+ * Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.wso2.carbon.identity.authenticator.saml2.sso.trust;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opensaml.saml.security.impl.SAMLSignatureProfileValidator;
+import org.opensaml.xmlsec.signature.Signature;
+import org.opensaml.xmlsec.signature.support.SignatureException;
+import org.wso2.carbon.CarbonConstants;
+import org.wso2.carbon.identity.central.log.mgt.utils.LoggerUtils;
+
+/**
+ * Verifies SAML2 signatures against credentials which are already resolved for the login.
+ * <p>
+ * The SAML signature profile validator keeps no state, so a single instance is shared by all the verifications. The
+ * Response and the Assertion of a login are verified with the same resolved credentials, hence the key stores are
+ * looked up at most once per login.
+ */
+public class SignatureVerificationService {
+
+    private static final Log log = LogFactory.getLog(SignatureVerificationService.class);
+    private static final Log AUDIT_LOG = CarbonConstants.AUDIT_LOG;
+
+    private final SAMLSignatureProfileValidator signatureProfileValidator = new SAMLSignatureProfileValidator();
+
+    /**
+     * Check that a signature conforms to the SAML signature profile and verify it against the trusted credentials.
+     *
+     * @param signature   SAML2 Signature
+     * @param credentials credentials trusted to create the signature
+     * @return true, if signature is valid.
+     */
+    public boolean verify(Signature signature, CredentialTrustIndex credentials) {
+        try {
+            signatureProfileValidator.validate(signature);
+        } catch (SignatureException e) {
+            String logMsg = "Signature do not confirm to SAML signature profile. Possible XML Signature Wrapping " +
+                    "Attack!";
+            if (!LoggerUtils.isEnableV2AuditLogs()) {
+                AUDIT_LOG.warn(logMsg);
+            }
+            if (log.isDebugEnabled()) {
+                log.debug(logMsg, e);
+            }
+            return false;
+        }
+
+        try {
+            credentials.validate(signature);
+            return true;
+        } catch (SignatureException e) {
+            if (log.isDebugEnabled()) {
+                log.debug("SAML Signature validation failed", e);
+            }
+            return false;
+        }
+    }
+}
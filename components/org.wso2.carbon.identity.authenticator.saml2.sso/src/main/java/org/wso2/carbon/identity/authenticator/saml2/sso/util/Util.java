@@ -53,9 +53,16 @@ import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
 import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.security.cert.X509Certificate;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
 
 public class Util {
     private Util(){
@@ -63,6 +70,8 @@ public class Util {
     }
 
     private static final int ENTITY_EXPANSION_LIMIT = 0;
+    private static final String SHA_256 = "SHA-256";
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
     private static boolean bootStrapped = false;
     private static final Log log = LogFactory.getLog(Util.class);
 
@@ -117,6 +126,72 @@ public class Util {
 
     }
 
+    /**
+     * Read a DEFLATE compressed SAML2 Response from the stream of an attachment.
+     *
+     * @param in      stream of the compressed Response
+     * @param maxSize maximum size of the compressed Response
+     * @return compressed Response
+     * @throws SAML2SSOAuthenticatorException if the stream can not be read or the Response is too large
+     */
+    public static byte[] readCompressedResponse(InputStream in, int maxSize) throws SAML2SSOAuthenticatorException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[4096];
+        try {
+            int count;
+            while ((count = in.read(buffer)) != -1) {
+                out.write(buffer, 0, count);
+                if (out.size() > maxSize) {
+                    throw new SAML2SSOAuthenticatorException("Compressed SAML2 response exceeds " + maxSize +
+                            " bytes");
+                }
+            }
+        } catch (IOException e) {
+            throw new SAML2SSOAuthenticatorException("Error while reading the compressed SAML2 response", e);
+        } finally {
+            try {
+                in.close();
+            } catch (IOException e) {
+                log.debug("Error while closing the stream of the compressed SAML2 response", e);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Inflate a SAML2 Response compressed with raw DEFLATE, as for the HTTP-Redirect binding.
+     *
+     * @param compressed compressed Response
+     * @param maxSize    maximum size of the inflated Response, which guards against highly compressed payloads
+     * @return SAML2 Response XML
+     * @throws SAML2SSOAuthenticatorException if the Response can not be inflated or is too large
+     */
+    public static String inflate(byte[] compressed, int maxSize) throws SAML2SSOAuthenticatorException {
+
+        Inflater inflater = new Inflater(true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 4);
+        byte[] buffer = new byte[4096];
+        try {
+            inflater.setInput(compressed);
+            while (!inflater.finished()) {
+                int count = inflater.inflate(buffer);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new SAML2SSOAuthenticatorException("Compressed SAML2 response is truncated");
+                }
+                out.write(buffer, 0, count);
+                if (out.size() > maxSize) {
+                    throw new SAML2SSOAuthenticatorException("Inflated SAML2 response exceeds " + maxSize + " bytes");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new SAML2SSOAuthenticatorException("Error while inflating the compressed SAML2 response", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(out.toByteArray(), Charset.forName("UTF-8"));
+    }
+
     /**
      * This method is used to initialize the OpenSAML3 library. It calls the initialize method, if it
      * is not initialized yet.
@@ -135,13 +210,38 @@ public class Util {
     }
 
     /**
-     * Get the X509CredentialImpl object for a particular tenant
+     * Compute the SHA-256 digest of the given bytes
+     *
+     * @param data bytes to digest
+     * @return lower case hex encoding of the digest
+     */
+    public static String sha256Hex(byte[] data) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance(SHA_256);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(SHA_256 + " is not supported", e);
+        }
+        byte[] hash = digest.digest(data);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0x0f];
+            hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0x0f];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Get the X509CredentialImpl object for a particular tenant, using the given certificate alias for tenant 0
      *
      * @param domainName domain name
+     * @param alias      alias of the IdP certificate in the primary key store, or null to use the default
+     *                   certificate. Used only for tenant 0
      * @return X509CredentialImpl object containing the public certificate of that tenant
      * @throws org.wso2.carbon.identity.authenticator.saml2.sso.SAML2SSOAuthenticatorException Error when creating X509CredentialImpl object
      */
-    public static X509CredentialImpl getX509CredentialImplForTenant(String domainName)
+    public static X509CredentialImpl getX509CredentialImpl(String domainName, String alias)
             throws SAML2SSOAuthenticatorException {
 
         int tenantID = MultitenantConstants.SUPER_TENANT_ID;
@@ -174,14 +274,13 @@ public class Util {
                         (java.security.cert.X509Certificate) keystore.getCertificate(domainName);
                 credentialImpl = new X509CredentialImpl(cert);
             } else {    // for tenant zero, load the cert corresponding to given alias in authenticators.xml
-                String alias = SAML2SSOAuthBEDataHolder.getInstance().getIdPCertAlias();
                 java.security.cert.X509Certificate cert = null;
                 if (alias != null) {
                     cert = (X509Certificate) keyStoreManager.getPrimaryKeyStore().getCertificate(alias);
                     if (cert == null) {
                         String errorMsg = "Cannot find a certificate with the alias " + alias +
-                                " in the default key store. Please check the 'IdPCertAlias' property in" +
-                                " the SSO configuration of the authenticators.xml";
+                                " in the default key store. Please check the 'IdPCertAlias' or 'IdP.<n>.CertAlias'" +
+                                " property in the SSO configuration of the authenticators.xml";
                         log.error(errorMsg);
                         throw new SAML2SSOAuthenticatorException(errorMsg);
                     }